@@ -0,0 +1,122 @@
+package smarticulous;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The database a benchmark trial runs against: a {@link DatasetGenerator} dataset of the given size, opened by a
+ * {@link Smarticulous} instance in memory or in a file, the latter with or without a pool of read connections
+ * (an in-memory database is private to its one connection, so it is only measured unpooled).
+ * <p>
+ * Every dataset is generated once into a template file under {@code smarticulous.jmh.data} (by default
+ * {@code <tmpdir>/smarticulous-jmh}) and copied (or restored into memory) for each trial, so writes of one trial
+ * don't leak into the next one and large datasets are only generated on the first run.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDatabase {
+
+    static final long SEED = 42;
+
+    static final int EXERCISES = 50;
+
+    static final int SUBMISSIONS_PER_USER = 100;
+
+    /**
+     * Total number of submissions (about: the generator draws the number of submissions of each user).
+     */
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public long submissions;
+
+    @Param({"5", "20"})
+    public int questionsPerExercise;
+
+    /**
+     * "memory" for an in-memory database, "file" for a file-backed one.
+     */
+    @Param({"memory", "file"})
+    public String storage;
+
+    /**
+     * Number of read-only connections (see {@link Smarticulous#setReadConnections(int)}); 0 for the single connection.
+     */
+    @Param({"0", "4"})
+    public int readConnections;
+
+    Smarticulous smarticulous;
+
+    /**
+     * The file of a file-backed trial, null in memory.
+     */
+    private File file;
+
+    /**
+     * @return the number of users, {@link #SUBMISSIONS_PER_USER} submissions each on average.
+     */
+    int users() {
+        return (int) Math.max(1, submissions / SUBMISSIONS_PER_USER);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException, IOException {
+        File template = template();
+
+        smarticulous = new Smarticulous();
+        smarticulous.setReadConnections(readConnections);
+        if (storage.equals("memory")) {
+            if (readConnections != 0) {
+                throw new IllegalArgumentException("An in-memory database can't be pooled: use -p readConnections=0 with it");
+            }
+            smarticulous.openDB("jdbc:sqlite::memory:");
+            // Through the writer lease, before anything is read (and cached) from the empty database
+            try (ConnectionPool.Lease lease = smarticulous.pool.write();
+                 Statement st = lease.connection().createStatement()) {
+                st.executeUpdate("restore from " + template.getAbsolutePath());
+            }
+        } else if (storage.equals("file")) {
+            file = File.createTempFile("smarticulous-jmh", ".db");
+            Files.copy(template.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            smarticulous.openDB("jdbc:sqlite:" + file.getAbsolutePath());
+        } else {
+            throw new IllegalArgumentException("Unknown storage: " + storage);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        smarticulous.closeDB();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    // Helper method - the template file of the dataset, generated if it doesn't exist yet
+    private File template() throws SQLException, IOException {
+        File dir = new File(System.getProperty("smarticulous.jmh.data",
+                new File(System.getProperty("java.io.tmpdir"), "smarticulous-jmh").getPath()));
+        File template = new File(dir, String.format("dataset-v%d-%d-%d-%d-%d.db",
+                DatasetGenerator.VERSION, SEED, submissions, questionsPerExercise, users()));
+        if (template.exists()) {
+            return template;
+        }
+
+        // Generate next to the template and rename, so an interrupted generation is never mistaken for a dataset
+        dir.mkdirs();
+        File partial = new File(dir, template.getName() + ".partial");
+        partial.delete();
+        new DatasetGenerator(SEED, users(), EXERCISES, questionsPerExercise, SUBMISSIONS_PER_USER)
+                .generate("jdbc:sqlite:" + partial.getAbsolutePath(), PasswordHasher.DEFAULT_ITERATIONS);
+        Files.move(partial.toPath(), template.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return template;
+    }
+}
@@ -0,0 +1,321 @@
+package smarticulous;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fills an empty database with a reproducible synthetic dataset: the same seed and sizes always produce the same
+ * users, exercises, questions, submissions and grades.
+ * <p>
+ * User i is "user" + i (1-based) and every user's password is {@link #PASSWORD}, all of them sharing one hash (hashing
+ * a password per user would dominate the generation time). The exercises are due at even intervals over the
+ * {@link #SPAN_MILLIS} before {@link #EPOCH_MILLIS}, each with {@code questionsPerExercise} questions.
+ * <p>
+ * Every user submits every exercise a geometrically distributed number of times (so a few users submit far more
+ * than the others), averaging {@code submissionsPerUser} submissions per user overall. Submission times are skewed
+ * towards the deadline like real traffic: the time before the deadline is exponentially distributed (half of the
+ * submissions arrive in the last {@link #DEADLINE_HALF_LIFE_MILLIS}), and some submissions arrive late. Each user
+ * has a skill level, and the grades of later attempts improve on it.
+ * <p>
+ * The rows are written through batched prepared statements with the secondary indexes dropped (and rebuilt at the
+ * end) and the rollback journal off, which writes tens of millions of rows in minutes. Run from the command line
+ * with {@code gradle generateDataset --args="<file> [--option value]..."} (see {@link #main(String[])}).
+ */
+class DatasetGenerator {
+
+    /**
+     * Changed whenever the generated data changes, so cached datasets of older versions are not reused.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * The password of every generated user.
+     */
+    static final String PASSWORD = "benchmark-password";
+
+    /**
+     * The last deadline (2024-01-01T00:00:00Z), fixed so that datasets don't depend on the clock.
+     */
+    static final long EPOCH_MILLIS = 1704067200000L;
+
+    /**
+     * The deadlines are spread over this span before {@link #EPOCH_MILLIS} (90 days).
+     */
+    static final long SPAN_MILLIS = 90L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Half of the submissions of an exercise arrive within this time before its deadline (12 hours).
+     */
+    static final long DEADLINE_HALF_LIFE_MILLIS = 12L * 60 * 60 * 1000;
+
+    /**
+     * No submission arrives earlier than this before its deadline (14 days).
+     */
+    static final long RELEASE_MILLIS = 14L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Fraction of the submissions that arrive after the deadline, within {@link #LATE_MEAN_MILLIS} on average.
+     */
+    static final double LATE_FRACTION = 0.05;
+    static final long LATE_MEAN_MILLIS = 2L * 60 * 60 * 1000;
+
+    /**
+     * Number of rows written per transaction.
+     */
+    private static final int COMMIT_INTERVAL = 100000;
+
+    private final long seed;
+    final int users;
+    final int exercises;
+    final int questionsPerExercise;
+    final double submissionsPerUser;
+
+    /**
+     * Number of submissions and QuestionGrade rows written by the last {@link #generate} call.
+     */
+    long submissionsWritten = 0;
+    long gradesWritten = 0;
+
+    /**
+     * @param seed
+     * @param users number of users
+     * @param exercises number of exercises
+     * @param questionsPerExercise number of questions of every exercise
+     * @param submissionsPerUser average number of submissions of a user, over all the exercises
+     */
+    DatasetGenerator(long seed, int users, int exercises, int questionsPerExercise, double submissionsPerUser) {
+        if (users <= 0 || exercises <= 0 || questionsPerExercise <= 0 || submissionsPerUser < 0) {
+            throw new IllegalArgumentException("The dataset sizes must be positive");
+        }
+        this.seed = seed;
+        this.users = users;
+        this.exercises = exercises;
+        this.questionsPerExercise = questionsPerExercise;
+        this.submissionsPerUser = submissionsPerUser;
+    }
+
+    /**
+     * Create the tables in the given database and fill them.
+     *
+     * @param dburl The JDBC url of an empty database
+     * @param passwordIterations the PBKDF2 cost of the users' password hash
+     * @throws SQLException
+     */
+    void generate(String dburl, int passwordIterations) throws SQLException {
+        // Let Smarticulous create the current schema, indexes included
+        Smarticulous smarticulous = new Smarticulous();
+        Connection db = smarticulous.openDB(dburl);
+        try {
+            try (Statement st = db.createStatement()) {
+                // A half written dataset is thrown away anyway
+                st.executeUpdate("PRAGMA synchronous = OFF");
+                st.executeUpdate("PRAGMA journal_mode = OFF");
+                st.executeUpdate("PRAGMA cache_size = -262144"); // 256MB
+            }
+            // Loading the rows and building the indexes once at the end beats updating them row by row
+            List<String> indexes = dropIndexes(db);
+
+            db.setAutoCommit(false);
+            Random random = new Random(seed);
+            insertUsers(db, PasswordHasher.hash(PASSWORD, passwordIterations));
+            long[] deadlines = insertExercises(db, random);
+            insertSubmissions(db, random, deadlines);
+            db.commit();
+            db.setAutoCommit(true);
+
+            try (Statement st = db.createStatement()) {
+                for (String index : indexes) {
+                    st.executeUpdate(index);
+                }
+                st.executeUpdate("ANALYZE");
+            }
+        } finally {
+            smarticulous.closeDB();
+        }
+    }
+
+    /**
+     * Generate a dataset file: {@code DatasetGenerator <file> [--seed n] [--users n] [--exercises n]
+     * [--questions n] [--submissions-per-user n] [--password-iterations n]}. The file must not exist.
+     *
+     * @param args
+     * @throws SQLException
+     */
+    public static void main(String[] args) throws SQLException {
+        if (args.length == 0 || args.length % 2 == 0) {
+            System.err.println("Usage: DatasetGenerator <file> [--seed n] [--users n] [--exercises n] [--questions n] " +
+                    "[--submissions-per-user n] [--password-iterations n]");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        if (file.exists()) {
+            System.err.println(file + " already exists");
+            System.exit(1);
+        }
+
+        long seed = 42;
+        int users = 10000;
+        int exercises = 50;
+        int questions = 10;
+        double submissionsPerUser = 100;
+        int passwordIterations = PasswordHasher.DEFAULT_ITERATIONS;
+        for (int i = 1; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "--seed": seed = Long.parseLong(args[i + 1]); break;
+                case "--users": users = Integer.parseInt(args[i + 1]); break;
+                case "--exercises": exercises = Integer.parseInt(args[i + 1]); break;
+                case "--questions": questions = Integer.parseInt(args[i + 1]); break;
+                case "--submissions-per-user": submissionsPerUser = Double.parseDouble(args[i + 1]); break;
+                case "--password-iterations": passwordIterations = Integer.parseInt(args[i + 1]); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        DatasetGenerator generator = new DatasetGenerator(seed, users, exercises, questions, submissionsPerUser);
+        long start = System.nanoTime();
+        generator.generate("jdbc:sqlite:" + file.getAbsolutePath(), passwordIterations);
+        System.out.printf("%d users, %d exercises, %d submissions, %d grades in %.1f s%n", users, exercises,
+                generator.submissionsWritten, generator.gradesWritten, (System.nanoTime() - start) / 1e9);
+    }
+
+    // Helper method - drop the indexes of the submission tables, returning the statements that recreate them
+    private static List<String> dropIndexes(Connection db) throws SQLException {
+        List<String> indexes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        try (Statement st = db.createStatement();
+             ResultSet res = st.executeQuery("SELECT name, sql FROM sqlite_master WHERE type = 'index' AND sql IS NOT NULL " +
+                     "AND tbl_name IN ('Submission', 'QuestionGrade')")) {
+            while (res.next()) {
+                names.add(res.getString("name"));
+                indexes.add(res.getString("sql"));
+            }
+        }
+        try (Statement st = db.createStatement()) {
+            for (String name : names) {
+                st.executeUpdate("DROP INDEX \"" + name + "\"");
+            }
+        }
+        return indexes;
+    }
+
+    // Helper method - user i is "user" + i
+    private void insertUsers(Connection db, String passwordHash) throws SQLException {
+        try (PreparedStatement insert = db.prepareStatement("INSERT INTO User (UserId, Username, Firstname, Lastname, Password) VALUES (?, ?, ?, ?, ?)")) {
+            for (int i = 1; i <= users; ++i) {
+                insert.setInt(1, i);
+                insert.setString(2, "user" + i);
+                insert.setString(3, "First" + i);
+                insert.setString(4, "Last" + i);
+                insert.setString(5, passwordHash);
+                insert.addBatch();
+                if (i % COMMIT_INTERVAL == 0) {
+                    insert.executeBatch();
+                    db.commit();
+                }
+            }
+            insert.executeBatch();
+        }
+    }
+
+    // Helper method - every exercise with questionsPerExercise questions of 1 to 10 points, returning the deadlines
+    private long[] insertExercises(Connection db, Random random) throws SQLException {
+        long[] deadlines = new long[exercises + 1];
+        try (PreparedStatement exercise = db.prepareStatement("INSERT INTO Exercise (ExerciseId, Name, DueDate) VALUES (?, ?, ?)");
+             PreparedStatement question = db.prepareStatement("INSERT INTO Question (ExerciseId, QuestionId, Name, Desc, Points) VALUES (?, ?, ?, ?, ?)")) {
+            for (int e = 1; e <= exercises; ++e) {
+                // Evenly spread, the last one due at the epoch
+                deadlines[e] = EPOCH_MILLIS - SPAN_MILLIS * (exercises - e) / exercises;
+                exercise.setInt(1, e);
+                exercise.setString(2, "Exercise " + e);
+                exercise.setLong(3, deadlines[e]);
+                exercise.addBatch();
+                for (int q = 1; q <= questionsPerExercise; ++q) {
+                    question.setInt(1, e);
+                    question.setInt(2, q);
+                    question.setString(3, "Question " + q);
+                    question.setString(4, "Question " + q + " of exercise " + e);
+                    question.setInt(5, 1 + random.nextInt(10));
+                    question.addBatch();
+                }
+            }
+            exercise.executeBatch();
+            question.executeBatch();
+        }
+        return deadlines;
+    }
+
+    // Helper method - the submissions of every (user, exercise) and their grades, committed every COMMIT_INTERVAL submissions
+    private void insertSubmissions(Connection db, Random random, long[] deadlines) throws SQLException {
+        // Attempts per (user, exercise) are geometric on {0, 1, ...} with this mean: P(another attempt) = mean / (mean + 1)
+        double attemptsMean = submissionsPerUser / exercises;
+        double another = attemptsMean / (attemptsMean + 1);
+        double lambda = Math.log(2) / DEADLINE_HALF_LIFE_MILLIS;
+
+        submissionsWritten = 0;
+        gradesWritten = 0;
+        long[] times = new long[16];
+        try (PreparedStatement submission = db.prepareStatement("INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime) VALUES (?, ?, ?, ?)");
+             PreparedStatement grade = db.prepareStatement("INSERT INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (?, ?, ?)")) {
+            for (int u = 1; u <= users; ++u) {
+                double skill = 0.3 + 0.6 * random.nextDouble();
+                for (int e = 1; e <= exercises; ++e) {
+                    int attempts = 0;
+                    while (random.nextDouble() < another) {
+                        if (attempts == times.length) {
+                            times = Arrays.copyOf(times, 2 * attempts);
+                        }
+                        times[attempts++] = submissionTime(random, deadlines[e], lambda);
+                    }
+                    // Attempts in time order, so later attempts get the better grades
+                    Arrays.sort(times, 0, attempts);
+
+                    for (int a = 0; a < attempts; ++a) {
+                        long sid = ++submissionsWritten;
+                        submission.setLong(1, sid);
+                        submission.setInt(2, u);
+                        submission.setInt(3, e);
+                        submission.setLong(4, times[a]);
+                        submission.addBatch();
+
+                        double level = Math.min(1, skill + 0.05 * a);
+                        for (int q = 1; q <= questionsPerExercise; ++q) {
+                            double g = level + 0.15 * random.nextGaussian();
+                            grade.setLong(1, sid);
+                            grade.setInt(2, q);
+                            grade.setFloat(3, (float) Math.max(0, Math.min(1, g)));
+                            grade.addBatch();
+                        }
+                        gradesWritten += questionsPerExercise;
+
+                        if (sid % COMMIT_INTERVAL == 0) {
+                            submission.executeBatch();
+                            grade.executeBatch();
+                            db.commit();
+                        }
+                    }
+                }
+            }
+            submission.executeBatch();
+            grade.executeBatch();
+        }
+    }
+
+    // Helper method - a submission time for the deadline: exponentially close before it, or sometimes after it
+    private static long submissionTime(Random random, long deadline, double lambda) {
+        if (random.nextDouble() < LATE_FRACTION) {
+            return deadline + (long) (-Math.log(1 - random.nextDouble()) * LATE_MEAN_MILLIS);
+        }
+        long before = (long) (-Math.log(1 - random.nextDouble()) / lambda);
+        return deadline - Math.min(before, RELEASE_MILLIS);
+    }
+}
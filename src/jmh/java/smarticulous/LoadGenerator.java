@@ -0,0 +1,378 @@
+package smarticulous;
+
+import org.HdrHistogram.Histogram;
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a {@link Smarticulous} instance over a {@link DatasetGenerator} dataset with a weighted mix of operations,
+ * and reports the throughput and latency percentiles of each operation.
+ * <p>
+ * Three arrival processes are supported:
+ * <ul>
+ *   <li>closed: every thread issues its next operation as soon as the previous one returns. With a target rate, the
+ *   threads pace themselves to it, and operations delayed by a slow one are recorded as if they had been issued on
+ *   schedule ({@link Histogram#recordValueWithExpectedInterval}), so a stall is not hidden by the requests it held back.</li>
+ *   <li>poisson: operations arrive at the target rate with exponentially distributed gaps, whatever the response times.</li>
+ *   <li>ramp: like poisson, with the rate growing exponentially from the target rate to the peak rate over the run,
+ *   as submissions do towards a deadline.</li>
+ * </ul>
+ * In the open-loop modes (poisson and ramp) each operation's latency is measured from the time it was scheduled to
+ * arrive, not from when a thread got to it, so queueing behind slow operations is included (no coordinated omission).
+ * <p>
+ * Run with {@code gradle loadTest --args="<database> [--option value]..."} (see {@link #main(String[])}). The
+ * write operations add rows to the database, so run it on a copy of the dataset.
+ */
+class LoadGenerator {
+
+    /**
+     * The operations of the mix.
+     */
+    enum Operation {
+        verifyLogin, loadExercises, storeSubmission, getLastSubmission, getBestSubmission
+    }
+
+    /**
+     * How the operations are issued.
+     */
+    enum Arrival {
+        closed, poisson, ramp
+    }
+
+    /**
+     * The latencies and errors of one run.
+     */
+    static final class Results {
+        final Histogram[] latencies = new Histogram[Operation.values().length];
+        // The histograms of a paced closed loop also hold the corrected samples, so completions are counted apart
+        final long[] completed = new long[Operation.values().length];
+        final long[] errors = new long[Operation.values().length];
+        long elapsedNanos;
+
+        Results() {
+            for (int i = 0; i < latencies.length; ++i) {
+                latencies[i] = new Histogram(3);
+            }
+        }
+    }
+
+    private final Smarticulous smarticulous;
+    private final int users;
+    private final List<Exercise> exercises;
+
+    /**
+     * cumulativeWeights[i] is the total weight of operations 0..i.
+     */
+    private final double[] cumulativeWeights;
+
+    private final Arrival arrival;
+    private final int threads;
+    private final double rate;
+    private final double peakRate;
+    private final long seed;
+
+    /**
+     * @param smarticulous an open instance over a {@link DatasetGenerator} dataset
+     * @param weights the weight of each operation in the mix, by {@link Operation#ordinal()}
+     * @param arrival
+     * @param threads number of threads issuing (closed) or executing (open loop) the operations
+     * @param rate target operations per second (0 for unpaced closed loop)
+     * @param peakRate operations per second at the end of a ramp
+     * @param seed
+     * @throws SQLException
+     */
+    LoadGenerator(Smarticulous smarticulous, double[] weights, Arrival arrival, int threads, double rate, double peakRate,
+                  long seed) throws SQLException {
+        if (arrival != Arrival.closed && rate <= 0) {
+            throw new IllegalArgumentException("The open-loop arrivals need a positive rate");
+        }
+        this.smarticulous = smarticulous;
+        this.arrival = arrival;
+        this.threads = threads;
+        this.rate = rate;
+        this.peakRate = arrival == Arrival.ramp ? peakRate : rate;
+        this.seed = seed;
+
+        cumulativeWeights = new double[weights.length];
+        double total = 0;
+        for (int i = 0; i < weights.length; ++i) {
+            total += weights[i];
+            cumulativeWeights[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("The mix has no operations");
+        }
+
+        exercises = smarticulous.loadExercises();
+        try (Statement st = smarticulous.db.createStatement();
+             ResultSet res = st.executeQuery("SELECT COALESCE(MAX(UserId), 0) FROM User")) {
+            users = res.getInt(1);
+        }
+        if (users == 0 || exercises.isEmpty()) {
+            throw new IllegalArgumentException("The database has no users or exercises - generate it with DatasetGenerator");
+        }
+    }
+
+    /**
+     * Run the workload.
+     *
+     * @param durationNanos how long operations are issued
+     * @return the latencies (in microseconds) and errors of every operation
+     * @throws InterruptedException
+     */
+    Results run(long durationNanos) throws InterruptedException {
+        Results results = new Results();
+        // Each executing thread records into its own histograms, merged at the end
+        List<Results> perThread = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadLocal<Results> recorder = ThreadLocal.withInitial(() -> {
+            Results own = new Results();
+            perThread.add(own);
+            return own;
+        });
+        ThreadLocal<Random> randoms = ThreadLocal.withInitial(() -> new Random(seed + threadIndex.incrementAndGet()));
+        LongAdder[] errors = new LongAdder[Operation.values().length];
+        for (int i = 0; i < errors.length; ++i) {
+            errors[i] = new LongAdder();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        if (arrival == Arrival.closed) {
+            // Each thread paces itself to its share of the rate, if there is one
+            long interval = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+            for (int t = 0; t < threads; ++t) {
+                executor.execute(() -> {
+                    Random random = randoms.get();
+                    long next = System.nanoTime();
+                    while (next < end && System.nanoTime() < end) {
+                        Operation operation = pick(random);
+                        long begin = System.nanoTime();
+                        boolean ok = execute(operation, random, errors);
+                        long latency = (System.nanoTime() - begin) / 1000;
+                        if (ok) {
+                            ++recorder.get().completed[operation.ordinal()];
+                            Histogram histogram = recorder.get().latencies[operation.ordinal()];
+                            if (interval > 0) {
+                                histogram.recordValueWithExpectedInterval(latency, interval / 1000);
+                            } else {
+                                histogram.recordValue(latency);
+                            }
+                        }
+                        if (interval > 0) {
+                            next += interval;
+                            parkUntil(next);
+                        }
+                    }
+                });
+            }
+        } else {
+            // The dispatcher draws the arrivals and the operations, so the schedule only depends on the seed
+            Random random = new Random(seed);
+            long scheduled = start;
+            while (true) {
+                double currentRate = currentRate(scheduled - start, durationNanos);
+                scheduled += (long) (-Math.log(1 - random.nextDouble()) / currentRate * 1e9);
+                if (scheduled >= end) {
+                    break;
+                }
+                parkUntil(scheduled);
+
+                Operation operation = pick(random);
+                long intended = scheduled;
+                executor.execute(() -> {
+                    if (execute(operation, randoms.get(), errors)) {
+                        ++recorder.get().completed[operation.ordinal()];
+                        recorder.get().latencies[operation.ordinal()].recordValue((System.nanoTime() - intended) / 1000);
+                    }
+                });
+            }
+        }
+        executor.shutdown();
+        // Operations scheduled within the run still complete and count
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        results.elapsedNanos = System.nanoTime() - start;
+
+        for (Results own : perThread) {
+            for (int i = 0; i < own.latencies.length; ++i) {
+                results.latencies[i].add(own.latencies[i]);
+                results.completed[i] += own.completed[i];
+            }
+        }
+        for (int i = 0; i < errors.length; ++i) {
+            results.errors[i] = errors[i].sum();
+        }
+        return results;
+    }
+
+    /**
+     * Print one line per operation: completed operations, errors, throughput and latency percentiles in milliseconds.
+     *
+     * @param results
+     */
+    static void print(Results results) {
+        double seconds = results.elapsedNanos / 1e9;
+        System.out.printf("%-18s %9s %7s %10s %9s %9s %9s %9s %9s %9s%n",
+                "operation", "count", "errors", "ops/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Operation operation : Operation.values()) {
+            Histogram h = results.latencies[operation.ordinal()];
+            long completed = results.completed[operation.ordinal()];
+            if (completed == 0 && results.errors[operation.ordinal()] == 0) {
+                continue;
+            }
+            System.out.printf(Locale.ROOT, "%-18s %9d %7d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                    operation, completed, results.errors[operation.ordinal()], completed / seconds,
+                    h.getMean() / 1000, h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                    h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0, h.getMaxValue() / 1000.0);
+        }
+    }
+
+    /**
+     * Run a load test: {@code LoadGenerator <database> [--arrival closed|poisson|ramp] [--threads n] [--duration s]
+     * [--warmup s] [--rate ops/s] [--peak-rate ops/s] [--mix operation=weight,...] [--read-connections n] [--seed n]}.
+     * The database is a file or a JDBC url.
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || args.length % 2 == 0) {
+            System.err.println("Usage: LoadGenerator <database> [--arrival closed|poisson|ramp] [--threads n] [--duration s] " +
+                    "[--warmup s] [--rate ops/s] [--peak-rate ops/s] [--mix operation=weight,...] [--read-connections n] [--seed n]");
+            System.exit(2);
+        }
+        String dburl = args[0].startsWith("jdbc:") ? args[0] : "jdbc:sqlite:" + args[0];
+
+        Arrival arrival = Arrival.closed;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double duration = 60;
+        double warmup = 10;
+        double rate = 0;
+        double peakRate = 0;
+        String mix = "verifyLogin=5,loadExercises=10,storeSubmission=30,getLastSubmission=40,getBestSubmission=15";
+        int readConnections = threads;
+        long seed = 42;
+        for (int i = 1; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "--arrival": arrival = Arrival.valueOf(args[i + 1]); break;
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                case "--duration": duration = Double.parseDouble(args[i + 1]); break;
+                case "--warmup": warmup = Double.parseDouble(args[i + 1]); break;
+                case "--rate": rate = Double.parseDouble(args[i + 1]); break;
+                case "--peak-rate": peakRate = Double.parseDouble(args[i + 1]); break;
+                case "--mix": mix = args[i + 1]; break;
+                case "--read-connections": readConnections = Integer.parseInt(args[i + 1]); break;
+                case "--seed": seed = Long.parseLong(args[i + 1]); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (arrival == Arrival.ramp && peakRate <= rate) {
+            peakRate = 10 * rate;
+        }
+
+        double[] weights = new double[Operation.values().length];
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split("=");
+            weights[Operation.valueOf(parts[0].trim()).ordinal()] = Double.parseDouble(parts[1]);
+        }
+
+        Smarticulous smarticulous = new Smarticulous();
+        smarticulous.setReadConnections(readConnections);
+        smarticulous.openDB(dburl);
+        try {
+            LoadGenerator generator = new LoadGenerator(smarticulous, weights, arrival, threads, rate, peakRate, seed);
+            if (warmup > 0) {
+                generator.run((long) (warmup * 1e9));
+            }
+            System.out.printf(Locale.ROOT, "%s arrivals, %d threads, %.0f s%s%n", arrival, threads, duration,
+                    rate > 0 ? String.format(Locale.ROOT, ", %.0f ops/s", rate) +
+                            (arrival == Arrival.ramp ? String.format(Locale.ROOT, " ramping to %.0f ops/s", peakRate) : "") : "");
+            print(generator.run((long) (duration * 1e9)));
+        } finally {
+            smarticulous.closeDB();
+        }
+    }
+
+    // Helper method - the arrival rate (per second) at the given time into the run
+    private double currentRate(long elapsedNanos, long durationNanos) {
+        if (arrival != Arrival.ramp) {
+            return rate;
+        }
+        // Exponential growth from rate to peakRate over the run
+        return rate * Math.pow(peakRate / rate, (double) elapsedNanos / durationNanos);
+    }
+
+    // Helper method - draw an operation from the mix
+    private Operation pick(Random random) {
+        double r = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        for (int i = 0; i < cumulativeWeights.length; ++i) {
+            if (r < cumulativeWeights[i]) {
+                return Operation.values()[i];
+            }
+        }
+        return Operation.values()[cumulativeWeights.length - 1];
+    }
+
+    // Helper method - execute an operation on a random user and exercise, returning false (and counting it) if it failed
+    private boolean execute(Operation operation, Random random, LongAdder[] errors) {
+        int u = 1 + random.nextInt(users);
+        User user = new User("user" + u, "First" + u, "Last" + u);
+        Exercise exercise = exercises.get(random.nextInt(exercises.size()));
+        try {
+            switch (operation) {
+                case verifyLogin:
+                    if (!smarticulous.verifyLogin(user.username, DatasetGenerator.PASSWORD)) {
+                        throw new IllegalStateException("Login failed for " + user.username);
+                    }
+                    break;
+                case loadExercises:
+                    smarticulous.loadExercises();
+                    break;
+                case storeSubmission:
+                    float[] grades = new float[exercise.questions.size()];
+                    for (int i = 0; i < grades.length; ++i) {
+                        grades[i] = random.nextFloat();
+                    }
+                    smarticulous.storeSubmission(new Submission(user, exercise, new Date(), grades));
+                    break;
+                case getLastSubmission:
+                    smarticulous.getLastSubmission(user, exercise);
+                    break;
+                case getBestSubmission:
+                    smarticulous.getBestSubmission(user, exercise);
+                    break;
+            }
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            errors[operation.ordinal()].increment();
+            return false;
+        }
+    }
+
+    // Helper method - wait until the given System.nanoTime()
+    private static void parkUntil(long deadline) {
+        for (long left = deadline - System.nanoTime(); left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+}
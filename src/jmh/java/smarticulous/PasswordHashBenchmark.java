@@ -0,0 +1,81 @@
+package smarticulous;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures password verifications (logins) per second per core at several PBKDF2 costs, for sizing the
+ * password verifier threads and the hardware behind them.
+ * <p>
+ * Run with {@code gradle passwordBenchmark}, optionally with {@code --args="<seconds> <iterations>..."}.
+ */
+public class PasswordHashBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        List<Integer> costs = new ArrayList<>();
+        for (int i = 1; i < args.length; ++i) {
+            costs.add(Integer.parseInt(args[i]));
+        }
+        if (costs.isEmpty()) {
+            costs.add(100000);
+            costs.add(310000);
+            costs.add(PasswordHasher.DEFAULT_ITERATIONS);
+            costs.add(1000000);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d cores, %d s per measurement%n", cores, seconds);
+        System.out.printf("%12s %10s %16s %16s%n", "iterations", "threads", "logins/sec", "logins/sec/core");
+
+        for (int iterations : costs) {
+            String stored = PasswordHasher.hash("correct horse battery staple", iterations);
+
+            // Warm up the JIT
+            for (int i = 0; i < 3; ++i) {
+                PasswordHasher.verify("correct horse battery staple", stored);
+            }
+
+            for (int threads : new int[]{1, cores}) {
+                double perSecond = measure(stored, threads, seconds);
+                System.out.printf("%12d %10d %16.1f %16.1f%n", iterations, threads, perSecond, perSecond / threads);
+                if (cores == 1) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Helper method - verifications per second with the given number of threads verifying continuously
+    private static double measure(String stored, int threads, int seconds) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long start = System.nanoTime();
+
+        List<Future<Long>> counts = new ArrayList<>();
+        for (int i = 0; i < threads; ++i) {
+            counts.add(executor.submit(() -> {
+                long count = 0;
+                while (System.nanoTime() < deadline) {
+                    if (!PasswordHasher.verify("correct horse battery staple", stored)) {
+                        throw new IllegalStateException("Verification failed");
+                    }
+                    ++count;
+                }
+                return count;
+            }));
+        }
+
+        long total = 0;
+        for (Future<Long> count : counts) {
+            total += count.get();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        return total / elapsed;
+    }
+}
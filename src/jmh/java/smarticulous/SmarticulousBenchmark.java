@@ -0,0 +1,147 @@
+package smarticulous;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Throughput and sampled latency (with its percentiles, p99 included) of the {@link Smarticulous} public methods,
+ * over every {@link BenchmarkDatabase} size, question count, storage and number of read connections.
+ * <p>
+ * The read benchmarks run on {@value #READER_THREADS} threads, so the pooled read connections and the concurrent
+ * paths of the caches are measured under contention; the write benchmarks run on one thread, as the writes are
+ * serialized on the writer connection anyway.
+ * <p>
+ * Run with {@code gradle jmh}; the results are written to {@code build/reports/jmh/results.json}.
+ * Write benchmarks grow the database during a trial, which starts over from the dataset.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmarticulousBenchmark {
+
+    /**
+     * Number of threads running each read benchmark.
+     */
+    static final int READER_THREADS = 4;
+
+    /**
+     * The users and exercises a benchmark thread works on, picked by a per-thread seeded random.
+     */
+    @State(Scope.Thread)
+    public static class Picker {
+        private Random random;
+        private int users;
+        private int exercises;
+
+        @Setup
+        public void setUp(BenchmarkDatabase db) {
+            // Threads get different but reproducible sequences
+            random = new Random(BenchmarkDatabase.SEED + Thread.currentThread().getId());
+            users = db.users();
+            exercises = BenchmarkDatabase.EXERCISES;
+        }
+
+        User user() {
+            int i = 1 + random.nextInt(users);
+            return new User("user" + i, "First" + i, "Last" + i);
+        }
+
+        int exerciseId() {
+            return 1 + random.nextInt(exercises);
+        }
+
+        Exercise exercise(BenchmarkDatabase db) throws SQLException {
+            return db.smarticulous.getExercise(exerciseId());
+        }
+
+        Submission submission(BenchmarkDatabase db) throws SQLException {
+            Exercise exercise = exercise(db);
+            float[] grades = new float[exercise.questions.size()];
+            for (int i = 0; i < grades.length; ++i) {
+                grades[i] = random.nextFloat();
+            }
+            return new Submission(user(), exercise, new Date(DatasetGenerator.EPOCH_MILLIS), grades);
+        }
+    }
+
+    @Benchmark
+    @Threads(READER_THREADS)
+    public boolean verifyLogin(BenchmarkDatabase db, Picker picker) throws SQLException {
+        return db.smarticulous.verifyLogin(picker.user().username, DatasetGenerator.PASSWORD);
+    }
+
+    @Benchmark
+    public int addOrUpdateUser(BenchmarkDatabase db, Picker picker) throws SQLException {
+        return db.smarticulous.addOrUpdateUser(picker.user(), DatasetGenerator.PASSWORD);
+    }
+
+    @Benchmark
+    @Threads(READER_THREADS)
+    public List<Exercise> loadExercises(BenchmarkDatabase db) throws SQLException {
+        return db.smarticulous.loadExercises();
+    }
+
+    @Benchmark
+    @Threads(READER_THREADS)
+    public Exercise getExercise(BenchmarkDatabase db, Picker picker) throws SQLException {
+        return db.smarticulous.getExercise(picker.exerciseId());
+    }
+
+    @Benchmark
+    public int storeSubmission(BenchmarkDatabase db, Picker picker) throws SQLException {
+        return db.smarticulous.storeSubmission(picker.submission(db));
+    }
+
+    @Benchmark
+    @Threads(READER_THREADS)
+    public Submission getLastSubmission(BenchmarkDatabase db, Picker picker) throws SQLException {
+        return db.smarticulous.getLastSubmission(picker.user(), picker.exercise(db));
+    }
+
+    @Benchmark
+    @Threads(READER_THREADS)
+    public Submission getBestSubmission(BenchmarkDatabase db, Picker picker) throws SQLException {
+        return db.smarticulous.getBestSubmission(picker.user(), picker.exercise(db));
+    }
+
+    @Benchmark
+    @Threads(READER_THREADS)
+    public List<Submission> getLastSubmissionsOfExercise(BenchmarkDatabase db, Picker picker) throws SQLException {
+        return db.smarticulous.getLastSubmissions(picker.exercise(db));
+    }
+
+    @Benchmark
+    @Threads(READER_THREADS)
+    public List<Submission> getBestSubmissionsOfUser(BenchmarkDatabase db, Picker picker) throws SQLException {
+        return db.smarticulous.getBestSubmissions(picker.user());
+    }
+
+    @Benchmark
+    @Threads(READER_THREADS)
+    public long streamSubmissionsOfUser(BenchmarkDatabase db, Picker picker) throws SQLException {
+        try (Stream<Submission> stream = db.smarticulous.streamSubmissions(picker.user())) {
+            return stream.count();
+        }
+    }
+}
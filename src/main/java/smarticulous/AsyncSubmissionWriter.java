@@ -0,0 +1,359 @@
+package smarticulous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarticulous.db.Submission;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores submissions asynchronously: callers enqueue them into a bounded queue, and a single writer thread drains
+ * the queue and writes whatever accumulated meanwhile as one group-committed transaction (up to {@code groupSize}
+ * submissions), so a burst costs one commit per group instead of one per submission.
+ * <p>
+ * Every submission's future completes once its transaction is committed. If a group fails, it is rolled back and
+ * its submissions are retried one transaction each, so a single bad submission fails only its own future.
+ * What happens when the queue is full is decided by the {@link Smarticulous.OverflowPolicy}.
+ * <p>
+ * With a {@link SubmissionJournal}, every submission gets its id and is appended to the journal before it is
+ * queued, and its future completes as soon as the journal is on disk. The journal is truncated whenever the
+ * writer has resolved everything that was journaled; a submission that still fails on its own is moved to the
+ * journal's dead-letter file instead of being replayed (see {@link SubmissionJournal#quarantine(Submission)}).
+ */
+class AsyncSubmissionWriter implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncSubmissionWriter.class);
+
+    /**
+     * A queued submission and the future of its id.
+     */
+    private static final class Pending {
+        final Submission submission;
+        final CompletableFuture<Integer> id = new CompletableFuture<>();
+
+        Pending(Submission submission) {
+            this.submission = submission;
+        }
+    }
+
+    /**
+     * Queued by {@link #close()} after the last submission: the writer thread stops when it reaches it.
+     */
+    private static final Pending END = new Pending(null);
+
+    private final ConnectionPool pool;
+    private final boolean maintainTotals;
+    private final boolean gradesBlobs;
+    private final UserIdMap userIds;
+    private final int groupSize;
+    private final Smarticulous.OverflowPolicy overflowPolicy;
+
+    /**
+     * The journal of the queued submissions, or null if they are not journaled.
+     */
+    private final SubmissionJournal journal;
+
+    /**
+     * Number of submissions being journaled and queued. The journal is only truncated when it is 0 and the queue is empty.
+     */
+    private final AtomicInteger journaling = new AtomicInteger();
+
+    private final BlockingQueue<Pending> queue;
+    private final Thread thread;
+
+    /**
+     * Held (shared) while a submission is being queued, and (exclusively) by {@link #close()}, so no submission can
+     * be queued after END.
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong groups = new AtomicLong();
+
+    /**
+     * @param pool the connections to write through
+     * @param maintainTotals true if the database has materialized submission totals
+     * @param gradesBlobs true if the database stores grades BLOBs
+     * @param userIds the UserIds resolved so far
+     * @param capacity maximum number of queued submissions
+     * @param groupSize maximum number of submissions per transaction
+     * @param overflowPolicy what {@link #submit} does when the queue is full
+     * @param journal the journal to append the submissions to before queueing them, or null
+     */
+    AsyncSubmissionWriter(ConnectionPool pool, boolean maintainTotals, boolean gradesBlobs, UserIdMap userIds, int capacity, int groupSize,
+                          Smarticulous.OverflowPolicy overflowPolicy, SubmissionJournal journal) {
+        this.pool = pool;
+        this.maintainTotals = maintainTotals;
+        this.gradesBlobs = gradesBlobs;
+        this.userIds = userIds;
+        this.groupSize = groupSize;
+        this.overflowPolicy = overflowPolicy;
+        this.journal = journal;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+
+        thread = new Thread(this, "smarticulous-submission-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a submission.
+     *
+     * @param submission
+     * @return the future of the submission id (-1 if the corresponding user doesn't exist in the database).
+     * @throws RejectedExecutionException if the queue is full and the policy is {@link Smarticulous.OverflowPolicy#FAIL_FAST},
+     *                                    or the writer is closed
+     */
+    CompletableFuture<Integer> submit(Submission submission) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new RejectedExecutionException("The submission writer is closed");
+            }
+            return journal == null ? enqueue(new Pending(submission)) : enqueueJournaled(submission);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    // Helper method - give the submission its id, journal and queue it, and complete its future once the journal is on disk
+    private CompletableFuture<Integer> enqueueJournaled(Submission submission) {
+        Pending pending = new Pending(new Submission(journal.allocateId(submission.id), submission.user,
+                submission.exercise, submission.submissionTime, submission.questionGrades));
+        long sequence;
+
+        journaling.incrementAndGet();
+        try {
+            if (overflowPolicy == Smarticulous.OverflowPolicy.BLOCK) {
+                sequence = journal.append(pending.submission);
+                putUninterruptibly(pending);
+            } else {
+                // Queue and append atomically, so a rejected submission is never journaled (and later replayed)
+                synchronized (journal) {
+                    CompletableFuture<Integer> queued = enqueue(pending);
+                    if (queued.isCompletedExceptionally()) {
+                        return queued;
+                    }
+                    sequence = journal.append(pending.submission);
+                }
+            }
+        } catch (IOException e) {
+            // The submission may still be written if it was queued
+            return failed(new UncheckedIOException("Could not append to the submission journal", e));
+        } finally {
+            journaling.decrementAndGet();
+        }
+
+        try {
+            journal.sync(sequence);
+        } catch (IOException e) {
+            return failed(new UncheckedIOException("Could not sync the submission journal", e));
+        }
+        return CompletableFuture.completedFuture(pending.submission.id);
+    }
+
+    // Helper method - queue a journaled submission even if interrupted, since the journal already holds it
+    private void putUninterruptibly(Pending pending) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(pending);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Helper method - a future failed with the given exception
+    private static CompletableFuture<Integer> failed(Throwable e) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    // Helper method - queue a submission as the overflow policy says
+    private CompletableFuture<Integer> enqueue(Pending pending) {
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(pending);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pending.id.completeExceptionally(e);
+                }
+                break;
+            case FAIL_FAST:
+                if (!queue.offer(pending)) {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException("The submission queue is full");
+                }
+                break;
+            case SHED:
+                if (!queue.offer(pending)) {
+                    rejected.incrementAndGet();
+                    pending.id.completeExceptionally(new RejectedExecutionException("The submission queue is full"));
+                }
+                break;
+        }
+        return pending.id;
+    }
+
+    /**
+     * @return the number of submissions waiting to be written.
+     */
+    int queued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of submissions rejected because the queue was full.
+     */
+    long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of transactions committed so far.
+     */
+    long groups() {
+        return groups.get();
+    }
+
+    /**
+     * Stop accepting submissions, write the queued ones and stop the writer thread.
+     *
+     * @throws InterruptedException
+     */
+    void close() throws InterruptedException {
+        closeLock.writeLock().lock();
+        try {
+            if (!closed) {
+                // The writer thread keeps draining the queue, so this waits at most for one group
+                queue.put(END);
+                closed = true;
+            }
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        thread.join();
+    }
+
+    @Override
+    public void run() {
+        List<Pending> group = new ArrayList<>(groupSize);
+        while (true) {
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                // Only close() stops the writer - the queued futures must not be left pending
+                continue;
+            }
+            // Everything that queued up while the previous group was written joins this one
+            queue.drainTo(group, groupSize - 1);
+
+            boolean end = group.remove(END);
+            if (!group.isEmpty()) {
+                writeGroup(group);
+            }
+            group.clear();
+            // Only once the whole group is resolved: while a failed group is retried one by one, its later members
+            // are acknowledged but not yet committed, and only the journal holds them.
+            // (END may have been queued right after the last group, which then left the journal for it.)
+            if (journal != null) {
+                truncateJournal();
+            }
+            if (end) {
+                return;
+            }
+        }
+    }
+
+    // Helper method - write a group in one transaction, falling back to one transaction per submission if it fails
+    private void writeGroup(List<Pending> group) {
+        try {
+            write(group);
+        } catch (SQLException | RuntimeException e) {
+            if (group.size() == 1) {
+                if (journal != null) {
+                    quarantine(group.get(0).submission, e);
+                }
+                group.get(0).id.completeExceptionally(e);
+                return;
+            }
+            logger.warn("Writing a group of {} submissions failed, writing them one by one", group.size(), e);
+            for (Pending pending : group) {
+                writeGroup(Collections.singletonList(pending));
+            }
+        }
+    }
+
+    // Helper method - write the submissions in a single transaction, and complete their futures once it is committed
+    private void write(List<Pending> group) throws SQLException {
+        int[] ids = new int[group.size()];
+        try (ConnectionPool.Lease lease = pool.write();
+             SubmissionBatchWriter writer = new SubmissionBatchWriter(lease.connection(), lease.statements(), group.size(),
+                     maintainTotals, gradesBlobs, userIds, journal)) {
+            try {
+                for (int i = 0; i < ids.length; ++i) {
+                    ids[i] = writer.add(group.get(i).submission);
+                }
+                writer.flush();
+            } catch (SQLException | RuntimeException e) {
+                writer.rollback();
+                throw e;
+            }
+        }
+        groups.incrementAndGet();
+
+        for (int i = 0; i < ids.length; ++i) {
+            group.get(i).id.complete(ids[i]);
+        }
+    }
+
+    // Helper method - move a journaled submission that failed on its own to the dead-letter file, so the next open
+    // doesn't replay it (its journal record goes with the next truncation)
+    private void quarantine(Submission submission, Exception cause) {
+        logger.error("Journaled submission {} could not be written, moving it to {}",
+                submission.id, SubmissionJournal.deadLetterPath(journal.path()), cause);
+        try {
+            journal.quarantine(submission);
+        } catch (IOException e) {
+            // Its journal record goes with the next truncation all the same: only the copy for inspection is lost
+            logger.error("Could not move journaled submission {} to the dead-letter file", submission.id, e);
+        }
+    }
+
+    // Helper method - empty the journal if everything journaled is committed (nothing queued, nothing being queued,
+    // no group being written)
+    private void truncateJournal() {
+        // Appends are synchronized on the journal, so none can slip in between the check and the truncation
+        synchronized (journal) {
+            if (!queue.isEmpty() || journaling.get() != 0) {
+                return;
+            }
+            try {
+                journal.truncate();
+            } catch (IOException e) {
+                logger.warn("Could not truncate the submission journal", e);
+            }
+        }
+    }
+}
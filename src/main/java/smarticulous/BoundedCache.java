@@ -0,0 +1,173 @@
+package smarticulous;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe in-process cache holding at most {@code maxSize} entries, evicting the least recently used one.
+ * Entries may also be given a time to live, after which they are treated as missing.
+ * <p>
+ * Loads race with invalidations: a value read from the database before an invalidation may be stale after it.
+ * To avoid caching such values, take the {@link #generation()} before loading and store the loaded value with
+ * {@link #putIfCurrent(Object, Object, long)}, which drops it if anything was invalidated in between.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+class BoundedCache<K, V> {
+
+    /**
+     * A cached value and the time it expires at.
+     */
+    private static final class Entry<V> {
+        final V value;
+
+        /**
+         * {@link System#nanoTime()} at expiry, or {@link Long#MAX_VALUE} if the entry never expires.
+         */
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean expired(long now) {
+            return expiresAt != Long.MAX_VALUE && now - expiresAt >= 0;
+        }
+    }
+
+    /**
+     * The cached values, in access order (least recently used first).
+     */
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    /**
+     * Incremented by every invalidation.
+     */
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    BoundedCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key
+     * @return the cached value, or null if there is none (or it expired).
+     */
+    synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.expired(System.nanoTime())) {
+            entries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * @return the current generation, to pass to {@link #putIfCurrent}.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Cache a value.
+     *
+     * @param key
+     * @param value
+     */
+    synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, Long.MAX_VALUE));
+    }
+
+    /**
+     * Cache a value unless the cache was invalidated since {@code generation} was taken.
+     *
+     * @param key
+     * @param value
+     * @param generation the {@link #generation()} taken before the value was loaded
+     * @return true if the value was cached.
+     */
+    synchronized boolean putIfCurrent(K key, V value, long generation) {
+        return putIfCurrent(key, value, generation, 0);
+    }
+
+    /**
+     * Cache a value for a limited time unless the cache was invalidated since {@code generation} was taken.
+     *
+     * @param key
+     * @param value
+     * @param generation the {@link #generation()} taken before the value was loaded
+     * @param ttlMillis how long the value stays cached, or 0 to keep it until it is evicted or invalidated
+     * @return true if the value was cached.
+     */
+    synchronized boolean putIfCurrent(K key, V value, long generation, long ttlMillis) {
+        if (generation != this.generation) {
+            return false;
+        }
+        long expiresAt = ttlMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis) : Long.MAX_VALUE;
+        entries.put(key, new Entry<>(value, expiresAt));
+        return true;
+    }
+
+    /**
+     * Remove the value of a key.
+     *
+     * @param key
+     */
+    synchronized void invalidate(K key) {
+        ++generation;
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all the values.
+     */
+    synchronized void clear() {
+        ++generation;
+        entries.clear();
+    }
+
+    /**
+     * @return the number of values currently cached (including expired ones not yet removed).
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of {@link #get} calls that found a value.
+     */
+    long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of {@link #get} calls that found none.
+     */
+    long misses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,288 @@
+package smarticulous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The connections behind a {@link Smarticulous} instance: one writer connection plus a fixed number of
+ * read-only connections, each with its own {@link StatementCache}.
+ * <p>
+ * The writer is borrowed exclusively, so all writes (and their transactions) are serialized. Readers are
+ * borrowed from a blocking queue. With no read connections every lease is served by the writer, which is
+ * exactly the single-connection behavior. Leases are reentrant per thread: a thread that already holds a lease
+ * gets the same connection back, so a read nested inside a write sees the write's uncommitted rows.
+ */
+class ConnectionPool implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /**
+     * How long a connection waits on a locked database before failing with SQLITE_BUSY.
+     */
+    static final int BUSY_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * A connection borrowed from the pool. Closing the lease returns the connection.
+     */
+    final class Lease implements AutoCloseable {
+        private final Connection connection;
+        private final StatementCache statements;
+        private final boolean writer;
+
+        /**
+         * Number of times the owning thread acquired this lease without closing it.
+         */
+        private int depth = 0;
+
+        private Lease(Connection connection, StatementCache statements, boolean writer) {
+            this.connection = connection;
+            this.statements = statements;
+            this.writer = writer;
+        }
+
+        Connection connection() {
+            return connection;
+        }
+
+        StatementCache statements() {
+            return statements;
+        }
+
+        /**
+         * @see StatementCache#prepare(String)
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            return statements.prepare(sql);
+        }
+
+        /**
+         * @see StatementCache#prepare(String, int)
+         */
+        PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            return statements.prepare(sql, autoGeneratedKeys);
+        }
+
+        @Override
+        public void close() {
+            if (--depth > 0) {
+                return;
+            }
+            held.remove();
+            // The statements prepared under the lease are no longer held
+            try {
+                statements.release();
+            } catch (SQLException e) {
+                logger.warn("Could not close an evicted statement", e);
+            }
+            if (writer) {
+                writeLock.unlock();
+            } else {
+                readers.offer(this);
+            }
+        }
+    }
+
+    private final Lease writerLease;
+    private final BlockingQueue<Lease> readers;
+    private final List<Lease> allReaders = new ArrayList<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * The lease currently held by each thread, if any.
+     */
+    private final ThreadLocal<Lease> held = new ThreadLocal<>();
+
+    /**
+     * Open the pool's connections.
+     * <p>
+     * If {@code readConnections} is positive and the database is file-backed, the database is switched to WAL
+     * journaling (so readers don't block the writer) and that many read-only connections are opened. An in-memory
+     * database is private to its connection, so it always gets the writer only.
+     *
+     * @param dburl The JDBC url of the database to open
+     * @param readConnections the number of read-only connections
+     * @param statementCacheSize the statement cache bound of each connection
+     * @param slowQueryLog the log every connection reports its slow statements to, or null for none
+     * @throws SQLException
+     */
+    ConnectionPool(String dburl, int readConnections, int statementCacheSize, SlowQueryLog slowQueryLog) throws SQLException {
+        boolean pooled = readConnections > 0 && !isInMemory(dburl);
+
+        Connection writer;
+        if (pooled) {
+            SQLiteConfig config = new SQLiteConfig();
+            config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            config.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+            writer = DriverManager.getConnection(dburl, config.toProperties());
+        } else {
+            writer = DriverManager.getConnection(dburl);
+        }
+        if (slowQueryLog != null) {
+            writer = slowQueryLog.wrap(writer);
+        }
+        writerLease = new Lease(writer, new StatementCache(writer, statementCacheSize), true);
+
+        readers = new ArrayBlockingQueue<>(Math.max(1, pooled ? readConnections : 1));
+        if (pooled) {
+            try {
+                for (int i = 0; i < readConnections; ++i) {
+                    SQLiteConfig config = new SQLiteConfig();
+                    config.setReadOnly(true);
+                    config.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+                    Connection reader = DriverManager.getConnection(dburl, config.toProperties());
+                    if (slowQueryLog != null) {
+                        reader = slowQueryLog.wrap(reader);
+                    }
+
+                    Lease lease = new Lease(reader, new StatementCache(reader, statementCacheSize), false);
+                    allReaders.add(lease);
+                    readers.add(lease);
+                }
+            } catch (SQLException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the writer connection.
+     */
+    Connection writer() {
+        return writerLease.connection;
+    }
+
+    /**
+     * @return the statement cache of the writer connection.
+     */
+    StatementCache writerStatements() {
+        return writerLease.statements;
+    }
+
+    /**
+     * @return the number of read-only connections (0 if reads are served by the writer).
+     */
+    int readConnections() {
+        return allReaders.size();
+    }
+
+    /**
+     * @return the number of statements reused from the statement caches of all the connections.
+     */
+    long statementCacheHits() {
+        long hits = writerLease.statements.hits();
+        for (Lease lease : allReaders) {
+            hits += lease.statements.hits();
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of statements the statement caches of all the connections had to prepare.
+     */
+    long statementCacheMisses() {
+        long misses = writerLease.statements.misses();
+        for (Lease lease : allReaders) {
+            misses += lease.statements.misses();
+        }
+        return misses;
+    }
+
+    /**
+     * Borrow the writer connection, waiting until no other thread holds it.
+     *
+     * @return the writer lease
+     * @throws IllegalStateException if the calling thread holds a read-only lease
+     */
+    Lease write() {
+        Lease current = held.get();
+        if (current != null) {
+            if (!current.writer) {
+                throw new IllegalStateException("Cannot write while holding a read-only connection");
+            }
+            ++current.depth;
+            return current;
+        }
+
+        writeLock.lock();
+        return acquire(writerLease);
+    }
+
+    /**
+     * Borrow a connection for reading, waiting until one is free.
+     * Served by the writer if the pool has no read-only connections or the thread already holds the writer.
+     *
+     * @return a read lease
+     * @throws SQLException if interrupted while waiting
+     */
+    Lease read() throws SQLException {
+        Lease current = held.get();
+        if (current != null) {
+            ++current.depth;
+            return current;
+        }
+
+        if (allReaders.isEmpty()) {
+            return write();
+        }
+
+        try {
+            return acquire(readers.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection", e);
+        }
+    }
+
+    /**
+     * Close every connection and its cached statements.
+     *
+     * @throws SQLException the first error raised while closing; the remaining connections are still closed
+     */
+    @Override
+    public void close() throws SQLException {
+        SQLException error = null;
+
+        List<Lease> all = new ArrayList<>(allReaders);
+        all.add(writerLease);
+        for (Lease lease : all) {
+            try {
+                lease.statements.close();
+            } catch (SQLException e) {
+                error = error == null ? e : error;
+            }
+            try {
+                lease.connection.close();
+            } catch (SQLException e) {
+                error = error == null ? e : error;
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Helper method - mark the lease as held by the calling thread
+    private Lease acquire(Lease lease) {
+        lease.depth = 1;
+        held.set(lease);
+        return lease;
+    }
+
+    // Helper method - true if the url names an in-memory database, which can't be shared between connections
+    private static boolean isInMemory(String dburl) {
+        return dburl.contains(":memory:") || dburl.contains("mode=memory") || dburl.equals("jdbc:sqlite:");
+    }
+}
@@ -0,0 +1,148 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The gradebook queries: the best or latest submission of every user for an exercise, or of a user for every exercise,
+ * each answered by a single query.
+ * <p>
+ * The submissions are ranked per (user, exercise) with ROW_NUMBER, in the same order as the single-submission queries,
+ * and the top ranked ones are joined with their user and grades. The rows are sorted by submission, so the result is
+ * built in one forward pass over the result set.
+ * <p>
+ * With grades BLOBs (see {@link GradesBlobs}) each submission is a single row, ranked by the same queries (the best
+ * ones by the point totals stored with the BLOBs).
+ */
+final class Gradebook {
+
+    // Rank the submissions of each (user, exercise) latest first
+    private static final String LATEST_ORDER = "SubmissionTime DESC, SubmissionId DESC";
+
+    // Rank the submissions of each (user, exercise) by point total, the latest first among equal totals
+    private static final String BEST_ORDER = "TotalGrade DESC, SubmissionTime DESC, SubmissionId DESC";
+
+    // The submissions of an exercise / a user
+    private static final String BY_EXERCISE = "ExerciseId = ?";
+    private static final String BY_USER = "UserId = ?";
+
+    static final String LAST_BY_EXERCISE_SQL = gradebookSql(submissions(BY_EXERCISE), LATEST_ORDER);
+    static final String LAST_BY_USER_SQL = gradebookSql(submissions(BY_USER), LATEST_ORDER);
+    static final String BEST_BY_EXERCISE_SQL = gradebookSql(submissionsWithTotals(BY_EXERCISE), BEST_ORDER);
+    static final String BEST_BY_USER_SQL = gradebookSql(submissionsWithTotals(BY_USER), BEST_ORDER);
+
+    // The same, ranked by the materialized totals (see SubmissionTotals) instead of aggregating the grades
+    static final String MATERIALIZED_BEST_BY_EXERCISE_SQL = gradebookSql(materializedTotals(BY_EXERCISE), BEST_ORDER);
+    static final String MATERIALIZED_BEST_BY_USER_SQL = gradebookSql(materializedTotals(BY_USER), BEST_ORDER);
+
+    // The same, over grades BLOBs
+    static final String BLOB_LAST_BY_EXERCISE_SQL = blobGradebookSql(BY_EXERCISE, LATEST_ORDER);
+    static final String BLOB_LAST_BY_USER_SQL = blobGradebookSql(BY_USER, LATEST_ORDER);
+    static final String BLOB_BEST_BY_EXERCISE_SQL = blobGradebookSql(BY_EXERCISE, BEST_ORDER);
+    static final String BLOB_BEST_BY_USER_SQL = blobGradebookSql(BY_USER, BEST_ORDER);
+
+    private Gradebook() {
+    }
+
+    /**
+     * Execute a gradebook query and build its submissions.
+     * <p>
+     * The grades array of each submission has one entry per question of its exercise; grades of questions the
+     * exercise doesn't have are ignored. Submissions of exercises missing from {@code exercises} are skipped.
+     *
+     * @param stmt a gradebook query, with its parameter set
+     * @param exercises the exercises of the submissions, by ExerciseId
+     * @return the submissions, sorted by UserId and then ExerciseId
+     * @throws SQLException
+     */
+    static List<Submission> read(PreparedStatement stmt, Map<Integer, Exercise> exercises) throws SQLException {
+        List<Submission> submissions = new ArrayList<>();
+
+        try (ResultSet res = stmt.executeQuery()) {
+            SubmissionCursor cursor = new SubmissionCursor(res, exercises, false);
+            for (Submission submission = cursor.next(); submission != null; submission = cursor.next()) {
+                submissions.add(submission);
+            }
+        }
+        return submissions;
+    }
+
+    /**
+     * Execute a gradebook query over grades BLOBs and build its submissions, one per row.
+     * <p>
+     * The grades arrays and the skipped exercises are as in {@link #read(PreparedStatement, Map)}.
+     *
+     * @param stmt a BLOB gradebook query, with its parameter set
+     * @param exercises the exercises of the submissions, by ExerciseId
+     * @return the submissions, sorted by UserId and then ExerciseId
+     * @throws SQLException
+     */
+    static List<Submission> readBlobs(PreparedStatement stmt, Map<Integer, Exercise> exercises) throws SQLException {
+        List<Submission> submissions = new ArrayList<>();
+
+        try (ResultSet res = stmt.executeQuery()) {
+            while (res.next()) {
+                Exercise exercise = exercises.get(res.getInt("ExerciseId"));
+                if (exercise == null) {
+                    continue;
+                }
+                User user = new User(res.getString("Username"), res.getString("Firstname"), res.getString("Lastname"));
+                submissions.add(new Submission(res.getInt("SubmissionId"), user, exercise,
+                        new Date(res.getLong("SubmissionTime")), GradesBlobs.decode(res.getBytes("GradesBlob"), exercise)));
+            }
+        }
+        return submissions;
+    }
+
+    // Helper method - the plain submissions matching the filter
+    private static String submissions(String filter) {
+        return "SELECT SubmissionId, UserId, ExerciseId, SubmissionTime FROM Submission WHERE " + filter;
+    }
+
+    // Helper method - the submissions matching the filter with their point totals, TOTAL(Grade * Points)
+    private static String submissionsWithTotals(String filter) {
+        return "SELECT S.SubmissionId, S.UserId, S.ExerciseId, S.SubmissionTime, TOTAL(G.Grade * Q.Points) AS TotalGrade " +
+                "FROM Submission S " +
+                "LEFT JOIN QuestionGrade G ON G.SubmissionId = S.SubmissionId " +
+                "LEFT JOIN Question Q ON Q.ExerciseId = S.ExerciseId AND Q.QuestionId = G.QuestionId " +
+                "WHERE S." + filter + " " +
+                "GROUP BY S.SubmissionId";
+    }
+
+    // Helper method - the submissions matching the filter with their materialized point totals
+    private static String materializedTotals(String filter) {
+        return "SELECT SubmissionId, UserId, ExerciseId, SubmissionTime, TotalGrade FROM Submission WHERE " + filter;
+    }
+
+    // Helper method - the grades of the top ranked submission of each (user, exercise)
+    private static String gradebookSql(String submissions, String order) {
+        return "SELECT S.SubmissionId, S.ExerciseId, S.SubmissionTime, U.Username, U.Firstname, U.Lastname, G.QuestionId, G.Grade " +
+                "FROM (SELECT SubmissionId, UserId, ExerciseId, SubmissionTime, " +
+                "ROW_NUMBER() OVER (PARTITION BY UserId, ExerciseId ORDER BY " + order + ") AS SubmissionRank " +
+                "FROM (" + submissions + ")) S " +
+                "INNER JOIN User U ON U.UserId = S.UserId " +
+                "LEFT JOIN QuestionGrade G ON G.SubmissionId = S.SubmissionId " +
+                "WHERE S.SubmissionRank = 1 " + // Only the best / latest submission of each (user, exercise)
+                "ORDER BY S.UserId, S.ExerciseId, G.QuestionId";
+    }
+
+    // Helper method - the grades BLOB of the top ranked submission of each (user, exercise)
+    private static String blobGradebookSql(String filter, String order) {
+        return "SELECT S.SubmissionId, S.UserId, S.ExerciseId, S.SubmissionTime, S.GradesBlob, U.Username, U.Firstname, U.Lastname " +
+                "FROM (SELECT SubmissionId, UserId, ExerciseId, SubmissionTime, GradesBlob, " +
+                "ROW_NUMBER() OVER (PARTITION BY UserId, ExerciseId ORDER BY " + order + ") AS SubmissionRank " +
+                "FROM Submission WHERE " + filter + ") S " +
+                "INNER JOIN User U ON U.UserId = S.UserId " +
+                "WHERE S.SubmissionRank = 1 " +
+                "ORDER BY S.UserId, S.ExerciseId";
+    }
+}
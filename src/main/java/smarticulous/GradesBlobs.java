@@ -0,0 +1,371 @@
+package smarticulous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Grades BLOBs: an optional storage mode that keeps the question grades of a submission in its own row, as one
+ * BLOB of little-endian 32-bit floats, instead of one QuestionGrade row per question.
+ * <p>
+ * <table>
+ *   <caption><em>Column <strong>Submission.GradesBlob</strong></em></caption>
+ *   <tr><th>Column</th><th>Type</th></tr>
+ *   <tr><td>GradesBlob</td><td>Blob - questionGrades[i] (the grade of question i + 1) as 4 little-endian bytes each</td></tr>
+ *   <tr><td>TotalGrade</td><td>Real - the point total of the BLOB, TOTAL(Grade * Points) over the exercise's questions</td></tr>
+ * </table>
+ * <p>
+ * Once a database has the column, submissions are written with their grades BLOB and its point total and no
+ * QuestionGrade rows, and read back in a single row. SQL can't decode the BLOBs, so the total is computed when the
+ * BLOB is written (see {@link Totals}) and recomputed when a question is added; the best submissions are then ranked
+ * by the query. QuestionGrade rows found when the database is opened (older rows, rows written by other tools, or
+ * rows expanded by {@link #expand}) are folded into the BLOBs and removed, and missing totals are filled in.
+ */
+final class GradesBlobs {
+
+    private static final Logger logger = LoggerFactory.getLogger(GradesBlobs.class);
+
+    private static final int FLOAT_BYTES = 4;
+
+    // The latest submission of a user for an exercise, walking a Submission (UserId, ExerciseId, SubmissionTime) index backwards
+    static final String LAST_SUBMISSION_SQL =
+            "SELECT SubmissionId, SubmissionTime, GradesBlob FROM Submission WHERE UserId = ? AND ExerciseId = ? " +
+            "ORDER BY SubmissionTime DESC, SubmissionId DESC LIMIT 1";
+
+    // The submission of a user for an exercise with the highest point total (the latest among equal totals)
+    static final String BEST_SUBMISSION_SQL =
+            "SELECT SubmissionId, SubmissionTime, GradesBlob FROM Submission WHERE UserId = ? AND ExerciseId = ? " +
+            "ORDER BY TotalGrade DESC, SubmissionTime DESC, SubmissionId DESC LIMIT 1";
+
+    // The points of the questions of an exercise
+    static final String POINTS_SQL = "SELECT QuestionId, Points FROM Question WHERE ExerciseId = ? AND QuestionId >= 1";
+
+    /**
+     * Computes the point totals written along with the BLOBs, reading the points of each exercise once.
+     * The points must not change while it is in use, i.e. use it under the writer lease.
+     */
+    static final class Totals {
+
+        private final PreparedStatement pointsLookup;
+
+        /**
+         * ExerciseId to the points of its questions, points[i] being the points of question i + 1.
+         */
+        private final Map<Integer, int[]> points = new HashMap<>();
+
+        /**
+         * @param pointsLookup a prepared {@link #POINTS_SQL}
+         */
+        Totals(PreparedStatement pointsLookup) {
+            this.pointsLookup = pointsLookup;
+        }
+
+        /**
+         * @param exerciseId
+         * @param grades the grades, grades[i] being the grade of question i + 1 (null for none)
+         * @return the point total of the grades, as the SQL queries compute it from QuestionGrade rows.
+         * @throws SQLException
+         */
+        double total(int exerciseId, float[] grades) throws SQLException {
+            if (grades == null) {
+                return 0;
+            }
+            int[] questionPoints = points.get(exerciseId);
+            if (questionPoints == null) {
+                questionPoints = readPoints(exerciseId);
+                points.put(exerciseId, questionPoints);
+            }
+
+            double total = 0;
+            int questions = Math.min(grades.length, questionPoints.length);
+            for (int i = 0; i < questions; ++i) {
+                total += (double) grades[i] * questionPoints[i];
+            }
+            return total;
+        }
+
+        // Helper method - read the points of the questions of an exercise
+        private int[] readPoints(int exerciseId) throws SQLException {
+            int[] questionPoints = new int[0];
+            pointsLookup.setInt(1, exerciseId);
+            try (ResultSet res = pointsLookup.executeQuery()) {
+                while (res.next()) {
+                    int questionId = res.getInt("QuestionId");
+                    if (questionId > questionPoints.length) {
+                        questionPoints = Arrays.copyOf(questionPoints, questionId);
+                    }
+                    questionPoints[questionId - 1] = res.getInt("Points");
+                }
+            }
+            return questionPoints;
+        }
+    }
+
+    private GradesBlobs() {
+    }
+
+    /**
+     * @param db
+     * @return true if the database stores grades BLOBs.
+     * @throws SQLException
+     */
+    static boolean present(Connection db) throws SQLException {
+        return SchemaMigrations.hasColumn(db, "Submission", "GradesBlob");
+    }
+
+    /**
+     * Add the GradesBlob and TotalGrade columns to the database if it doesn't have them, fold every QuestionGrade row
+     * into the BLOBs, and compute the missing totals (e.g. of submissions written by other tools).
+     * <p>
+     * The rows are folded {@link SchemaMigrations#DEFAULT_CHUNK_SIZE} submissions per transaction, each chunk's rows
+     * deleted in the same transaction as its BLOBs are written, so a crash in between is resumed on the next open.
+     * The file only shrinks after a VACUUM.
+     *
+     * @param db
+     * @throws SQLException
+     */
+    static void ensure(Connection db) throws SQLException {
+        boolean autoCommit = db.getAutoCommit();
+        db.setAutoCommit(false);
+        try {
+            if (!present(db)) {
+                try (Statement st = db.createStatement()) {
+                    st.executeUpdate("ALTER TABLE Submission ADD COLUMN GradesBlob BLOB");
+                }
+                db.commit();
+            }
+            if (!SchemaMigrations.hasColumn(db, "Submission", "TotalGrade")) {
+                try (Statement st = db.createStatement()) {
+                    st.executeUpdate("ALTER TABLE Submission ADD COLUMN TotalGrade REAL");
+                }
+                db.commit();
+            }
+            fold(db, SchemaMigrations.DEFAULT_CHUNK_SIZE);
+            fillTotals(db, SchemaMigrations.DEFAULT_CHUNK_SIZE);
+        } catch (SQLException e) {
+            db.rollback();
+            throw e;
+        } finally {
+            db.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Write QuestionGrade rows for every question grade stored in a BLOB, e.g. for tools that read the normalized
+     * table. The rows are a snapshot: later submissions don't add rows, and the next open folds them back.
+     *
+     * @param db
+     * @return the number of rows written
+     * @throws SQLException
+     */
+    static int expand(Connection db) throws SQLException {
+        int rows = 0;
+        try (Statement st = db.createStatement();
+             ResultSet res = st.executeQuery("SELECT SubmissionId, GradesBlob FROM Submission WHERE GradesBlob IS NOT NULL");
+             PreparedStatement insert = db.prepareStatement("INSERT OR REPLACE INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (?, ?, ?)")) {
+            while (res.next()) {
+                float[] grades = decode(res.getBytes("GradesBlob"));
+                for (int i = 0; i < grades.length; ++i) {
+                    insert.setInt(1, res.getInt("SubmissionId"));
+                    insert.setInt(2, i + 1);
+                    insert.setFloat(3, grades[i]);
+                    insert.addBatch();
+                }
+                rows += grades.length;
+            }
+            insert.executeBatch();
+        }
+        return rows;
+    }
+
+    /**
+     * Execute a query for a submission of a user for an exercise (with its parameters set) and build it.
+     *
+     * @param user
+     * @param exercise
+     * @param stmt {@link #LAST_SUBMISSION_SQL} or {@link #BEST_SUBMISSION_SQL}
+     * @return the submission, or null if there are no rows.
+     * @throws SQLException
+     */
+    static Submission read(User user, Exercise exercise, PreparedStatement stmt) throws SQLException {
+        try (ResultSet res = stmt.executeQuery()) {
+            if (!res.next()) {
+                return null;
+            }
+            return new Submission(res.getInt("SubmissionId"), user, exercise,
+                    new Date(res.getLong("SubmissionTime")), decode(res.getBytes("GradesBlob"), exercise));
+        }
+    }
+
+    /**
+     * Recompute the point totals of the submissions of an exercise, e.g. after a question was added to it.
+     *
+     * @param statements the statement cache of the writer connection
+     * @param exerciseId
+     * @throws SQLException
+     */
+    static void refreshExercise(StatementCache statements, int exerciseId) throws SQLException {
+        Totals totals = new Totals(statements.prepare(POINTS_SQL));
+        PreparedStatement submissions = statements.prepare("SELECT SubmissionId, GradesBlob FROM Submission WHERE ExerciseId = ?");
+        submissions.setInt(1, exerciseId);
+
+        // Read them all before updating the rows being read
+        Map<Integer, Double> updated = new LinkedHashMap<>();
+        try (ResultSet res = submissions.executeQuery()) {
+            while (res.next()) {
+                updated.put(res.getInt("SubmissionId"), totals.total(exerciseId, decode(res.getBytes("GradesBlob"))));
+            }
+        }
+
+        PreparedStatement update = statements.prepare("UPDATE Submission SET TotalGrade = ? WHERE SubmissionId = ?");
+        for (Map.Entry<Integer, Double> entry : updated.entrySet()) {
+            update.setDouble(1, entry.getValue());
+            update.setInt(2, entry.getKey());
+            update.addBatch();
+        }
+        update.executeBatch();
+    }
+
+    /**
+     * @param grades
+     * @return the BLOB of the grades (null for no grades).
+     */
+    static byte[] encode(float[] grades) {
+        if (grades == null) {
+            return null;
+        }
+        ByteBuffer blob = ByteBuffer.allocate(grades.length * FLOAT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        blob.asFloatBuffer().put(grades);
+        return blob.array();
+    }
+
+    /**
+     * @param blob
+     * @return the grades of the BLOB (none for null).
+     */
+    static float[] decode(byte[] blob) {
+        if (blob == null) {
+            return new float[0];
+        }
+        float[] grades = new float[blob.length / FLOAT_BYTES];
+        ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(grades);
+        return grades;
+    }
+
+    /**
+     * Decode a BLOB into a grades array with one entry per question of the exercise: grades of questions the
+     * exercise doesn't have are ignored, and questions without a grade get 0.
+     *
+     * @param blob
+     * @param exercise
+     * @return the grades.
+     */
+    static float[] decode(byte[] blob, Exercise exercise) {
+        return Arrays.copyOf(decode(blob), exercise.questions.size());
+    }
+
+    // Helper method - fold the QuestionGrade rows into the BLOBs of their submissions, chunk by chunk
+    private static void fold(Connection db, int chunkSize) throws SQLException {
+        long maxSubmissionId;
+        try (Statement st = db.createStatement();
+             ResultSet res = st.executeQuery("SELECT COALESCE(MAX(SubmissionId), 0) FROM QuestionGrade")) {
+            maxSubmissionId = res.next() ? res.getLong(1) : 0;
+        }
+        if (maxSubmissionId == 0) {
+            return;
+        }
+        logger.info("Folding QuestionGrade rows into grades BLOBs");
+
+        try (PreparedStatement rows = db.prepareStatement(
+                "SELECT G.SubmissionId, G.QuestionId, G.Grade, S.ExerciseId, S.GradesBlob FROM QuestionGrade G " +
+                "INNER JOIN Submission S ON S.SubmissionId = G.SubmissionId " +
+                "WHERE G.SubmissionId > ? AND G.SubmissionId <= ? ORDER BY G.SubmissionId, G.QuestionId");
+             PreparedStatement update = db.prepareStatement("UPDATE Submission SET GradesBlob = ?, TotalGrade = ? WHERE SubmissionId = ?");
+             PreparedStatement points = db.prepareStatement(POINTS_SQL);
+             PreparedStatement delete = db.prepareStatement("DELETE FROM QuestionGrade WHERE SubmissionId > ? AND SubmissionId <= ?")) {
+            Totals totals = new Totals(points);
+            for (long from = 0; from < maxSubmissionId; from += chunkSize) {
+                rows.setLong(1, from);
+                rows.setLong(2, from + chunkSize);
+                try (ResultSet res = rows.executeQuery()) {
+                    boolean hasNext = res.next();
+                    while (hasNext) {
+                        // The rows of one submission, merged over the grades it already has
+                        int submissionId = res.getInt("SubmissionId");
+                        int exerciseId = res.getInt("ExerciseId");
+                        float[] grades = decode(res.getBytes("GradesBlob"));
+                        for (; hasNext && res.getInt("SubmissionId") == submissionId; hasNext = res.next()) {
+                            int questionId = res.getInt("QuestionId");
+                            if (questionId < 1) {
+                                continue;
+                            }
+                            if (questionId > grades.length) {
+                                grades = Arrays.copyOf(grades, questionId);
+                            }
+                            grades[questionId - 1] = res.getFloat("Grade");
+                        }
+                        update.setBytes(1, encode(grades));
+                        update.setDouble(2, totals.total(exerciseId, grades));
+                        update.setInt(3, submissionId);
+                        update.addBatch();
+                    }
+                }
+                update.executeBatch();
+
+                delete.setLong(1, from);
+                delete.setLong(2, from + chunkSize);
+                delete.executeUpdate();
+                db.commit();
+            }
+        }
+    }
+
+    // Helper method - compute the totals missing from Submission rows, chunk by chunk
+    private static void fillTotals(Connection db, int chunkSize) throws SQLException {
+        long maxSubmissionId;
+        try (Statement st = db.createStatement();
+             ResultSet res = st.executeQuery("SELECT COALESCE(MAX(SubmissionId), 0) FROM Submission WHERE TotalGrade IS NULL")) {
+            maxSubmissionId = res.next() ? res.getLong(1) : 0;
+        }
+        if (maxSubmissionId == 0) {
+            return;
+        }
+        logger.info("Computing the point totals of grades BLOBs");
+
+        try (PreparedStatement rows = db.prepareStatement(
+                "SELECT SubmissionId, ExerciseId, GradesBlob FROM Submission " +
+                "WHERE SubmissionId > ? AND SubmissionId <= ? AND TotalGrade IS NULL");
+             PreparedStatement update = db.prepareStatement("UPDATE Submission SET TotalGrade = ? WHERE SubmissionId = ?");
+             PreparedStatement points = db.prepareStatement(POINTS_SQL)) {
+            Totals totals = new Totals(points);
+            for (long from = 0; from < maxSubmissionId; from += chunkSize) {
+                rows.setLong(1, from);
+                rows.setLong(2, from + chunkSize);
+                try (ResultSet res = rows.executeQuery()) {
+                    while (res.next()) {
+                        update.setDouble(1, totals.total(res.getInt("ExerciseId"), decode(res.getBytes("GradesBlob"))));
+                        update.setInt(2, res.getInt("SubmissionId"));
+                        update.addBatch();
+                    }
+                }
+                update.executeBatch();
+                db.commit();
+            }
+        }
+    }
+}
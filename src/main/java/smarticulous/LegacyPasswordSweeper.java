@@ -0,0 +1,214 @@
+package smarticulous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Hashes the legacy plaintext passwords of the User table in the background, for the accounts that don't log in
+ * (logged in accounts are rehashed by {@link Smarticulous#verifyLogin}).
+ * <p>
+ * The table is walked in UserId order, {@code batchSize} legacy rows at a time. Each batch is hashed without holding
+ * the writer and then written in one short transaction. A row is only updated if it still holds the plaintext that
+ * was hashed, so a password changed meanwhile is never overwritten. The sweep is paced to {@code rowsPerSecond}.
+ */
+class LegacyPasswordSweeper implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LegacyPasswordSweeper.class);
+
+    // The next legacy (not hashed) passwords, in UserId order
+    private static final String LEGACY_PASSWORDS_SQL =
+            "SELECT UserId, Username, Password FROM User " +
+            "WHERE UserId > ? AND substr(Password, 1, " + PasswordHasher.PREFIX.length() + ") <> '" + PasswordHasher.PREFIX + "' " +
+            "ORDER BY UserId LIMIT ?";
+
+    /**
+     * A User row with a legacy password.
+     */
+    private static final class LegacyRow {
+        final int userId;
+        final String username;
+        final String password;
+
+        LegacyRow(int userId, String username, String password) {
+            this.userId = userId;
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final BoundedCache<String, Optional<String>> logins;
+    private final IntSupplier iterations;
+    private final int batchSize;
+    private final double rowsPerSecond;
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong rehashed = new AtomicLong();
+    private volatile boolean done = false;
+    private volatile Thread thread;
+
+    /**
+     * @param pool the connections to sweep through
+     * @param logins the login cache, invalidated for every rehashed user
+     * @param iterations the PBKDF2 iteration count of new hashes
+     * @param batchSize number of rows per transaction
+     * @param rowsPerSecond maximum number of rows hashed per second
+     */
+    LegacyPasswordSweeper(ConnectionPool pool, BoundedCache<String, Optional<String>> logins, IntSupplier iterations,
+                          int batchSize, double rowsPerSecond) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        if (!(rowsPerSecond > 0)) {
+            throw new IllegalArgumentException("rowsPerSecond must be positive: " + rowsPerSecond);
+        }
+        this.pool = pool;
+        this.logins = logins;
+        this.iterations = iterations;
+        this.batchSize = batchSize;
+        this.rowsPerSecond = rowsPerSecond;
+    }
+
+    /**
+     * Start sweeping on a new daemon thread.
+     */
+    void start() {
+        Thread t = new Thread(this, "smarticulous-password-sweeper");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stop sweeping and wait for the current batch to finish.
+     *
+     * @throws InterruptedException
+     */
+    void stop() throws InterruptedException {
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+            t.join();
+        }
+    }
+
+    /**
+     * @return the number of legacy rows read so far.
+     */
+    long scanned() {
+        return scanned.get();
+    }
+
+    /**
+     * @return the number of rows hashed so far (rows changed during their batch are read, but not hashed).
+     */
+    long rehashed() {
+        return rehashed.get();
+    }
+
+    /**
+     * @return true once no legacy rows were left.
+     */
+    boolean done() {
+        return done;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        int lastUserId = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<LegacyRow> batch = readBatch(lastUserId);
+                if (batch.isEmpty()) {
+                    done = true;
+                    logger.info("Legacy password sweep done: {} passwords hashed", rehashed.get());
+                    return;
+                }
+                lastUserId = batch.get(batch.size() - 1).userId;
+                scanned.addAndGet(batch.size());
+
+                // Hash without holding the writer
+                List<String> hashes = new ArrayList<>(batch.size());
+                for (LegacyRow row : batch) {
+                    hashes.add(PasswordHasher.hash(row.password, iterations.getAsInt()));
+                }
+                writeBatch(batch, hashes);
+
+                // Pace the sweep: wait until the rows so far are due at rowsPerSecond
+                long due = start + (long) (scanned.get() / rowsPerSecond * TimeUnit.SECONDS.toNanos(1));
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (SQLException | RuntimeException e) {
+            // Waiting for a connection fails with an SQLException when stopped
+            if (!Thread.currentThread().isInterrupted()) {
+                logger.warn("Legacy password sweep stopped after {} passwords", rehashed.get(), e);
+            }
+        }
+    }
+
+    // Helper method - the next legacy rows after the given UserId
+    private List<LegacyRow> readBatch(int afterUserId) throws SQLException {
+        List<LegacyRow> batch = new ArrayList<>();
+        try (ConnectionPool.Lease lease = pool.read()) {
+            PreparedStatement stmt = lease.prepare(LEGACY_PASSWORDS_SQL);
+            // Setting parameters to replace the "?" in the sql string.
+            stmt.setInt(1, afterUserId);
+            stmt.setInt(2, batchSize);
+            try (ResultSet res = stmt.executeQuery()) {
+                while (res.next()) {
+                    batch.add(new LegacyRow(res.getInt("UserId"), res.getString("Username"), res.getString("Password")));
+                }
+            }
+        }
+        return batch;
+    }
+
+    // Helper method - store the hashes of the rows that still hold the plaintext that was hashed, in one transaction
+    private void writeBatch(List<LegacyRow> batch, List<String> hashes) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.write()) {
+            Connection db = lease.connection();
+            db.setAutoCommit(false);
+            try {
+                PreparedStatement update = lease.prepare(Smarticulous.REHASH_PASSWORD_SQL);
+                for (int i = 0; i < batch.size(); ++i) {
+                    update.setString(1, hashes.get(i));
+                    update.setString(2, batch.get(i).username);
+                    update.setString(3, batch.get(i).password);
+                    update.addBatch();
+                }
+
+                int[] counts = update.executeBatch();
+                db.commit();
+
+                for (int i = 0; i < counts.length; ++i) {
+                    if (counts[i] > 0) {
+                        rehashed.incrementAndGet();
+                        logins.invalidate(batch.get(i).username);
+                    }
+                }
+            } catch (SQLException e) {
+                db.rollback();
+                throw e;
+            } finally {
+                db.setAutoCommit(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package smarticulous;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The default {@link MetricsRegistry}: keeps an {@link OperationMetrics} per operation in memory.
+ * <p>
+ * Recording a call is a map lookup and a few uncontended atomic increments, so it can stay on for every call.
+ */
+public class Metrics implements MetricsRegistry {
+
+    private final ConcurrentHashMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+
+    @Override
+    public void recordCall(String operation, long latencyNanos, boolean failed) {
+        operation(operation).recordCall(latencyNanos, failed);
+    }
+
+    @Override
+    public void recordRows(String operation, long rowsRead, long rowsWritten) {
+        operation(operation).recordRows(rowsRead, rowsWritten);
+    }
+
+    /**
+     * @param operation
+     * @return the metrics of the operation (empty ones if it was never called).
+     */
+    public OperationMetrics operation(String operation) {
+        // get first: computeIfAbsent may lock the bin even when the operation is there
+        OperationMetrics metrics = operations.get(operation);
+        if (metrics != null) {
+            return metrics;
+        }
+        return operations.computeIfAbsent(operation, name -> new OperationMetrics());
+    }
+
+    /**
+     * @return the metrics of every operation called so far, by operation name.
+     */
+    public Map<String, OperationMetrics> operations() {
+        return new TreeMap<>(operations);
+    }
+
+    /**
+     * Forget every operation recorded so far.
+     */
+    public void reset() {
+        operations.clear();
+    }
+}
@@ -0,0 +1,43 @@
+package smarticulous;
+
+/**
+ * Receives the measurements of a {@link Smarticulous} instance: one call per public method invocation, and the
+ * number of records (users, exercises, questions, submissions or grades) it read and wrote.
+ * <p>
+ * {@link Metrics} (the default) keeps them in memory; other implementations may forward them to a monitoring
+ * system. The methods are called on the hot path by many threads at once, so they must be thread-safe and cheap.
+ * Calls nested in another public method are attributed to the outer one.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * A registry that drops every measurement.
+     */
+    MetricsRegistry NONE = new MetricsRegistry() {
+        @Override
+        public void recordCall(String operation, long latencyNanos, boolean failed) {
+        }
+
+        @Override
+        public void recordRows(String operation, long rowsRead, long rowsWritten) {
+        }
+    };
+
+    /**
+     * Record a call of a public method.
+     *
+     * @param operation the method name
+     * @param latencyNanos how long the call took
+     * @param failed true if the call threw an exception
+     */
+    void recordCall(String operation, long latencyNanos, boolean failed);
+
+    /**
+     * Record the records read and written by a call of a public method.
+     *
+     * @param operation the method name
+     * @param rowsRead
+     * @param rowsWritten
+     */
+    void recordRows(String operation, long rowsRead, long rowsWritten);
+}
@@ -0,0 +1,116 @@
+package smarticulous;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The calls, errors, records and latencies of one {@link Smarticulous} operation, as recorded by {@link Metrics}.
+ * <p>
+ * The counters are striped ({@link LongAdder}), so threads recording at once don't contend; the getters read a
+ * live, not necessarily consistent, view. Latencies are reported in milliseconds, within 12.5% of the recorded
+ * values.
+ */
+public class OperationMetrics {
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    // Helper method - record a call
+    void recordCall(long latencyNanos, boolean failed) {
+        calls.increment();
+        if (failed) {
+            errors.increment();
+        }
+        latencies.record(latencyNanos);
+    }
+
+    // Helper method - record the records read and written by a call
+    void recordRows(long read, long written) {
+        if (read != 0) {
+            rowsRead.add(read);
+        }
+        if (written != 0) {
+            rowsWritten.add(written);
+        }
+    }
+
+    /**
+     * @return the number of calls, failed ones included.
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of calls that threw an exception.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the number of records (users, exercises, questions, submissions) the calls read.
+     */
+    public long getRowsRead() {
+        return rowsRead.sum();
+    }
+
+    /**
+     * @return the number of records the calls wrote.
+     */
+    public long getRowsWritten() {
+        return rowsWritten.sum();
+    }
+
+    /**
+     * @return the mean latency, in milliseconds.
+     */
+    public double getMeanMillis() {
+        return latencies.mean() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the median latency, in milliseconds.
+     */
+    public double getP50Millis() {
+        return percentileMillis(50);
+    }
+
+    /**
+     * @return the 99th percentile latency, in milliseconds.
+     */
+    public double getP99Millis() {
+        return percentileMillis(99);
+    }
+
+    /**
+     * @return the 99.9th percentile latency, in milliseconds.
+     */
+    public double getP999Millis() {
+        return percentileMillis(99.9);
+    }
+
+    /**
+     * @return the highest latency, in milliseconds.
+     */
+    public double getMaxMillis() {
+        return (double) latencies.max() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency below which the given percentage of the calls completed, in milliseconds.
+     */
+    public double percentileMillis(double percentile) {
+        return (double) latencies.valueAtPercentile(percentile) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("calls=%d errors=%d rowsRead=%d rowsWritten=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                getCalls(), getErrors(), getRowsRead(), getRowsWritten(), getMeanMillis(), getP50Millis(), getP99Millis(), getMaxMillis());
+    }
+}
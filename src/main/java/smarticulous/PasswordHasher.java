@@ -0,0 +1,119 @@
+package smarticulous;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes, using only the JDK.
+ * <p>
+ * A hash is stored in the Password column as {@code pbkdf2-sha256$<iterations>$<salt>$<hash>}, with the salt and
+ * hash in base64. The cost (iteration count) is part of every stored hash, so it can be raised for new passwords
+ * while the existing ones still verify. Password values not in this format are legacy plaintext passwords, which
+ * are still accepted (compared in constant time) until they are rehashed.
+ */
+final class PasswordHasher {
+
+    /**
+     * The prefix of every stored hash.
+     */
+    static final String PREFIX = "pbkdf2-sha256$";
+
+    /**
+     * Default PBKDF2 iteration count (the OWASP recommendation for PBKDF2-HMAC-SHA256).
+     */
+    static final int DEFAULT_ITERATIONS = 600000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private PasswordHasher() {
+    }
+
+    /**
+     * Hash a password with a new random salt.
+     *
+     * @param password
+     * @param iterations the PBKDF2 iteration count
+     * @return the value to store in the Password column.
+     */
+    static String hash(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$" +
+                base64.encodeToString(pbkdf2(password, salt, iterations, HASH_BYTES));
+    }
+
+    /**
+     * Check a password against a stored Password value (a hash, or a legacy plaintext password).
+     *
+     * @param password
+     * @param stored
+     * @return true if the password matches.
+     */
+    static boolean verify(String password, String stored) {
+        if (!isHash(stored)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[0]);
+            byte[] salt = Base64.getDecoder().decode(parts[1]);
+            byte[] expected = Base64.getDecoder().decode(parts[2]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, salt, iterations, expected.length));
+        } catch (IllegalArgumentException e) {
+            // A corrupt hash matches no password
+            return false;
+        }
+    }
+
+    /**
+     * @param stored a stored Password value
+     * @return true if it is a hash (and not a legacy plaintext password).
+     */
+    static boolean isHash(String stored) {
+        return stored.startsWith(PREFIX);
+    }
+
+    /**
+     * @param stored a stored Password value
+     * @return the iteration count of the hash, or 0 for a legacy plaintext password or a corrupt hash.
+     */
+    static int iterations(String stored) {
+        if (!isHash(stored)) {
+            return 0;
+        }
+        int end = stored.indexOf('$', PREFIX.length());
+        try {
+            return end < 0 ? 0 : Integer.parseInt(stored.substring(PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Helper method - the PBKDF2 key of a password
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int bytes) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bytes * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            // PBKDF2WithHmacSHA256 is available in every Java 8+ runtime
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
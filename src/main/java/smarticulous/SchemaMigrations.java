@@ -0,0 +1,297 @@
+package smarticulous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Versioned schema migrations for the {@link Smarticulous} database.
+ * <p>
+ * The schema version is kept in SQLite's {@code user_version} header field, so it needs no table of its own.
+ * {@link #migrate(Connection)} applies, in order, every migration newer than the database's version. Each migration
+ * runs in a transaction together with the update of the version, so a database is never left between versions.
+ * <p>
+ * A migration may commit part of its work before it is done (see {@link #updateInChunks}) so that a long backfill
+ * never holds the write lock for long; such migrations, like all others, must be safe to run again after a crash.
+ * SQLite can't build a single index incrementally, so every index is created by a migration of its own: the write
+ * lock is held for one index at a time, and in WAL mode readers are not blocked by the build at all.
+ */
+final class SchemaMigrations {
+
+    private static final Logger logger = LoggerFactory.getLogger(SchemaMigrations.class);
+
+    /**
+     * Number of rows updated per transaction by {@link #updateInChunks}.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 10000;
+
+    /**
+     * A single schema change.
+     */
+    interface Migration {
+        /**
+         * Apply the change. Called with auto-commit disabled; the caller commits.
+         *
+         * @param db
+         * @throws SQLException
+         */
+        void apply(Connection db) throws SQLException;
+    }
+
+    /**
+     * All the migrations, in order: migration i (0-based) brings the schema to version i + 1.
+     * Never edit or reorder a released migration - append a new one instead.
+     */
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            // 1: the five tables
+            db -> {
+                createTable(db, "User", "UserId INTEGER PRIMARY KEY, Username TEXT UNIQUE, Firstname TEXT, Lastname TEXT, Password TEXT");
+                createTable(db, "Exercise", "ExerciseId INTEGER PRIMARY KEY, Name TEXT, DueDate INTEGER");
+                createTable(db, "Question", "ExerciseId INTEGER, QuestionId INTEGER AUTO_INCREMENT, Name TEXT, Desc TEXT, Points INTEGER, PRIMARY KEY (ExerciseId, QuestionId)");
+                createTable(db, "Submission", "SubmissionId INTEGER PRIMARY KEY, UserId INTEGER, ExerciseId INTEGER, SubmissionTime INTEGER");
+                createTable(db, "QuestionGrade", "SubmissionId INTEGER, QuestionId INTEGER, Grade REAL, PRIMARY KEY (SubmissionId, QuestionId)");
+            },
+            // 2: the submission lookups. The primary keys already index User.Username (UNIQUE),
+            // Question by ExerciseId and QuestionGrade by SubmissionId, so those need no index of their own.
+            db -> createIndex(db, "Submission_UserId_ExerciseId_SubmissionTime", "Submission", "UserId, ExerciseId, SubmissionTime"),
+            // 3: the per-exercise gradebook lookups
+            db -> createIndex(db, "Submission_ExerciseId_UserId_SubmissionTime", "Submission", "ExerciseId, UserId, SubmissionTime"),
+            // 4: the QuestionIds of the questions added while they were left NULL
+            SchemaMigrations::numberQuestions
+    );
+
+    private SchemaMigrations() {
+    }
+
+    /**
+     * @return the schema version the code expects.
+     */
+    static int latestVersion() {
+        return MIGRATIONS.size();
+    }
+
+    /**
+     * Return the schema version recorded in the database (0 for a new or never migrated database).
+     *
+     * @param db
+     * @return the schema version
+     * @throws SQLException
+     */
+    static int currentVersion(Connection db) throws SQLException {
+        try (Statement st = db.createStatement();
+             ResultSet res = st.executeQuery("PRAGMA user_version")) {
+            return res.next() ? res.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Bring the database up to {@link #latestVersion()}.
+     *
+     * @param db
+     * @throws SQLException if a migration fails (its changes are rolled back), or if the database was written by
+     *                      a newer version of the code
+     */
+    static void migrate(Connection db) throws SQLException {
+        int version = currentVersion(db);
+        if (version > latestVersion()) {
+            throw new SQLException("The database schema version " + version + " is newer than the supported version " + latestVersion());
+        }
+
+        for (; version < latestVersion(); ++version) {
+            logger.info("Migrating the database schema to version {}", version + 1);
+            inTransaction(db, MIGRATIONS.get(version), version + 1);
+        }
+    }
+
+    /**
+     * Apply a migration and record the new schema version in the same transaction.
+     *
+     * @param db
+     * @param migration
+     * @param newVersion
+     * @throws SQLException
+     */
+    static void inTransaction(Connection db, Migration migration, int newVersion) throws SQLException {
+        boolean autoCommit = db.getAutoCommit();
+        db.setAutoCommit(false);
+        try {
+            migration.apply(db);
+            try (Statement st = db.createStatement()) {
+                st.executeUpdate("PRAGMA user_version = " + newVersion);
+            }
+            db.commit();
+        } catch (SQLException e) {
+            db.rollback();
+            throw e;
+        } finally {
+            db.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Run {@code UPDATE table SET assignments} over the whole table, {@code chunkSize} rows (by rowid) per
+     * transaction, so other writers get the lock between chunks. Must be called with auto-commit disabled.
+     * <p>
+     * The update must be idempotent: after a crash the migration starts over from the first chunk.
+     *
+     * @param db
+     * @param table the table to update
+     * @param assignments the SET clause, e.g. {@code "Total = (SELECT ...)"}
+     * @param chunkSize number of rowids per transaction
+     * @throws SQLException
+     */
+    static void updateInChunks(Connection db, String table, String assignments, int chunkSize) throws SQLException {
+        long maxRowId;
+        try (Statement st = db.createStatement();
+             ResultSet res = st.executeQuery("SELECT COALESCE(MAX(rowid), 0) FROM " + table)) {
+            maxRowId = res.next() ? res.getLong(1) : 0;
+        }
+
+        try (PreparedStatement update = db.prepareStatement(
+                "UPDATE " + table + " SET " + assignments + " WHERE rowid > ? AND rowid <= ?")) {
+            for (long from = 0; from < maxRowId; from += chunkSize) {
+                update.setLong(1, from);
+                update.setLong(2, from + chunkSize);
+                update.executeUpdate();
+                db.commit();
+            }
+        }
+    }
+
+    /**
+     * @param db
+     * @param tableName
+     * @return true if the database has a table with the given name.
+     * @throws SQLException
+     */
+    static boolean hasTable(Connection db, String tableName) throws SQLException {
+        try (PreparedStatement st = db.prepareStatement("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            st.setString(1, tableName);
+            try (ResultSet res = st.executeQuery()) {
+                return res.next();
+            }
+        }
+    }
+
+    /**
+     * @param db
+     * @param tableName
+     * @param columnName
+     * @return true if the given table has a column with the given name.
+     * @throws SQLException
+     */
+    static boolean hasColumn(Connection db, String tableName, String columnName) throws SQLException {
+        try (Statement st = db.createStatement();
+             ResultSet res = st.executeQuery("PRAGMA table_info(" + tableName + ")")) {
+            while (res.next()) {
+                if (res.getString("name").equalsIgnoreCase(columnName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param db
+     * @param tableName
+     * @param columnName
+     * @return true if the given column alone is UNIQUE (or the primary key) in the given table, so it can be the
+     * target of an {@code ON CONFLICT} clause.
+     * @throws SQLException
+     */
+    static boolean isUnique(Connection db, String tableName, String columnName) throws SQLException {
+        List<String> uniqueIndexes = new ArrayList<>();
+        try (Statement st = db.createStatement();
+             ResultSet res = st.executeQuery("PRAGMA index_list(" + tableName + ")")) {
+            while (res.next()) {
+                if (res.getInt("unique") != 0 && res.getInt("partial") == 0) {
+                    uniqueIndexes.add(res.getString("name"));
+                }
+            }
+        }
+
+        for (String index : uniqueIndexes) {
+            try (Statement st = db.createStatement();
+                 ResultSet res = st.executeQuery("PRAGMA index_info(\"" + index.replace("\"", "\"\"") + "\")")) {
+                // A single column index on the given column
+                if (res.next() && columnName.equalsIgnoreCase(res.getString("name")) && !res.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param db
+     * @param major
+     * @param minor
+     * @return true if the SQLite library behind the connection is at least version major.minor.
+     * @throws SQLException
+     */
+    static boolean sqliteVersionAtLeast(Connection db, int major, int minor) throws SQLException {
+        try (Statement st = db.createStatement();
+             ResultSet res = st.executeQuery("SELECT sqlite_version()")) {
+            String[] version = res.next() ? res.getString(1).split("\\.") : new String[0];
+            try {
+                int actualMajor = version.length > 0 ? Integer.parseInt(version[0]) : 0;
+                int actualMinor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+                return actualMajor > major || (actualMajor == major && actualMinor >= minor);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Number the questions of every exercise that has questions without a QuestionId, 1-based in the order they were
+     * added (by rowid), which is the order their grades are stored in.
+     * <p>
+     * Questions were stored with a NULL QuestionId until addQuestion started assigning them (AUTO_INCREMENT is not
+     * an SQLite keyword), and the ones added since were numbered from 1 regardless, so all the questions of such an
+     * exercise are renumbered. Without QuestionIds the point totals see no points, so materialized totals are
+     * recomputed. Safe to run again: once numbered, no exercise is renumbered.
+     *
+     * @param db
+     * @throws SQLException
+     */
+    static void numberQuestions(Connection db) throws SQLException {
+        try (Statement st = db.createStatement()) {
+            // The new ids are negated first, so they never collide with the old ones in the (ExerciseId, QuestionId) key
+            int renumbered = st.executeUpdate("UPDATE Question SET QuestionId = " +
+                    "-(SELECT COUNT(*) FROM Question Q WHERE Q.ExerciseId = Question.ExerciseId AND Q.rowid <= Question.rowid) " +
+                    "WHERE ExerciseId IN (SELECT ExerciseId FROM Question WHERE QuestionId IS NULL)");
+            st.executeUpdate("UPDATE Question SET QuestionId = -QuestionId WHERE QuestionId < 0");
+            if (renumbered > 0) {
+                logger.info("Numbered {} questions", renumbered);
+            }
+        }
+        // Also after a crash that left the questions numbered but the totals stale
+        if (SubmissionTotals.present(db)) {
+            SubmissionTotals.refreshAll(db);
+        }
+    }
+
+    // Helper method to create a table
+    static void createTable(Connection db, String tableName, String columns) throws SQLException {
+        try (Statement st = db.createStatement()) {
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS " + tableName + " (" + columns + ");");
+        }
+    }
+
+    // Helper method to create an index
+    static void createIndex(Connection db, String indexName, String tableName, String columns) throws SQLException {
+        try (Statement st = db.createStatement()) {
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS " + indexName + " ON " + tableName + " (" + columns + ");");
+        }
+    }
+}
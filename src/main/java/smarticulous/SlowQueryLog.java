@@ -0,0 +1,450 @@
+package smarticulous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Logs the statements that run longer than a threshold, with their SQL, bind values, row count and query plan.
+ * <p>
+ * {@link #wrap(Connection)} returns a proxy of a connection whose statements (prepared or not) time their
+ * executions. A query is timed from its execution until its result set is exhausted or closed, counting only the
+ * time spent in the driver, so a slowly consumed cursor doesn't look like a slow query. Only a {@code sampleRate}
+ * fraction of the executions is timed; the others go straight to the driver.
+ * <p>
+ * Values bound to a Password column (in a {@code Password = ?} comparison or assignment, or an INSERT column list)
+ * are logged as {@code <redacted>}. The plan is read with {@code EXPLAIN QUERY PLAN} on the same connection.
+ */
+class SlowQueryLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    /**
+     * Bind values longer than this are cut in the log.
+     */
+    static final int MAX_VALUE_LENGTH = 100;
+
+    static final String REDACTED = "<redacted>";
+
+    // A parameter compared with or assigned to the Password column
+    private static final Pattern PASSWORD_PARAMETER = Pattern.compile("(?i)\\bPassword\\s*(=|==|<>|!=)\\s*$");
+
+    // An INSERT with a column list and a VALUES list
+    private static final Pattern INSERT_VALUES = Pattern.compile(
+            "(?is)^\\s*(?:INSERT|REPLACE)\\s+(?:OR\\s+\\w+\\s+)?INTO\\s+\\S+\\s*\\(([^)]*)\\)\\s*VALUES\\s*\\(([^)]*)\\)");
+
+    // The statements EXPLAIN QUERY PLAN can describe
+    private static final Pattern EXPLAINABLE = Pattern.compile("(?is)^\\s*(SELECT|WITH|INSERT|REPLACE|UPDATE|DELETE)\\b.*");
+
+    private final long thresholdNanos;
+    private final double sampleRate;
+    private final Consumer<String> sink;
+
+    private final AtomicLong logged = new AtomicLong();
+
+    /**
+     * The parameters to redact of every SQL text seen so far.
+     */
+    private final Map<String, BitSet> redactions = new HashMap<>();
+
+    /**
+     * @param thresholdMillis statements taking at least this long are logged
+     * @param sampleRate the fraction of executions timed, between 0 and 1
+     */
+    SlowQueryLog(long thresholdMillis, double sampleRate) {
+        this(thresholdMillis, sampleRate, logger::warn);
+    }
+
+    /**
+     * @param thresholdMillis statements taking at least this long are logged
+     * @param sampleRate the fraction of executions timed, between 0 and 1
+     * @param sink where the log entries are written
+     */
+    SlowQueryLog(long thresholdMillis, double sampleRate, Consumer<String> sink) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException("thresholdMillis must not be negative: " + thresholdMillis);
+        }
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("sampleRate must be between 0 and 1: " + sampleRate);
+        }
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.sampleRate = sampleRate;
+        this.sink = sink;
+    }
+
+    /**
+     * @param connection
+     * @return a proxy of the connection whose statements are logged when slow.
+     */
+    Connection wrap(Connection connection) {
+        return proxy(Connection.class, new ConnectionHandler(connection));
+    }
+
+    /**
+     * @return the number of statements logged so far.
+     */
+    long logged() {
+        return logged.get();
+    }
+
+    /**
+     * The connection proxy: wraps the statements it creates.
+     */
+    private final class ConnectionHandler implements InvocationHandler {
+        private final Connection connection;
+
+        ConnectionHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = call(connection, method, args);
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return proxy(PreparedStatement.class, new StatementHandler(connection, (Statement) result, (String) args[0]));
+                case "createStatement":
+                    return proxy(Statement.class, new StatementHandler(connection, (Statement) result, null));
+                default:
+                    return result;
+            }
+        }
+    }
+
+    /**
+     * The statement proxy: remembers the bind values and times the executions.
+     */
+    private final class StatementHandler implements InvocationHandler {
+        private final Connection connection;
+        private final Statement statement;
+
+        /**
+         * The SQL of a prepared statement, null for a plain statement (whose SQL comes with each execution).
+         */
+        private final String sql;
+
+        /**
+         * The values bound since the parameters were last cleared, by parameter index (0 is unused).
+         */
+        private final List<Object> binds = new ArrayList<>();
+
+        private int batchSize = 0;
+
+        StatementHandler(Connection connection, Statement statement, String sql) {
+            this.connection = connection;
+            this.statement = statement;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer
+                    && method.getDeclaringClass() == PreparedStatement.class) {
+                bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+            } else if (name.equals("clearParameters")) {
+                binds.clear();
+            } else if (name.equals("addBatch")) {
+                ++batchSize;
+            } else if (name.equals("clearBatch")) {
+                batchSize = 0;
+            } else if (name.startsWith("execute")) {
+                // executeBatch and executeLargeBatch run (and clear) the batch
+                int batch = batchSize;
+                if (name.endsWith("Batch")) {
+                    batchSize = 0;
+                }
+                if (!sampled()) {
+                    return call(statement, method, args);
+                }
+                return name.equals("executeQuery") ? executeQuery(method, args) : execute(method, args, batch);
+            }
+            return call(statement, method, args);
+        }
+
+        // Helper method - time a query, and keep timing its result set until it is done
+        private ResultSet executeQuery(Method method, Object[] args) throws Throwable {
+            String executed = sql(args);
+            List<Object> values = new ArrayList<>(binds);
+            long start = System.nanoTime();
+            ResultSet res = (ResultSet) call(statement, method, args);
+            return proxy(ResultSet.class, new ResultSetHandler(connection, res, executed, values, System.nanoTime() - start));
+        }
+
+        // Helper method - time an update, a batch or a statement of any kind
+        private Object execute(Method method, Object[] args, int batch) throws Throwable {
+            String executed = sql(args);
+            long start = System.nanoTime();
+            Object result = call(statement, method, args);
+            long elapsed = System.nanoTime() - start;
+
+            if (elapsed >= thresholdNanos) {
+                report(connection, executed, binds, rows(result), batch, elapsed);
+            }
+            return result;
+        }
+
+        // Helper method - the SQL of an execution: the prepared SQL, or the SQL passed to a plain statement
+        private String sql(Object[] args) {
+            if (sql != null) {
+                return sql;
+            }
+            return args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : "<batch>";
+        }
+
+        // Helper method - remember the value bound to a parameter
+        private void bind(int index, Object value) {
+            while (binds.size() <= index) {
+                binds.add(null);
+            }
+            binds.set(index, value);
+        }
+    }
+
+    /**
+     * The result set proxy of a timed query: counts its rows and adds up the time spent fetching them.
+     */
+    private final class ResultSetHandler implements InvocationHandler {
+        private final Connection connection;
+        private final ResultSet res;
+        private final String sql;
+        private final List<Object> binds;
+
+        private long elapsed;
+        private long rows = 0;
+        private boolean done = false;
+
+        ResultSetHandler(Connection connection, ResultSet res, String sql, List<Object> binds, long elapsed) {
+            this.connection = connection;
+            this.res = res;
+            this.sql = sql;
+            this.binds = binds;
+            this.elapsed = elapsed;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next": {
+                    long start = System.nanoTime();
+                    boolean hasRow = (Boolean) call(res, method, args);
+                    elapsed += System.nanoTime() - start;
+                    if (hasRow) {
+                        ++rows;
+                    } else {
+                        finish();
+                    }
+                    return hasRow;
+                }
+                case "close": {
+                    Object result = call(res, method, args);
+                    finish();
+                    return result;
+                }
+                default:
+                    return call(res, method, args);
+            }
+        }
+
+        // Helper method - report the query once, when its rows are exhausted or the result set is closed
+        private void finish() {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (elapsed >= thresholdNanos) {
+                report(connection, sql, binds, rows, 0, elapsed);
+            }
+        }
+    }
+
+    // Helper method - true if this execution is timed
+    private boolean sampled() {
+        return sampleRate >= 1 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    // Helper method - log a slow statement
+    private void report(Connection connection, String sql, List<Object> binds, long rows, int batchSize, long elapsedNanos) {
+        logged.incrementAndGet();
+        StringBuilder entry = new StringBuilder();
+        entry.append(String.format(Locale.ROOT, "Slow query (%.3f ms, %s rows%s): %s",
+                elapsedNanos / 1e6, rows < 0 ? "?" : Long.toString(rows),
+                batchSize > 0 ? ", batch of " + batchSize : "", sql));
+        entry.append("\n  binds: ").append(formatBinds(sql, binds));
+        entry.append("\n  plan:").append(plan(connection, sql, binds));
+        sink.accept(entry.toString());
+    }
+
+    // Helper method - the bind values, by parameter index, with the Password values redacted
+    String formatBinds(String sql, List<Object> binds) {
+        BitSet redacted = redactedParameters(sql);
+        StringBuilder out = new StringBuilder("[");
+        for (int i = 1; i < binds.size(); ++i) {
+            if (i > 1) {
+                out.append(", ");
+            }
+            out.append(i).append('=').append(redacted.get(i) ? REDACTED : formatValue(binds.get(i)));
+        }
+        return out.append(']').toString();
+    }
+
+    // Helper method - a bind value as it appears in the log
+    private static String formatValue(Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+        if (value instanceof byte[]) {
+            return "<" + ((byte[]) value).length + " bytes>";
+        }
+        String text = value.toString();
+        if (text.length() > MAX_VALUE_LENGTH) {
+            text = text.substring(0, MAX_VALUE_LENGTH) + "...";
+        }
+        return value instanceof String ? "'" + text + "'" : text;
+    }
+
+    // Helper method - the indexes of the parameters bound to the Password column (cached per SQL text)
+    BitSet redactedParameters(String sql) {
+        synchronized (redactions) {
+            BitSet cached = redactions.get(sql);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        BitSet redacted = new BitSet();
+        // The offset of every parameter in the SQL, by index
+        List<Integer> offsets = new ArrayList<>();
+        offsets.add(-1);
+        boolean quoted = false;
+        for (int i = 0; i < sql.length(); ++i) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == '?' && !quoted) {
+                offsets.add(i);
+                if (PASSWORD_PARAMETER.matcher(sql.substring(0, i)).find()) {
+                    redacted.set(offsets.size() - 1);
+                }
+            }
+        }
+
+        // The parameters of the VALUES list matching a Password column of the column list
+        Matcher insert = INSERT_VALUES.matcher(sql);
+        if (insert.find()) {
+            String[] columns = insert.group(1).split(",");
+            String[] values = insert.group(2).split(",");
+            int valuesOffset = insert.start(2);
+            for (int column = 0; column < columns.length && column < values.length; ++column) {
+                if (columns[column].trim().equalsIgnoreCase("Password") && values[column].trim().equals("?")) {
+                    int index = offsets.indexOf(valuesOffset + indexOfValue(values, column));
+                    if (index > 0) {
+                        redacted.set(index);
+                    }
+                }
+            }
+        }
+
+        synchronized (redactions) {
+            redactions.put(sql, redacted);
+        }
+        return redacted;
+    }
+
+    // Helper method - the offset of the "?" of a value within the VALUES list
+    private static int indexOfValue(String[] values, int column) {
+        int offset = 0;
+        for (int i = 0; i < column; ++i) {
+            offset += values[i].length() + 1; // The value and its comma
+        }
+        return offset + values[column].indexOf('?');
+    }
+
+    // Helper method - the EXPLAIN QUERY PLAN of a statement, one indented line per step
+    private static String plan(Connection connection, String sql, List<Object> binds) {
+        if (!EXPLAINABLE.matcher(sql).matches()) {
+            return " (none)";
+        }
+        StringBuilder out = new StringBuilder();
+        try (PreparedStatement explain = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            // Setting parameters to replace the "?" in the sql string.
+            for (int i = 1; i < binds.size(); ++i) {
+                explain.setObject(i, binds.get(i));
+            }
+
+            // The depth of every step, so the steps are indented under their parents
+            Map<Integer, Integer> depths = new HashMap<>();
+            try (ResultSet res = explain.executeQuery()) {
+                while (res.next()) {
+                    int depth = depths.getOrDefault(res.getInt("parent"), 0) + 1;
+                    depths.put(res.getInt("id"), depth);
+                    out.append('\n');
+                    for (int i = 0; i <= depth; ++i) {
+                        out.append("  ");
+                    }
+                    out.append(res.getString("detail"));
+                }
+            }
+        } catch (SQLException e) {
+            return " (unavailable: " + e.getMessage() + ")";
+        }
+        return out.toString();
+    }
+
+    // Helper method - the number of rows of an execution result (-1 if unknown)
+    private static long rows(Object result) {
+        if (result instanceof Integer || result instanceof Long) {
+            return ((Number) result).longValue();
+        }
+        if (result instanceof int[]) {
+            long rows = 0;
+            for (int count : (int[]) result) {
+                rows += Math.max(0, count);
+            }
+            return rows;
+        }
+        if (result instanceof long[]) {
+            long rows = 0;
+            for (long count : (long[]) result) {
+                rows += Math.max(0, count);
+            }
+            return rows;
+        }
+        return -1;
+    }
+
+    // Helper method - call the method on the wrapped object, throwing what it throws
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Helper method - a proxy of the given interface
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(SlowQueryLog.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+}
@@ -1,406 +1,1859 @@
 package smarticulous;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import smarticulous.db.Exercise;
 import smarticulous.db.Submission;
 import smarticulous.db.User;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The Smarticulous class, implementing a grading system.
  */
 public class Smarticulous {
 
+    private static final Logger logger = LoggerFactory.getLogger(Smarticulous.class);
+
+    /**
+     * What {@link #submitAsync(Submission)} does when the submission queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the queue has room.
+         */
+        BLOCK,
+        /**
+         * Throw a {@link RejectedExecutionException}.
+         */
+        FAIL_FAST,
+        /**
+         * Drop the submission: the returned future fails with a {@link RejectedExecutionException}.
+         */
+        SHED
+    }
+
+    /**
+     * A {@link SQLException} thrown while a submission stream (see {@link #streamSubmissions(Exercise)}) is consumed,
+     * where checked exceptions can't be thrown. The counterpart of {@link java.io.UncheckedIOException}.
+     */
+    public static class UncheckedSQLException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public UncheckedSQLException(SQLException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized SQLException getCause() {
+            return (SQLException) super.getCause();
+        }
+    }
+
+    /**
+     * Number of submissions written per transaction by the bulk {@code storeSubmissions} methods.
+     */
+    public static final int DEFAULT_COMMIT_INTERVAL = 1000;
+
+    /**
+     * Default maximum number of prepared statements kept open per connection.
+     */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    /**
+     * Default maximum number of exercises kept in the exercise cache.
+     */
+    public static final int DEFAULT_EXERCISE_CACHE_SIZE = 1024;
+
+    /**
+     * Default maximum number of usernames kept in the login cache.
+     */
+    public static final int DEFAULT_LOGIN_CACHE_SIZE = 10000;
+
+    /**
+     * Default time (in milliseconds) an unknown username is remembered by the login cache.
+     */
+    public static final long DEFAULT_UNKNOWN_USER_TTL_MILLIS = 5000;
+
+    /**
+     * Default PBKDF2 iteration count of new password hashes.
+     */
+    public static final int DEFAULT_PASSWORD_ITERATIONS = PasswordHasher.DEFAULT_ITERATIONS;
+
+    /**
+     * Maximum number of password verifications waiting for a verifier thread.
+     */
+    public static final int PASSWORD_VERIFIER_QUEUE_SIZE = 1024;
+
+    /**
+     * Maximum time (in milliseconds) {@link #verifyLogin} waits for room in the password verifier queue.
+     */
+    public static final long PASSWORD_VERIFIER_WAIT_MILLIS = 10000;
+
+    /**
+     * Default maximum number of submissions waiting to be written by {@link #submitAsync(Submission)}.
+     */
+    public static final int DEFAULT_SUBMISSION_QUEUE_CAPACITY = 10000;
+
+    /**
+     * Default number of rows the submission streams ask the driver to fetch at a time.
+     */
+    public static final int DEFAULT_STREAM_FETCH_SIZE = 1000;
+
+    /**
+     * The connection to the underlying DB.
+     * <p>
+     * null if the db has not yet been opened.
+     */
+    Connection db;
+
+    /**
+     * The connections to the underlying DB: {@link #db} as the writer plus any read-only connections.
+     * <p>
+     * null if the db has not yet been opened.
+     */
+    ConnectionPool pool;
+
+    /**
+     * Maximum number of prepared statements kept open per connection.
+     */
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+
+    /**
+     * Number of read-only connections opened next to the writer connection.
+     */
+    private int readConnections = 0;
+
+    /**
+     * true if {@link #openDB(String)} should add materialized submission totals to the database.
+     */
+    private boolean materializeTotals = false;
+
+    /**
+     * true if the open database has materialized submission totals, which every write must keep up to date.
+     */
+    boolean maintainTotals = false;
+
+    /**
+     * true if {@link #openDB(String)} should switch the database to grades BLOBs.
+     */
+    private boolean storeGradesBlobs = false;
+
+    /**
+     * true if the open database stores the question grades as BLOBs in the Submission rows (see {@link GradesBlobs}).
+     */
+    boolean gradesBlobs = false;
+
+    /**
+     * true if users are added or updated by a single upsert statement: the SQLite library supports
+     * {@code ON CONFLICT ... RETURNING} (3.35+) and Username is UNIQUE in the open database.
+     */
+    boolean upsertUsers = false;
+
+    /**
+     * Maximum number of exercises kept in the exercise cache.
+     */
+    private int exerciseCacheSize = DEFAULT_EXERCISE_CACHE_SIZE;
+
+    /**
+     * The exercises (with their questions) read so far, by ExerciseId.
+     * <p>
+     * null if the db has not yet been opened.
+     */
+    BoundedCache<Integer, Exercise> exercises;
+
+    /**
+     * Maximum number of usernames kept in the login cache.
+     */
+    private int loginCacheSize = DEFAULT_LOGIN_CACHE_SIZE;
+
+    /**
+     * Time (in milliseconds) an unknown username is remembered by the login cache.
+     */
+    private long unknownUserTtlMillis = DEFAULT_UNKNOWN_USER_TTL_MILLIS;
+
+    /**
+     * The stored password of every username checked so far, or an empty value if there is no such user.
+     * <p>
+     * null if the db has not yet been opened.
+     */
+    BoundedCache<String, Optional<String>> logins;
+
+    /**
+     * The UserId of every username resolved so far, shared by the submission writes and queries.
+     * <p>
+     * null if the db has not yet been opened.
+     */
+    UserIdMap userIds;
+
+    /**
+     * PBKDF2 iteration count of new password hashes.
+     */
+    private volatile int passwordIterations = DEFAULT_PASSWORD_ITERATIONS;
+
+    /**
+     * Number of threads verifying password hashes.
+     */
+    private int passwordVerifierThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The threads verifying password hashes, so the hashing can't take over the callers' threads.
+     * <p>
+     * null if the db has not yet been opened.
+     */
+    ExecutorService passwordVerifier;
+
+    /**
+     * One permit per verification that may be queued or running on {@link #passwordVerifier}, so a verification
+     * holding a permit always finds room in its queue.
+     * <p>
+     * null if the db has not yet been opened.
+     */
+    private Semaphore passwordVerifierSlots;
+
+    /**
+     * The single thread storing the passwords rehashed after a login, so the verifier threads never wait for the
+     * writer.
+     * <p>
+     * null if the db has not yet been opened.
+     */
+    ExecutorService passwordWriter;
+
+    /**
+     * The background hashing of legacy passwords, if started.
+     */
+    LegacyPasswordSweeper passwordSweeper;
+
+    /**
+     * Number of passwords rehashed after a successful login.
+     */
+    private final AtomicLong passwordsRehashedOnLogin = new AtomicLong();
+
+    /**
+     * Maximum number of submissions waiting to be written by {@link #submitAsync(Submission)}.
+     */
+    private int submissionQueueCapacity = DEFAULT_SUBMISSION_QUEUE_CAPACITY;
+
+    /**
+     * What {@link #submitAsync(Submission)} does when the submission queue is full.
+     */
+    private OverflowPolicy submissionOverflowPolicy = OverflowPolicy.BLOCK;
+
+    /**
+     * Number of rows the submission streams ask the driver to fetch at a time.
+     */
+    private int streamFetchSize = DEFAULT_STREAM_FETCH_SIZE;
+
+    /**
+     * The writer thread of {@link #submitAsync(Submission)}, started by its first call.
+     * <p>
+     * null if no submission was queued since the db was opened.
+     */
+    private AsyncSubmissionWriter submissionWriter;
+
+    /**
+     * The file of the submission journal, or null to write submissions without one.
+     */
+    private String submissionJournalPath;
+
+    /**
+     * The journal of the submissions queued by {@link #submitAsync(Submission)}.
+     * <p>
+     * null if the db has not yet been opened, or no journal was set.
+     */
+    SubmissionJournal journal;
+
+    /**
+     * Statements taking at least this long (in milliseconds) are logged, or none if negative.
+     */
+    private long slowQueryThresholdMillis = -1;
+
+    /**
+     * The fraction of statement executions timed by the slow-query log.
+     */
+    private double slowQuerySampleRate = 1;
+
+    /**
+     * The slow-query log of the open database.
+     * <p>
+     * null if the db has not yet been opened, or the slow-query log is off.
+     */
+    SlowQueryLog slowQueryLog;
+
+    /**
+     * Where the calls of the public methods are recorded.
+     */
+    private volatile MetricsRegistry metrics = new Metrics();
+
+    /**
+     * The name of the metrics MBean registered by {@link #openDB(String)}, or null to register none.
+     */
+    private String jmxName;
+
+    /**
+     * The metrics MBean registered for the open database.
+     * <p>
+     * null if the db has not yet been opened, or no JMX name was set.
+     */
+    private ObjectName registeredMBean;
+
+    /**
+     * Set the maximum number of prepared statements kept open per connection.
+     * Takes effect the next time the database is opened.
+     *
+     * @param statementCacheSize
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        if (statementCacheSize <= 0) {
+            throw new IllegalArgumentException("statementCacheSize must be positive: " + statementCacheSize);
+        }
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Set the number of read-only connections opened by {@link #openDB(String)}.
+     * <p>
+     * With 0 (the default) a single connection serves every call. With a positive number the database is switched
+     * to WAL journaling, and {@link #verifyLogin}, {@link #loadExercises} and the submission queries run on the
+     * read-only connections in parallel while writes go through the single writer connection.
+     * Either way, a {@link Smarticulous} instance may be shared by many threads.
+     * In-memory databases can't be shared between connections, so they always use a single connection.
+     * Takes effect the next time the database is opened.
+     *
+     * @param readConnections
+     */
+    public void setReadConnections(int readConnections) {
+        if (readConnections < 0) {
+            throw new IllegalArgumentException("readConnections must not be negative: " + readConnections);
+        }
+        this.readConnections = readConnections;
+    }
+
+    /**
+     * Set whether {@link #openDB(String)} adds materialized submission totals to the database.
+     * <p>
+     * The totals add a TotalGrade column to Submission and a SubmissionSummary table pointing at the best and latest
+     * submission of every (user, exercise) pair (see {@link SubmissionTotals}). They are filled in for the existing
+     * submissions when the database is opened, kept up to date by every write, and turn {@link #getBestSubmission}
+     * and {@link #getLastSubmission} into primary-key lookups. Once a database has them they are maintained even if
+     * this is not set again. Takes effect the next time the database is opened.
+     *
+     * @param materializeTotals
+     */
+    public void setMaterializeTotals(boolean materializeTotals) {
+        this.materializeTotals = materializeTotals;
+    }
+
+    /**
+     * Set whether {@link #openDB(String)} switches the database to grades BLOBs.
+     * <p>
+     * With grades BLOBs, the question grades of a submission are stored in its Submission row as one BLOB of
+     * little-endian floats instead of one QuestionGrade row per question (see {@link GradesBlobs}), which makes the
+     * database several times smaller and reads a submission's grades in one row. The existing QuestionGrade rows are
+     * moved into the BLOBs when the database is opened; {@link #expandQuestionGrades()} writes them back on demand.
+     * Once a database has grades BLOBs they are used even if this is not set again. Grades BLOBs can't be combined
+     * with materialized totals (see {@link #setMaterializeTotals(boolean)}). Takes effect the next time the
+     * database is opened.
+     *
+     * @param storeGradesBlobs
+     */
+    public void setGradesBlobs(boolean storeGradesBlobs) {
+        this.storeGradesBlobs = storeGradesBlobs;
+    }
+
+    /**
+     * Set the maximum number of exercises kept in the exercise cache (see {@link #getExercise(int)}).
+     * Takes effect the next time the database is opened.
+     *
+     * @param exerciseCacheSize
+     */
+    public void setExerciseCacheSize(int exerciseCacheSize) {
+        if (exerciseCacheSize <= 0) {
+            throw new IllegalArgumentException("exerciseCacheSize must be positive: " + exerciseCacheSize);
+        }
+        this.exerciseCacheSize = exerciseCacheSize;
+    }
+
+    /**
+     * Set the maximum number of usernames kept in the login cache (see {@link #verifyLogin(String, String)}).
+     * Takes effect the next time the database is opened.
+     *
+     * @param loginCacheSize
+     */
+    public void setLoginCacheSize(int loginCacheSize) {
+        if (loginCacheSize <= 0) {
+            throw new IllegalArgumentException("loginCacheSize must be positive: " + loginCacheSize);
+        }
+        this.loginCacheSize = loginCacheSize;
+    }
+
+    /**
+     * Set how long (in milliseconds) {@link #verifyLogin(String, String)} remembers that a username doesn't exist.
+     * 0 disables caching unknown usernames.
+     *
+     * @param unknownUserTtlMillis
+     */
+    public void setUnknownUserTtlMillis(long unknownUserTtlMillis) {
+        if (unknownUserTtlMillis < 0) {
+            throw new IllegalArgumentException("unknownUserTtlMillis must not be negative: " + unknownUserTtlMillis);
+        }
+        this.unknownUserTtlMillis = unknownUserTtlMillis;
+    }
+
+    /**
+     * Set the PBKDF2 iteration count used to hash new passwords (see {@link #addOrUpdateUser}).
+     * <p>
+     * Every stored hash records its own iteration count, so existing passwords keep verifying after a change.
+     *
+     * @param passwordIterations
+     */
+    public void setPasswordIterations(int passwordIterations) {
+        if (passwordIterations <= 0) {
+            throw new IllegalArgumentException("passwordIterations must be positive: " + passwordIterations);
+        }
+        this.passwordIterations = passwordIterations;
+    }
+
+    /**
+     * Set the number of threads verifying password hashes (see {@link #verifyLoginAsync(String, String)}).
+     * Takes effect the next time the database is opened.
+     *
+     * @param passwordVerifierThreads
+     */
+    public void setPasswordVerifierThreads(int passwordVerifierThreads) {
+        if (passwordVerifierThreads <= 0) {
+            throw new IllegalArgumentException("passwordVerifierThreads must be positive: " + passwordVerifierThreads);
+        }
+        this.passwordVerifierThreads = passwordVerifierThreads;
+    }
+
+    /**
+     * Set the maximum number of submissions waiting to be written by {@link #submitAsync(Submission)}.
+     * Takes effect the next time the database is opened.
+     *
+     * @param submissionQueueCapacity
+     */
+    public void setSubmissionQueueCapacity(int submissionQueueCapacity) {
+        if (submissionQueueCapacity <= 0) {
+            throw new IllegalArgumentException("submissionQueueCapacity must be positive: " + submissionQueueCapacity);
+        }
+        this.submissionQueueCapacity = submissionQueueCapacity;
+    }
+
+    /**
+     * Set what {@link #submitAsync(Submission)} does when the submission queue is full (by default, it blocks).
+     * Takes effect the next time the database is opened.
+     *
+     * @param submissionOverflowPolicy
+     */
+    public void setSubmissionOverflowPolicy(OverflowPolicy submissionOverflowPolicy) {
+        if (submissionOverflowPolicy == null) {
+            throw new IllegalArgumentException("submissionOverflowPolicy must not be null");
+        }
+        this.submissionOverflowPolicy = submissionOverflowPolicy;
+    }
+
+    /**
+     * Set the number of rows the submission streams (see {@link #streamSubmissions(Exercise)}) ask the driver to
+     * fetch at a time. Takes effect for the streams opened from now on.
+     *
+     * @param streamFetchSize
+     */
+    public void setStreamFetchSize(int streamFetchSize) {
+        if (streamFetchSize <= 0) {
+            throw new IllegalArgumentException("streamFetchSize must be positive: " + streamFetchSize);
+        }
+        this.streamFetchSize = streamFetchSize;
+    }
+
+    /**
+     * Set the file of the submission journal, or null (the default) for none.
+     * <p>
+     * With a journal, {@link #submitAsync(Submission)} appends each submission to the journal and acknowledges it
+     * once the journal is on disk, without waiting for the database commit. Submissions journaled but not committed
+     * when the process stops are written by the next {@link #openDB(String)}. Takes effect the next time the
+     * database is opened.
+     *
+     * @param submissionJournalPath
+     */
+    public void setSubmissionJournal(String submissionJournalPath) {
+        this.submissionJournalPath = submissionJournalPath;
+    }
+
+    /**
+     * Turn on the slow-query log: every statement {@link Smarticulous} runs that takes at least
+     * {@code thresholdMillis} is logged as a warning of the {@code smarticulous.SlowQueryLog} logger, with its SQL,
+     * its bind values (values bound to the Password column are redacted), its row count and its
+     * {@code EXPLAIN QUERY PLAN}. Only a {@code sampleRate} fraction of the executions is timed, so the log can stay
+     * on under load. A negative threshold (the default) turns the log off. Takes effect the next time the database
+     * is opened.
+     *
+     * @param thresholdMillis
+     * @param sampleRate the fraction of executions timed, between 0 and 1
+     */
+    public void setSlowQueryLog(long thresholdMillis, double sampleRate) {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("sampleRate must be between 0 and 1: " + sampleRate);
+        }
+        this.slowQueryThresholdMillis = thresholdMillis;
+        this.slowQuerySampleRate = sampleRate;
+    }
+
+    /**
+     * @return the number of statements the slow-query log logged since the database was opened.
+     */
+    public long getSlowQueriesLogged() {
+        return slowQueryLog == null ? 0 : slowQueryLog.logged();
+    }
+
+    /**
+     * Set where the calls of the public methods are recorded: their latency, whether they failed and the number of
+     * records they read and wrote, per method (see {@link MetricsRegistry}). By default a {@link Metrics} keeps them
+     * in memory; {@link MetricsRegistry#NONE} turns the recording off. Takes effect immediately.
+     *
+     * @param metrics
+     */
+    public void setMetricsRegistry(MetricsRegistry metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null");
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return where the calls of the public methods are recorded.
+     */
+    public MetricsRegistry getMetricsRegistry() {
+        return metrics;
+    }
+
+    /**
+     * Set the name of the {@link SmarticulousMetricsMXBean} to register with the platform MBean server while the
+     * database is open, as {@code smarticulous:type=Metrics,name=<jmxName>}, or null (the default) to register none.
+     * Takes effect the next time the database is opened.
+     *
+     * @param jmxName
+     */
+    public void setJmxName(String jmxName) {
+        this.jmxName = jmxName;
+    }
+
+    /**
+     * Open the {@link Smarticulous} SQLite database.
+     * <p>
+     * This should open the database, creating a new one if necessary, and set the {@link #db} field
+     * to the new connection.
+     * <p>
+     * The open method should make sure the database contains the following tables, creating them if necessary:
+     *
+     * <table>
+     *   <caption><em>Table name: <strong>User</strong></em></caption>
+     *   <tr><th>Column</th><th>Type</th></tr>
+     *   <tr><td>UserId</td><td>Integer (Primary Key)</td></tr>
+     *   <tr><td>Username</td><td>Text</td></tr>
+     *   <tr><td>Firstname</td><td>Text</td></tr>
+     *   <tr><td>Lastname</td><td>Text</td></tr>
+     *   <tr><td>Password</td><td>Text</td></tr>
+     * </table>
+     *
+     * <p>
+     * <table>
+     *   <caption><em>Table name: <strong>Exercise</strong></em></caption>
+     *   <tr><th>Column</th><th>Type</th></tr>
+     *   <tr><td>ExerciseId</td><td>Integer (Primary Key)</td></tr>
+     *   <tr><td>Name</td><td>Text</td></tr>
+     *   <tr><td>DueDate</td><td>Integer</td></tr>
+     * </table>
+     *
+     * <p>
+     * <table>
+     *   <caption><em>Table name: <strong>Question</strong></em></caption>
+     *   <tr><th>Column</th><th>Type</th></tr>
+     *   <tr><td>ExerciseId</td><td>Integer</td></tr>
+     *   <tr><td>QuestionId</td><td>Integer</td></tr>
+     *   <tr><td>Name</td><td>Text</td></tr>
+     *   <tr><td>Desc</td><td>Text</td></tr>
+     *   <tr><td>Points</td><td>Integer</td></tr>
+     * </table>
+     * In this table the combination of ExerciseId and QuestionId together comprise the primary key.
+     *
+     * <p>
+     * <table>
+     *   <caption><em>Table name: <strong>Submission</strong></em></caption>
+     *   <tr><th>Column</th><th>Type</th></tr>
+     *   <tr><td>SubmissionId</td><td>Integer (Primary Key)</td></tr>
+     *   <tr><td>UserId</td><td>Integer</td></tr>
+     *   <tr><td>ExerciseId</td><td>Integer</td></tr>
+     *   <tr><td>SubmissionTime</td><td>Integer</td></tr>
+     * </table>
+     *
+     * <p>
+     * <table>
+     *   <caption><em>Table name: <strong>QuestionGrade</strong></em></caption>
+     *   <tr><th>Column</th><th>Type</th></tr>
+     *   <tr><td>SubmissionId</td><td>Integer</td></tr>
+     *   <tr><td>QuestionId</td><td>Integer</td></tr>
+     *   <tr><td>Grade</td><td>Real</td></tr>
+     * </table>
+     * In this table the combination of SubmissionId and QuestionId together comprise the primary key.
+     *
+     * @param dburl The JDBC url of the database to open (will be of the form "jdbc:sqlite:...")
+     * @return the new connection
+     * @throws SQLException
+     */
+    public Connection openDB(String dburl) throws SQLException {
+        slowQueryLog = slowQueryThresholdMillis < 0 ? null : new SlowQueryLog(slowQueryThresholdMillis, slowQuerySampleRate);
+        pool = new ConnectionPool(dburl, readConnections, statementCacheSize, slowQueryLog);
+        db = pool.writer();
+        exercises = new BoundedCache<>(exerciseCacheSize);
+        logins = new BoundedCache<>(loginCacheSize);
+        userIds = new UserIdMap();
+        passwordVerifier = newPasswordExecutor(passwordVerifierThreads, "smarticulous-password-verifier-");
+        passwordWriter = newPasswordExecutor(1, "smarticulous-password-writer-");
+        passwordVerifierSlots = new Semaphore(PASSWORD_VERIFIER_QUEUE_SIZE);
+        // Make sure the database contains the following tables (and indexes), creating or upgrading them if necessary
+        try {
+            SchemaMigrations.migrate(db);
+            boolean blobs = storeGradesBlobs || GradesBlobs.present(db);
+            // The totals are computed from the QuestionGrade rows, which the BLOBs replace - checked before either
+            // changes the database
+            if (blobs && (materializeTotals || SubmissionTotals.present(db))) {
+                throw new SQLException("Grades BLOBs can't be combined with materialized totals");
+            }
+            if (materializeTotals) {
+                SubmissionTotals.ensure(db);
+            }
+            maintainTotals = SubmissionTotals.present(db);
+            if (blobs) {
+                GradesBlobs.ensure(db);
+                gradesBlobs = true;
+            }
+            upsertUsers = SchemaMigrations.sqliteVersionAtLeast(db, 3, 35) && SchemaMigrations.isUnique(db, "User", "Username");
+            // Write the submissions journaled before the last shutdown (or crash)
+            if (submissionJournalPath != null) {
+                journal = openJournal(submissionJournalPath);
+            }
+            if (jmxName != null) {
+                registeredMBean = registerMBean(jmxName);
+            }
+        } catch (SQLException e) {
+            closeDB();
+            throw e;
+        }
+
+        return db;
+}
+
+    // Helper method - open the submission journal, replaying its submissions
+    private SubmissionJournal openJournal(String path) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.write()) {
+            return SubmissionJournal.open(Paths.get(path), lease, maintainTotals, gradesBlobs, userIds);
+        } catch (IOException e) {
+            throw new SQLException("Could not open the submission journal " + path, e);
+        }
+    }
+
+    // Helper method - register the metrics MBean of the open database
+    private ObjectName registerMBean(String name) throws SQLException {
+        try {
+            ObjectName objectName = new ObjectName("smarticulous:type=Metrics,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new SmarticulousMetrics(this), objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new SQLException("Could not register the metrics MBean " + name, e);
+        }
+    }
+
+    // Helper method - unregister the metrics MBean, if registered
+    private void unregisterMBean() {
+        if (registeredMBean == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(registeredMBean)) {
+                server.unregisterMBean(registeredMBean);
+            }
+        } catch (JMException e) {
+            logger.warn("Could not unregister the metrics MBean {}", registeredMBean, e);
+        } finally {
+            registeredMBean = null;
+        }
+    }
+
+    // Helper method - a fixed pool of daemon threads with a bounded queue, rejecting tasks beyond it
+    private static ExecutorService newPasswordExecutor(int threads, String namePrefix) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(PASSWORD_VERIFIER_QUEUE_SIZE),
+                task -> {
+                    Thread thread = new Thread(task, namePrefix + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Close the DB if it is open.
+     * <p>
+     * All the cached prepared statements are closed along with the connections.
+     *
+     * @throws SQLException
+     */
+    public void closeDB() throws SQLException {
+        if (pool != null) {
+            unregisterMBean();
+            stopSubmissionWriter();
+            closeJournal();
+            stopLegacyPasswordSweep();
+            passwordVerifier.shutdown();
+            stopPasswordWriter();
+            try {
+                pool.close();
+            } finally {
+                pool = null;
+                db = null;
+                maintainTotals = false;
+                gradesBlobs = false;
+                upsertUsers = false;
+                exercises = null;
+                logins = null;
+                userIds = null;
+                passwordVerifier = null;
+                passwordWriter = null;
+                passwordVerifierSlots = null;
+            }
+        }
+    }
+
+    // =========== User Management =============
+
+    /**
+     * Add a user to the database / modify an existing user.
+     * <p>
+     * Add the user to the database if they don't exist. If a user with user.username does exist,
+     * update their password and firstname/lastname in the database.
+     * <p>
+     * Only a salted hash of the password is stored (see {@link #setPasswordIterations(int)}).
+     * Where the database supports it, the user is added or updated by a single upsert statement.
+     *
+     * @param user
+     * @param password
+     * @return the userid.
+     * @throws SQLException
+     */
+    public int addOrUpdateUser(User user, String password) throws SQLException {
+        return timed("addOrUpdateUser", () -> putUser(user, password), NO_ROWS, ONE_ROW);
+    }
+
+    // Helper method - hash the password and add or update the user
+    private int putUser(User user, String password) throws SQLException {
+        // Hash before taking the writer, so other writes don't wait for the hashing
+        String passwordHash = PasswordHasher.hash(password, passwordIterations);
+
+        try (ConnectionPool.Lease lease = pool.write()) {
+            int userId = writeUser(lease, user, passwordHash);
+            rememberUserId(user.username, userId, lease.connection().getAutoCommit());
+            return userId;
+        } finally {
+            // The cached password (or "no such user") of this username is out of date
+            logins.invalidate(user.username);
+        }
+    }
+
+    /**
+     * Add many users to the database / modify many existing users, e.g. to sync a course roster.
+     * <p>
+     * Every user is added or updated as by {@link #addOrUpdateUser(User, String)}. The passwords are hashed in parallel
+     * on the password verifier threads, and the users are written {@link #DEFAULT_COMMIT_INTERVAL} per transaction
+     * (unless the caller already opened one, in which case the caller commits). If writing fails, the users of the
+     * failed transaction are rolled back, while the ones committed before it stay.
+     *
+     * @param users the users to add or update, with their passwords
+     * @return the userid of every user, in the iteration order of {@code users}.
+     * @throws SQLException
+     */
+    public Map<User, Integer> addOrUpdateUsers(Map<User, String> users) throws SQLException {
+        return timed("addOrUpdateUsers", () -> putUsers(users), NO_ROWS, Map::size);
+    }
+
+    // Helper method - hash the passwords and add or update the users, a chunk per transaction
+    private Map<User, Integer> putUsers(Map<User, String> users) throws SQLException {
+        Map<User, Integer> ids = new LinkedHashMap<>();
+        List<Map.Entry<User, String>> entries = new ArrayList<>(users.entrySet());
+
+        for (int from = 0; from < entries.size(); from += DEFAULT_COMMIT_INTERVAL) {
+            List<Map.Entry<User, String>> chunk = entries.subList(from, Math.min(from + DEFAULT_COMMIT_INTERVAL, entries.size()));
+            // Hash before taking the writer, so other writes don't wait for the hashing
+            List<String> passwordHashes = hashPasswords(chunk);
+
+            try (ConnectionPool.Lease lease = pool.write()) {
+                boolean ownTransaction = lease.connection().getAutoCommit();
+                if (ownTransaction) {
+                    lease.connection().setAutoCommit(false);
+                }
+                try {
+                    int[] chunkIds = new int[chunk.size()];
+                    for (int i = 0; i < chunk.size(); ++i) {
+                        chunkIds[i] = writeUser(lease, chunk.get(i).getKey(), passwordHashes.get(i));
+                    }
+
+                    if (ownTransaction) {
+                        lease.connection().commit();
+                    }
+                    for (int i = 0; i < chunk.size(); ++i) {
+                        User user = chunk.get(i).getKey();
+                        ids.put(user, chunkIds[i]);
+                        rememberUserId(user.username, chunkIds[i], ownTransaction);
+                    }
+                } catch (SQLException e) {
+                    if (ownTransaction) {
+                        lease.connection().rollback();
+                    }
+                    throw e;
+                } finally {
+                    if (ownTransaction) {
+                        lease.connection().setAutoCommit(true);
+                    }
+                    // The cached passwords (or "no such user") of these usernames are out of date
+                    for (Map.Entry<User, String> entry : chunk) {
+                        logins.invalidate(entry.getKey().username);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    // Helper method - hash the passwords of the given users on the password verifier threads
+    private List<String> hashPasswords(List<Map.Entry<User, String>> users) {
+        int iterations = passwordIterations;
+        List<CompletableFuture<String>> hashes = new ArrayList<>(users.size());
+        for (Map.Entry<User, String> entry : users) {
+            String password = entry.getValue();
+            try {
+                hashes.add(CompletableFuture.supplyAsync(() -> PasswordHasher.hash(password, iterations), passwordVerifier));
+            } catch (RejectedExecutionException e) {
+                // The verifier queue is full (of logins) - hash on this thread instead of failing
+                hashes.add(CompletableFuture.completedFuture(PasswordHasher.hash(password, iterations)));
+            }
+        }
+
+        List<String> result = new ArrayList<>(hashes.size());
+        for (CompletableFuture<String> hash : hashes) {
+            result.add(hash.join());
+        }
+        return result;
+    }
+
+    // Helper method - add or update a user with the given password hash and return its userId
+    private int writeUser(ConnectionPool.Lease lease, User user, String passwordHash) throws SQLException {
+        if (upsertUsers) {
+            return upsertUser(lease, user, passwordHash);
+        }
+
+        // Create a table of all users with the same username as the given user's username
+        PreparedStatement preparedStatement = lease.prepare("SELECT UserId FROM User WHERE Username = ?");
+        // Setting parameters to replace the "?" in the sql string.
+        preparedStatement.setString(1, user.username);
+
+        // Executing the query
+        try (ResultSet res = preparedStatement.executeQuery()) {
+
+            // a user with user.username does exist - update their password and firstname/lastname in the database.
+            if (res.next()){
+                int userId = res.getInt("UserId");
+                updateUser(lease, user, passwordHash);
+                return userId;
+            }
+        }
+
+        // The user with user.username does not exist - add it to the database.
+        return createUser(lease, user, passwordHash);
+    }
+
+    // Insert the user, or update the user with the same Username, in one statement returning the UserId either way
+    private static final String UPSERT_USER_SQL =
+            "INSERT INTO User (Username, Firstname, Lastname, Password) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (Username) DO UPDATE SET Firstname = excluded.Firstname, Lastname = excluded.Lastname, Password = excluded.Password " +
+            "RETURNING UserId";
+
+    // Helper method - add or update a user with a single upsert statement and return its userId
+    private int upsertUser(ConnectionPool.Lease lease, User user, String passwordHash) throws SQLException {
+        PreparedStatement preparedStatement = lease.prepare(UPSERT_USER_SQL);
+        // Setting parameters to replace the "?" in the sql string.
+        preparedStatement.setString(1, user.username);
+        preparedStatement.setString(2, user.firstname);
+        preparedStatement.setString(3, user.lastname);
+        preparedStatement.setString(4, passwordHash);
+
+        // Executing the upsert - it returns the UserId of the inserted or updated row
+        try (ResultSet res = preparedStatement.executeQuery()) {
+            if (!res.next()) {
+                throw new SQLException("The upsert of user " + user.username + " returned no UserId");
+            }
+            return res.getInt("UserId");
+        }
+    }
+
+    // Helper method - remember the UserId of a username once its row is committed
+    // (inside the caller's transaction the row may still be rolled back, so it is forgotten instead)
+    private void rememberUserId(String username, int userId, boolean committed) {
+        if (committed) {
+            userIds.put(username, userId);
+        } else {
+            userIds.remove(username);
+        }
+    }
+
+    // Helper method - return the UserId of the given username (-1 if there is no such user),
+    // querying the database only for usernames not resolved before
+    private int resolveUserId(ConnectionPool.Lease lease, String username) throws SQLException {
+        int userId = userIds.get(username);
+        if (userId != UserIdMap.NO_USER) {
+            return userId;
+        }
+
+        PreparedStatement preparedStatement = lease.prepare("SELECT UserId FROM User WHERE Username = ?");
+        // Setting parameters to replace the "?" in the sql string.
+        preparedStatement.setString(1, username);
+
+        // Executing the query
+        try (ResultSet res = preparedStatement.executeQuery()) {
+            // A user with the same Username does not exist - don't remember that, it may be added by another connection
+            if (!res.next()) {
+                return -1;
+            }
+            userId = res.getInt("UserId");
+        }
+        rememberUserId(username, userId, lease.connection().getAutoCommit());
+        return userId;
+    }
+
+    // Helper method - create new user with the given User's firstname, lastname and the given password hash
+    private int createUser(ConnectionPool.Lease lease, User user, String passwordHash) throws SQLException{
+        // Insert the given user to the User table
+        PreparedStatement preparedStatement = lease.prepare("INSERT INTO User (Username, Firstname, Lastname, Password) VALUES (?, ?, ?, ?)",
+                Statement.RETURN_GENERATED_KEYS);
+        // Setting parameters to replace the "?" in the sql string.
+        preparedStatement.setString(1, user.username);
+        preparedStatement.setString(2, user.firstname);
+        preparedStatement.setString(3, user.lastname);
+        preparedStatement.setString(4, passwordHash);
+
+        // Executing the update
+        preparedStatement.executeUpdate();
+
+        // Return the new userId
+        try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
+            return generatedKeys.getInt(1);
+        }
+    }
+
+    // Helper method - update the given user firstname, lastname and the given password hash
+    private void updateUser(ConnectionPool.Lease lease, User user, String passwordHash) throws SQLException{
+        PreparedStatement preparedStatement = lease.prepare("UPDATE User SET Password = ?, Firstname = ?, Lastname = ? WHERE Username = ?");
+        // Setting parameters to replace the "?" in the sql string.
+        preparedStatement.setString(1, passwordHash);
+        preparedStatement.setString(2, user.firstname);
+        preparedStatement.setString(3, user.lastname);
+        preparedStatement.setString(4, user.username);
+
+        // Executing the update
+        preparedStatement.executeUpdate();
+
+    }
+
+    /**
+     * Verify a user's login credentials.
+     * <p>
+     * The password hash is checked on a dedicated, bounded pool of threads (see {@link #verifyLoginAsync}); this
+     * waits for the result. If too many verifications are already waiting, this first waits (up to
+     * {@link #PASSWORD_VERIFIER_WAIT_MILLIS}) for one of them to finish; the hash is never computed on the calling
+     * thread.
+     *
+     * @param username
+     * @param password
+     * @return true if the user exists in the database and the password matches; false otherwise.
+     * @throws SQLException if interrupted while waiting
+     * @throws RejectedExecutionException if the verifications waiting don't make room in time
+     */
+    public boolean verifyLogin(String username, String password) throws SQLException {
+        return timed("verifyLogin", () -> awaitLogin(username, password), NO_ROWS, NO_ROWS);
+    }
+
+    // Helper method - verify the credentials and wait for the password hash
+    private boolean awaitLogin(String username, String password) throws SQLException {
+        try {
+            return checkLogin(username, password, PASSWORD_VERIFIER_WAIT_MILLIS).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Verify a user's login credentials without waiting for the (deliberately slow) password hash.
+     * <p>
+     * The stored password is looked up on the calling thread, and the hash is computed on a pool of
+     * {@link #setPasswordVerifierThreads(int) a fixed number} of threads with a bounded queue, so password checks
+     * can't take more CPU than that. Legacy plaintext passwords (stored before passwords were hashed) are still
+     * accepted, and compared in constant time.
+     * <p>
+     * After a successful login, a legacy password, or a hash cheaper than {@link #setPasswordIterations(int)}, is
+     * rehashed in the background, so the User table is migrated as its users log in. See also
+     * {@link #startLegacyPasswordSweep(int, double)}.
+     * <p>
+     * The stored passwords are cached (up to {@link #setLoginCacheSize(int) a bound}), and so, for a short while,
+     * are unknown usernames; a cached username is checked without touching the database. Changes made by
+     * {@link #addOrUpdateUser} are seen immediately, changes made to the database by other means are not.
+     *
+     * @param username
+     * @param password
+     * @return completes with true if the user exists in the database and the password matches; false otherwise.
+     * @throws SQLException
+     * @throws RejectedExecutionException if too many verifications are already waiting
+     */
+    public CompletableFuture<Boolean> verifyLoginAsync(String username, String password) throws SQLException {
+        return timedAsync("verifyLoginAsync", () -> checkLogin(username, password, 0), NO_ROWS);
+    }
+
+    // Helper method - look up the stored password and check the password against it on the password verifier threads,
+    // waiting up to waitMillis for room in their queue
+    private CompletableFuture<Boolean> checkLogin(String username, String password, long waitMillis) throws SQLException {
+        Optional<String> storedPassword = logins.get(username);
+        if (storedPassword == null) {
+            storedPassword = loadPassword(username);
+        }
+
+        // The user with username does not exist - return false
+        if (!storedPassword.isPresent()) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        // The user with username does exist - check if the password is correct
+        String stored = storedPassword.get();
+        if (!PasswordHasher.isHash(stored)) {
+            // A legacy plaintext password is cheap to compare
+            boolean valid = PasswordHasher.verify(password, stored);
+            if (valid) {
+                rehashLater(username, password, stored);
+            }
+            return CompletableFuture.completedFuture(valid);
+        }
+        Semaphore slots = passwordVerifierSlots;
+        try {
+            if (!(waitMillis == 0 ? slots.tryAcquire() : slots.tryAcquire(waitMillis, TimeUnit.MILLISECONDS))) {
+                throw new RejectedExecutionException("Too many password verifications are waiting");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a password verifier", e);
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    boolean valid = PasswordHasher.verify(password, stored);
+                    if (valid && PasswordHasher.iterations(stored) < passwordIterations) {
+                        rehashLater(username, password, stored);
+                    }
+                    return valid;
+                } finally {
+                    slots.release();
+                }
+            }, passwordVerifier);
+        } catch (RejectedExecutionException e) {
+            // The queue is full of other work (new and rehashed passwords), or the db was closed
+            slots.release();
+            throw e;
+        }
+    }
+
+    // Replace the stored password of a user, unless it changed since it was read
+    static final String REHASH_PASSWORD_SQL = "UPDATE User SET Password = ? WHERE Username = ? AND Password = ?";
+
+    // Helper method - hash a just verified password on the verifier threads, and store it in place of the old value
+    // on the password writer thread, so the verifiers never wait for the writer lock.
+    // Best effort: if either is busy, or the password changed meanwhile, the row is left as it is.
+    private void rehashLater(String username, String password, String stored) {
+        ExecutorService passwordWriter = this.passwordWriter;
+        int iterations = passwordIterations;
+
+        try {
+            passwordVerifier.execute(() -> {
+                String passwordHash = PasswordHasher.hash(password, iterations);
+                try {
+                    passwordWriter.execute(() -> storeRehashedPassword(username, stored, passwordHash));
+                } catch (RejectedExecutionException e) {
+                    // Busy or closed - rehashed on a later login (or by the sweeper)
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Busy - rehashed on a later login (or by the sweeper)
+        }
+    }
+
+    // Helper method - replace the stored password of a user with its new hash, unless it changed since it was read
+    private void storeRehashedPassword(String username, String stored, String passwordHash) {
+        // The writer is stopped before the pool is closed, so the pool is still open here
+        try (ConnectionPool.Lease lease = pool.write()) {
+            PreparedStatement preparedStatement = lease.prepare(REHASH_PASSWORD_SQL);
+            // Setting parameters to replace the "?" in the sql string.
+            preparedStatement.setString(1, passwordHash);
+            preparedStatement.setString(2, username);
+            preparedStatement.setString(3, stored);
+
+            if (preparedStatement.executeUpdate() > 0) {
+                logins.invalidate(username);
+                passwordsRehashedOnLogin.incrementAndGet();
+            }
+        } catch (SQLException e) {
+            logger.debug("Could not rehash the password of {}", username, e);
+        }
+    }
+
+    // Helper method - drop the rehashed passwords not yet stored, and wait for the one being stored (if any),
+    // so nothing uses the pool once it is closed
+    private void stopPasswordWriter() {
+        passwordWriter.shutdownNow();
+        try {
+            passwordWriter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
-     * The connection to the underlying DB.
+     * Start hashing the legacy plaintext passwords of users that don't log in, in the background.
      * <p>
-     * null if the db has not yet been opened.
+     * The User table is swept in UserId order, {@code batchSize} rows per transaction, at most {@code rowsPerSecond}
+     * rows per second, so the sweep never holds the writer for long. Stopped by {@link #stopLegacyPasswordSweep()}
+     * and by {@link #closeDB()}. Progress is reported by {@link #getLegacyPasswordsScanned()},
+     * {@link #getLegacyPasswordsRehashed()} and {@link #isLegacyPasswordSweepDone()}.
+     *
+     * @param batchSize number of rows hashed per transaction
+     * @param rowsPerSecond maximum number of rows hashed per second
+     * @throws IllegalStateException if a sweep is already running
      */
-    Connection db;
+    public void startLegacyPasswordSweep(int batchSize, double rowsPerSecond) {
+        if (passwordSweeper != null && !passwordSweeper.done()) {
+            throw new IllegalStateException("A legacy password sweep is already running");
+        }
+        passwordSweeper = new LegacyPasswordSweeper(pool, logins, () -> passwordIterations, batchSize, rowsPerSecond);
+        passwordSweeper.start();
+    }
 
     /**
-     * Open the {@link Smarticulous} SQLite database.
-     * <p>
-     * This should open the database, creating a new one if necessary, and set the {@link #db} field
-     * to the new connection.
-     * <p>
-     * The open method should make sure the database contains the following tables, creating them if necessary:
-     *
-     * <table>
-     *   <caption><em>Table name: <strong>User</strong></em></caption>
-     *   <tr><th>Column</th><th>Type</th></tr>
-     *   <tr><td>UserId</td><td>Integer (Primary Key)</td></tr>
-     *   <tr><td>Username</td><td>Text</td></tr>
-     *   <tr><td>Firstname</td><td>Text</td></tr>
-     *   <tr><td>Lastname</td><td>Text</td></tr>
-     *   <tr><td>Password</td><td>Text</td></tr>
-     * </table>
+     * Stop the legacy password sweep (if running), waiting for its current batch to finish.
+     * It can be started again later; the already hashed rows are skipped.
+     */
+    public void stopLegacyPasswordSweep() {
+        if (passwordSweeper == null) {
+            return;
+        }
+        try {
+            passwordSweeper.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of legacy passwords read by the current (or last) sweep.
+     */
+    public long getLegacyPasswordsScanned() {
+        return passwordSweeper == null ? 0 : passwordSweeper.scanned();
+    }
+
+    /**
+     * @return the number of legacy passwords hashed by the current (or last) sweep.
+     */
+    public long getLegacyPasswordsRehashed() {
+        return passwordSweeper == null ? 0 : passwordSweeper.rehashed();
+    }
+
+    /**
+     * @return true if the last sweep found no legacy passwords left.
+     */
+    public boolean isLegacyPasswordSweepDone() {
+        return passwordSweeper != null && passwordSweeper.done();
+    }
+
+    /**
+     * @return the number of passwords rehashed after a successful login.
+     */
+    public long getPasswordsRehashedOnLogin() {
+        return passwordsRehashedOnLogin.get();
+    }
+
+    // Helper method - read the stored password of a username (empty if there is no such user) into the login cache
+    private Optional<String> loadPassword(String username) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.read()) {
+            // Taken before reading, so a password changed meanwhile is not cached
+            long generation = logins.generation();
+
+            // Create a table of all users with the same username as the given username
+            PreparedStatement preparedStatement = lease.prepare("SELECT Password FROM User WHERE Username = ?");
+            preparedStatement.setString(1, username);
+
+            try (ResultSet res = preparedStatement.executeQuery()) {
+                if (res.next()) {
+                    Optional<String> storedPassword = Optional.ofNullable(res.getString("Password"));
+                    logins.putIfCurrent(username, storedPassword, generation);
+                    return storedPassword;
+                }
+            }
+
+            // Remember the unknown username only for a short while: it may be added by someone else
+            if (unknownUserTtlMillis > 0) {
+                logins.putIfCurrent(username, Optional.empty(), generation, unknownUserTtlMillis);
+            }
+            return Optional.empty();
+        }
+    }
+
+    // =========== Exercise Management =============
+
+    /**
+     * Add an exercise to the database.
      *
-     * <p>
-     * <table>
-     *   <caption><em>Table name: <strong>Exercise</strong></em></caption>
-     *   <tr><th>Column</th><th>Type</th></tr>
-     *   <tr><td>ExerciseId</td><td>Integer (Primary Key)</td></tr>
-     *   <tr><td>Name</td><td>Text</td></tr>
-     *   <tr><td>DueDate</td><td>Integer</td></tr>
-     * </table>
+     * @param exercise
+     * @return the new exercise id, or -1 if an exercise with this id already existed in the database.
+     * @throws SQLException
+     */
+    public int addExercise(Exercise exercise) throws SQLException {
+        return timed("addExercise", () -> insertExercise(exercise), NO_ROWS,
+                exerciseId -> exerciseId == -1 ? 0 : 1 + exercise.questions.size());
+    }
+
+    // Helper method - insert the exercise and its questions, unless its id is taken
+    private int insertExercise(Exercise exercise) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.write()) {
+            // Create a table of all exercises with the same id as the given exercise's id
+            PreparedStatement preparedStatement = lease.prepare("SELECT ExerciseId FROM Exercise WHERE ExerciseId = ?");
+            // Setting parameters to replace the "?" in the sql string.
+            preparedStatement.setInt(1, exercise.id);
+
+            // Executing the query
+            try (ResultSet res = preparedStatement.executeQuery()) {
+
+                // An exercise with exercise.id does exist - Return -1
+                if (res.next()){
+                    return -1;
+                }
+            }
+            // The exercise does not exist - add it to the database and return it's id.
+            // Insert the given exercise to the Exercise table
+            PreparedStatement preparedStatementAdd = lease.prepare("INSERT INTO Exercise (ExerciseId, Name, DueDate) VALUES (?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS);
+            // Setting parameters to replace the "?" in the sql string.
+            preparedStatementAdd.setInt(1, exercise.id);
+            preparedStatementAdd.setString(2, exercise.name);
+            java.sql.Date sqlDueDate = new java.sql.Date(exercise.dueDate.getTime());
+            preparedStatementAdd.setDate(3, sqlDueDate);
+
+            // Executing the update
+            preparedStatementAdd.executeUpdate();
+
+            // Read the new ExerciseId before the statement is reused
+            int exerciseId;
+            try (ResultSet generatedKeys = preparedStatementAdd.getGeneratedKeys()) {
+                exerciseId = generatedKeys.getInt(1);
+            }
+
+            // Add the added exercise's questions to the Question table
+            for (Exercise.Question question : exercise.questions){
+                insertQuestion(question, exercise.id);
+            }
+            exercises.invalidate(exercise.id);
+
+            // Return the new ExerciseId
+            return exerciseId;
+        }
+    }
+
+    /**
+     * Add a question to the database.
      *
+     * @param question
+     * @param exerciseId
+     * @throws SQLException
+     */
+    public void addQuestion(Exercise.Question question, int exerciseId) throws SQLException {
+        timed("addQuestion", () -> {
+            insertQuestion(question, exerciseId);
+            return null;
+        }, NO_ROWS, ONE_ROW);
+    }
+
+    // Helper method - insert the question as the next question of the exercise
+    private void insertQuestion(Exercise.Question question, int exerciseId) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.write()) {
+            // Insert the given question to the Question table, as the next question (1-based) of the exercise.
+            // The QuestionIds must match the QuestionGrade rows of the exercise's submissions.
+            PreparedStatement preparedStatementAdd = lease.prepare("INSERT INTO Question (ExerciseId, QuestionId, Name, Desc, Points) " +
+                    "SELECT ?, COALESCE(MAX(QuestionId), 0) + 1, ?, ?, ? FROM Question WHERE ExerciseId = ?");
+            // Setting parameters to replace the "?" in the sql string.
+            preparedStatementAdd.setInt(1, exerciseId);
+            preparedStatementAdd.setString(2, question.name);
+            preparedStatementAdd.setString(3, question.desc);
+            preparedStatementAdd.setInt(4, question.points);
+            preparedStatementAdd.setInt(5, exerciseId);
+
+            // Executing the update
+            preparedStatementAdd.executeUpdate();
+
+            // The new question's points count towards the totals of any grades already stored for it
+            if (maintainTotals) {
+                SubmissionTotals.refreshExercise(lease.statements(), exerciseId);
+            } else if (gradesBlobs) {
+                GradesBlobs.refreshExercise(lease.statements(), exerciseId);
+            }
+
+            // The cached exercise (if any) is missing the new question
+            exercises.invalidate(exerciseId);
+        }
+    }
+
+    /**
+     * Return a list of all the exercises in the database.
      * <p>
-     * <table>
-     *   <caption><em>Table name: <strong>Question</strong></em></caption>
-     *   <tr><th>Column</th><th>Type</th></tr>
-     *   <tr><td>ExerciseId</td><td>Integer</td></tr>
-     *   <tr><td>QuestionId</td><td>Integer</td></tr>
-     *   <tr><td>Name</td><td>Text</td></tr>
-     *   <tr><td>Desc</td><td>Text</td></tr>
-     *   <tr><td>Points</td><td>Integer</td></tr>
-     * </table>
-     * In this table the combination of ExerciseId and QuestionId together comprise the primary key.
-     *
+     * The list should be sorted by exercise id.
      * <p>
-     * <table>
-     *   <caption><em>Table name: <strong>Submission</strong></em></caption>
-     *   <tr><th>Column</th><th>Type</th></tr>
-     *   <tr><td>SubmissionId</td><td>Integer (Primary Key)</td></tr>
-     *   <tr><td>UserId</td><td>Integer</td></tr>
-     *   <tr><td>ExerciseId</td><td>Integer</td></tr>
-     *   <tr><td>SubmissionTime</td><td>Integer</td></tr>
-     * </table>
+     * The exercises and their questions are read with a single ordered join, so the whole
+     * {@link Exercise} / {@link Exercise.Question} graph is built in one pass over one result set.
      *
+     * @return list of all exercises.
+     * @throws SQLException
+     */
+    public List<Exercise> loadExercises() throws SQLException {
+        return timed("loadExercises", this::readAllExercises, Smarticulous::exerciseRecords, NO_ROWS);
+    }
+
+    // Helper method - read every exercise with its questions, sorted by exercise id
+    private List<Exercise> readAllExercises() throws SQLException {
+        try (ConnectionPool.Lease lease = pool.read()) {
+            // The exercises are returned as new objects the caller may modify, so they are not cached
+            return readExercises(lease.prepare(EXERCISES_SQL + "ORDER BY E.ExerciseId, Q.QuestionId, Q.rowid"));
+        }
+    }
+
+    /**
+     * Return the exercise with the given id, with its questions.
      * <p>
-     * <table>
-     *   <caption><em>Table name: <strong>QuestionGrade</strong></em></caption>
-     *   <tr><th>Column</th><th>Type</th></tr>
-     *   <tr><td>SubmissionId</td><td>Integer</td></tr>
-     *   <tr><td>QuestionId</td><td>Integer</td></tr>
-     *   <tr><td>Grade</td><td>Real</td></tr>
-     * </table>
-     * In this table the combination of SubmissionId and QuestionId together comprise the primary key.
+     * Exercises are cached (up to {@link #setExerciseCacheSize(int) a bound}), so repeated calls don't touch the
+     * database until the exercise is changed by {@link #addExercise} or {@link #addQuestion}. The returned exercise
+     * may be shared with other callers and must not be modified.
      *
-     * @param dburl The JDBC url of the database to open (will be of the form "jdbc:sqlite:...")
-     * @return the new connection
+     * @param exerciseId
+     * @return the exercise, or null if there is no exercise with this id.
      * @throws SQLException
      */
-    public Connection openDB(String dburl) throws SQLException {
-        db = DriverManager.getConnection(dburl);
-        // Make sure the database contains the following tables and create them if necessary
-        createTable("User", "UserId INTEGER PRIMARY KEY, Username TEXT UNIQUE, Firstname TEXT, Lastname TEXT, Password TEXT");
-        createTable("Exercise", "ExerciseId INTEGER PRIMARY KEY, Name TEXT, DueDate INTEGER");
-        createTable("Question", "ExerciseId INTEGER, QuestionId INTEGER AUTO_INCREMENT, Name TEXT, Desc TEXT, Points INTEGER, PRIMARY KEY (ExerciseId, QuestionId)");
-        createTable("Submission", "SubmissionId INTEGER PRIMARY KEY, UserId INTEGER, ExerciseId INTEGER, SubmissionTime INTEGER");
-        createTable("QuestionGrade", "SubmissionId INTEGER, QuestionId INTEGER, Grade REAL, PRIMARY KEY (SubmissionId, QuestionId)");
+    public Exercise getExercise(int exerciseId) throws SQLException {
+        return timed("getExercise", () -> findExercise(exerciseId),
+                exercise -> exercise == null ? 0 : 1 + exercise.questions.size(), NO_ROWS);
+    }
 
-        return db;
-}
+    // Helper method - the exercise from the exercise cache, or else from the database (caching it)
+    private Exercise findExercise(int exerciseId) throws SQLException {
+        Exercise exercise = exercises.get(exerciseId);
+        if (exercise != null) {
+            return exercise;
+        }
+
+        try (ConnectionPool.Lease lease = pool.read()) {
+            // Taken before reading, so an exercise changed meanwhile is not cached
+            long generation = exercises.generation();
+
+            PreparedStatement stmt = lease.prepare(EXERCISES_SQL + "WHERE E.ExerciseId = ? ORDER BY Q.QuestionId, Q.rowid");
+            // Setting parameters to replace the "?" in the sql string.
+            stmt.setInt(1, exerciseId);
+
+            List<Exercise> found = readExercises(stmt);
+            if (found.isEmpty()) {
+                return null;
+            }
+            exercises.putIfCurrent(exerciseId, found.get(0), generation);
+            return found.get(0);
+        }
+    }
 
-    // Helper method to create a table
-    private void createTable(String tableName, String columns) throws SQLException {
-        Statement st = db.createStatement();
-        st.executeUpdate("CREATE TABLE IF NOT EXISTS " + tableName + " (" + columns + ");");
+    /**
+     * @return the number of {@link #getExercise(int)} calls served by the exercise cache.
+     */
+    public long getExerciseCacheHits() {
+        return exercises.hits();
+    }
 
+    /**
+     * @return the number of {@link #getExercise(int)} calls that had to read the database.
+     */
+    public long getExerciseCacheMisses() {
+        return exercises.misses();
     }
 
+    /**
+     * @return the number of prepared statements reused from the statement caches of all the connections.
+     */
+    public long getStatementCacheHits() {
+        return pool.statementCacheHits();
+    }
 
     /**
-     * Close the DB if it is open.
-     *
-     * @throws SQLException
+     * @return the number of prepared statements the statement caches of all the connections had to prepare.
      */
-    public void closeDB() throws SQLException {
-        if (db != null) {
-            db.close();
-            db = null;
+    public long getStatementCacheMisses() {
+        return pool.statementCacheMisses();
+    }
+
+    // One row per question (or a single row with NULL question columns for an exercise without questions).
+    // Ordered by exercise and then by QuestionId (so with the questions in their original order), the rows
+    // of each exercise are consecutive.
+    private static final String EXERCISES_SQL =
+            "SELECT E.ExerciseId, E.Name, E.DueDate, Q.ExerciseId AS QuestionExerciseId, " +
+            "Q.Name AS QuestionName, Q.Desc AS QuestionDesc, Q.Points AS QuestionPoints " +
+            "FROM Exercise E LEFT JOIN Question Q ON Q.ExerciseId = E.ExerciseId ";
+
+    // Helper method - build the exercises of an EXERCISES_SQL query, in the order of its rows
+    private List<Exercise> readExercises(PreparedStatement stmt) throws SQLException {
+        // List to store the ordered exercises
+        List<Exercise> orderedExercisesList = new ArrayList<>();
+
+        try (ResultSet res = stmt.executeQuery()) {
+
+            // The exercise the current rows belong to
+            Exercise exercise = null;
+
+            // Iterate through the joined rows
+            while (res.next()) {
+                int exerciseId = res.getInt("ExerciseId");
+
+                // The first row of a new exercise - create an Exercise object with extracted details
+                if (exercise == null || exercise.id != exerciseId) {
+                    String exerciseName = res.getString("Name");
+                    Date exerciseDueDate = res.getDate("DueDate");
+
+                    exercise = new Exercise(exerciseId, exerciseName, exerciseDueDate);
+
+                    // Add the exercise to the list
+                    orderedExercisesList.add(exercise);
+                }
+
+                // Add the row's question (if the exercise has any) to the current exercise
+                res.getInt("QuestionExerciseId");
+                if (!res.wasNull()) {
+                    exercise.addQuestion(res.getString("QuestionName"), res.getString("QuestionDesc"), res.getInt("QuestionPoints"));
+                }
+            }
         }
+        return orderedExercisesList;
     }
 
-    // =========== User Management =============
+    // ========== Submission Storage ===============
 
     /**
-     * Add a user to the database / modify an existing user.
+     * Store a submission in the database.
+     * The id field of the submission will be ignored if it is -1.
      * <p>
-     * Add the user to the database if they don't exist. If a user with user.username does exist,
-     * update their password and firstname/lastname in the database.
+     * Return -1 if the corresponding user doesn't exist in the database.
+     * <p>
+     * The submission row and one QuestionGrade row per entry of {@link Submission#questionGrades}
+     * are written in a single transaction (the grades as one JDBC batch), so either all of them are stored or none.
+     * With grades BLOBs (see {@link #setGradesBlobs(boolean)}) the grades are stored in the submission row itself.
      *
-     * @param user
-     * @param password
-     * @return the userid.
+     * @param submission
+     * @return the submission id.
      * @throws SQLException
      */
-    public int addOrUpdateUser(User user, String password) throws SQLException {
-        // Create a table of all users with the same username as the given user's username
-        PreparedStatement preparedStatement = db.prepareStatement("SELECT UserId FROM User WHERE Username = ?");
-        // Setting parameters to replace the "?" in the sql string.
-        preparedStatement.setString(1, user.username);
+    public int storeSubmission(Submission submission) throws SQLException {
+        return timed("storeSubmission", () -> writeSubmission(submission), NO_ROWS, STORED);
+    }
 
-        // Executing the query
-        ResultSet res = preparedStatement.executeQuery();
+    // Helper method - write the submission row and its grades as one transaction
+    private int writeSubmission(Submission submission) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.write()) {
+            // Find the id of the user with the same Username as the given submission's userName
+            int userId = resolveUserId(lease, submission.user.username);
 
-        // a user with user.username does exist - update their password and firstname/lastname in the database.
-        if (res.next()){
-            updateUser(user, password);
-            return res.getInt("UserId");
-        }
+            // A user with the same Username does not exist - Return -1
+            if (userId == -1) {
+                return -1;
+            }
 
-        // The user with user.username does not exist - add it to the database.
-        else{
-            return createUser(user, password);
+            // Write the submission row and all of its question grades as a single transaction
+            // (unless the caller already opened one, in which case the caller commits).
+            boolean ownTransaction = lease.connection().getAutoCommit();
+            if (ownTransaction) {
+                lease.connection().setAutoCommit(false);
+            }
+            try {
+                int submissionId = insertSubmission(lease, submission, userId);
+                // With grades BLOBs the grades were stored in the submission row
+                if (!gradesBlobs) {
+                    insertQuestionGrades(lease, submissionId, submission.questionGrades);
+                }
+                if (maintainTotals) {
+                    new SubmissionTotals(lease.statements()).update(submissionId, userId, submission.exercise.id);
+                }
+
+                if (ownTransaction) {
+                    lease.connection().commit();
+                }
+                return submissionId;
+            } catch (SQLException e) {
+                if (ownTransaction) {
+                    lease.connection().rollback();
+                }
+                throw e;
+            } finally {
+                if (ownTransaction) {
+                    lease.connection().setAutoCommit(true);
+                }
+            }
         }
     }
 
-    // Helper method - create new user with the given User's firstname, lastname and the given password
-    private int createUser(User user, String password) throws SQLException{
-        // Insert the given user to the User table
-        PreparedStatement preparedStatement = db.prepareStatement("INSERT INTO User (Username, Firstname, Lastname, Password) VALUES (?, ?, ?, ?)",
-                Statement.RETURN_GENERATED_KEYS);
-        // Setting parameters to replace the "?" in the sql string.
-        preparedStatement.setString(1, user.username);
-        preparedStatement.setString(2, user.firstname);
-        preparedStatement.setString(3, user.lastname);
-        preparedStatement.setString(4, password);
+    // Helper method - insert the submission row itself and return its SubmissionId
+    private int insertSubmission(ConnectionPool.Lease lease, Submission submission, int userId) throws SQLException {
+        PreparedStatement preparedStatementAdd;
+        // While a journal is open, it allocates the ids of every write
+        int submissionId = journal == null ? submission.id : journal.allocateId(submission.id);
+
+        // The id field of the submission will be ignored if it is -1 - generate it during insertion
+        if (submissionId == -1) {
+            // Insert the given submission to the Submission table
+            preparedStatementAdd = lease.prepare(gradesBlobs
+                            ? "INSERT INTO Submission (UserId, ExerciseId, SubmissionTime, GradesBlob, TotalGrade) VALUES (?, ?, ?, ?, ?)"
+                            : "INSERT INTO Submission (UserId, ExerciseId, SubmissionTime) VALUES (?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS);
+            // Setting parameters to replace the "?" in the sql string.
+            preparedStatementAdd.setInt(1, userId);
+            preparedStatementAdd.setInt(2, submission.exercise.id);
+            preparedStatementAdd.setDate(3, new java.sql.Date(submission.submissionTime.getTime()));
+            if (gradesBlobs) {
+                preparedStatementAdd.setBytes(4, GradesBlobs.encode(submission.questionGrades));
+                preparedStatementAdd.setDouble(5, blobTotal(lease, submission));
+            }
+        }
 
-        // Executing the update
-        preparedStatement.executeUpdate();
+        // Otherwise keep the given submission id
+        else {
+            // Insert the given submission to the Submission table
+            preparedStatementAdd = lease.prepare(gradesBlobs
+                            ? "INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime, GradesBlob, TotalGrade) VALUES (?, ?, ?, ?, ?, ?)"
+                            : "INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime) VALUES (?, ?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS);
+            // Setting parameters to replace the "?" in the sql string.
+            preparedStatementAdd.setInt(1, submissionId);
+            preparedStatementAdd.setInt(2, userId);
+            preparedStatementAdd.setInt(3, submission.exercise.id);
+            preparedStatementAdd.setDate(4, new java.sql.Date(submission.submissionTime.getTime()));
+            if (gradesBlobs) {
+                preparedStatementAdd.setBytes(5, GradesBlobs.encode(submission.questionGrades));
+                preparedStatementAdd.setDouble(6, blobTotal(lease, submission));
+            }
+        }
 
-        // Return the new userId
-        ResultSet generatedKeys = preparedStatement.getGeneratedKeys();
-        return generatedKeys.getInt(1);
+        // Execute the update
+        preparedStatementAdd.executeUpdate();
+
+        // Return the new SubmissionId
+        try (ResultSet generatedKeys = preparedStatementAdd.getGeneratedKeys()) {
+            return generatedKeys.getInt(1);
+        }
     }
 
-    // Helper method - update the given user firstname, lastname and the given password
-    private void updateUser(User user, String password) throws SQLException{
-        PreparedStatement preparedStatement = db.prepareStatement("UPDATE User SET Password = ?, Firstname = ?, Lastname = ? WHERE Username = ?");
-        // Setting parameters to replace the "?" in the sql string.
-        preparedStatement.setString(1, password);
-        preparedStatement.setString(2, user.firstname);
-        preparedStatement.setString(3, user.lastname);
-        preparedStatement.setString(4, user.username);
+    // Helper method - the point total stored along with the grades BLOB of the submission
+    private double blobTotal(ConnectionPool.Lease lease, Submission submission) throws SQLException {
+        return new GradesBlobs.Totals(lease.prepare(GradesBlobs.POINTS_SQL)).total(submission.exercise.id, submission.questionGrades);
+    }
 
-        // Executing the update
-        preparedStatement.executeUpdate();
+    // Helper method - insert one QuestionGrade row per question using a single JDBC batch.
+    // Question ids are 1-based: questionGrades[i] is the grade of question i + 1.
+    private void insertQuestionGrades(ConnectionPool.Lease lease, int submissionId, float[] questionGrades) throws SQLException {
+        if (questionGrades == null || questionGrades.length == 0) {
+            return;
+        }
 
+        PreparedStatement preparedStatementAdd = lease.prepare("INSERT INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (?, ?, ?)");
+        for (int i = 0; i < questionGrades.length; ++i) {
+            // Setting parameters to replace the "?" in the sql string.
+            preparedStatementAdd.setInt(1, submissionId);
+            preparedStatementAdd.setInt(2, i + 1);
+            preparedStatementAdd.setFloat(3, questionGrades[i]);
+            preparedStatementAdd.addBatch();
+        }
+
+        // Executing all the inserts at once
+        preparedStatementAdd.executeBatch();
     }
 
     /**
-     * Verify a user's login credentials.
+     * Store many submissions in the database.
+     * <p>
+     * Behaves like calling {@link #storeSubmission(Submission)} for each submission, but each username is looked up
+     * once, the rows are inserted through reused batched statements and a transaction is committed only every
+     * {@link #DEFAULT_COMMIT_INTERVAL} submissions.
      *
-     * @param username
-     * @param password
-     * @return true if the user exists in the database and the password matches; false otherwise.
+     * @param submissions
+     * @return the submission ids, in iteration order (-1 for submissions whose user doesn't exist in the database).
      * @throws SQLException
-     * <p>
-     * Note: this is totally insecure. For real-life password checking, it's important to store only
-     * a password hash
-     * @see <a href="https://crackstation.net/hashing-security.htm">How to Hash Passwords Properly</a>
      */
-    public boolean verifyLogin(String username, String password) throws SQLException {
-        // Create a table of all users with the same username as the given username
-        PreparedStatement preparedStatement = db.prepareStatement("SELECT Password FROM User WHERE Username = ?");
-        preparedStatement.setString(1, username);
+    public int[] storeSubmissions(Collection<Submission> submissions) throws SQLException {
+        return timed("storeSubmissions", () -> writeSubmissions(submissions), NO_ROWS,
+                ids -> Arrays.stream(ids).filter(id -> id != -1).count());
+    }
 
-        ResultSet res = preparedStatement.executeQuery();
-        if (res.next()){
-            // The user with username does exist - check if the password is correct
-            if (res.getString("Password").equals(password)){
-                return true;
+    // Helper method - write the submissions through a batch writer, returning their ids
+    private int[] writeSubmissions(Collection<Submission> submissions) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.write()) {
+            int[] ids = new int[submissions.size()];
+            int i = 0;
+
+            try (SubmissionBatchWriter writer = new SubmissionBatchWriter(lease.connection(), lease.statements(), DEFAULT_COMMIT_INTERVAL, maintainTotals, gradesBlobs, userIds, journal)) {
+                try {
+                    for (Submission submission : submissions) {
+                        ids[i++] = writer.add(submission);
+                    }
+                    writer.flush();
+                } catch (SQLException e) {
+                    writer.rollback();
+                    throw e;
+                }
             }
+            return ids;
         }
-        // The user with username does not exist - return false
-        return false;
     }
 
-    // =========== Exercise Management =============
-
     /**
-     * Add an exercise to the database.
+     * Store a stream of submissions in the database, committing every {@link #DEFAULT_COMMIT_INTERVAL} submissions.
      *
-     * @param exercise
-     * @return the new exercise id, or -1 if an exercise with this id already existed in the database.
+     * @param submissions
+     * @return the number of submissions stored (submissions whose user doesn't exist in the database are skipped).
      * @throws SQLException
+     * @see #storeSubmissions(Iterator, int)
      */
-    public int addExercise(Exercise exercise) throws SQLException {
-        // Create a table of all exercises with the same id as the given exercise's id
-        PreparedStatement preparedStatement = db.prepareStatement("SELECT ExerciseId FROM Exercise WHERE ExerciseId = ?");
-        // Setting parameters to replace the "?" in the sql string.
-        preparedStatement.setInt(1, exercise.id);
-
-        // Executing the query
-        ResultSet res = preparedStatement.executeQuery();
-
-        // An exercise with exercise.id does exist - Return -1
-        if (res.next()){
-            return -1;
-        }
-        // The user with user.username does not exist - add it to the database and return it's id.
-        else{
-            // Insert the given exercise to the Exercise table
-            PreparedStatement preparedStatementAdd = db.prepareStatement("INSERT INTO Exercise (ExerciseId, Name, DueDate) VALUES (?, ?, ?)",
-                    Statement.RETURN_GENERATED_KEYS);
-            // Setting parameters to replace the "?" in the sql string.
-            preparedStatementAdd.setInt(1, exercise.id);
-            preparedStatementAdd.setString(2, exercise.name);
-            java.sql.Date sqlDueDate = new java.sql.Date(exercise.dueDate.getTime());
-            preparedStatementAdd.setDate(3, sqlDueDate);
-
-            // Executing the update
-            preparedStatementAdd.executeUpdate();
-
-            // Add the added exercise's questions to the Question table
-            for (Exercise.Question question : exercise.questions){
-                addQuestion(question, exercise.id);
-            }
-
-            // Return the new ExerciseId
-            ResultSet generatedKeys = preparedStatementAdd.getGeneratedKeys();
-            return generatedKeys.getInt(1);
-        }
-
+    public int storeSubmissions(Iterator<Submission> submissions) throws SQLException {
+        return storeSubmissions(submissions, DEFAULT_COMMIT_INTERVAL);
     }
 
     /**
-     * Add a question to the database.
+     * Store a stream of submissions in the database.
+     * <p>
+     * The submissions are consumed one at a time, so the iterator may be arbitrarily long. Every
+     * {@code commitInterval} submissions are committed as one transaction; if an error occurs, only the
+     * submissions of the current (uncommitted) group are rolled back.
      *
-     * @param question
-     * @param exerciseId
+     * @param submissions
+     * @param commitInterval the number of submissions written per transaction
+     * @return the number of submissions stored (submissions whose user doesn't exist in the database are skipped).
      * @throws SQLException
      */
-    public void addQuestion(Exercise.Question question, int exerciseId) throws SQLException {
-        // Insert the given question to the Question table
-        PreparedStatement preparedStatementAdd = db.prepareStatement("INSERT INTO Question (ExerciseId, Name, Desc, Points) VALUES (?, ?, ?, ?)");
-        // Setting parameters to replace the "?" in the sql string.
-        preparedStatementAdd.setInt(1, exerciseId);
-        preparedStatementAdd.setString(2, question.name);
-        preparedStatementAdd.setString(3, question.desc);
-        preparedStatementAdd.setInt(4, question.points);
-
-        // Executing the update
-        preparedStatementAdd.executeUpdate();
+    public int storeSubmissions(Iterator<Submission> submissions, int commitInterval) throws SQLException {
+        return timed("storeSubmissions", () -> writeSubmissions(submissions, commitInterval), NO_ROWS, Integer::longValue);
     }
 
-        /**
-         * Return a list of all the exercises in the database.
-         * <p>
-         * The list should be sorted by exercise id.
-         *
-         * @return list of all exercises.
-         * @throws SQLException
-         */
-    public List<Exercise> loadExercises() throws SQLException {
-        // Initialize a statement for the outer query
-        Statement st = db.createStatement();
-        ResultSet resExercises = st.executeQuery("SELECT * FROM Exercise ORDER BY ExerciseId");
-
-        // List to store the ordered exercises
-        List<Exercise> orderedExercisesList = new ArrayList<>();
-
-        // Iterate through the result set of exercises
-        while (resExercises.next()){
-
-            // Extract exercise details from the result set
-            int exerciseId = resExercises.getInt("ExerciseId");
-            String exerciseName = resExercises.getString("Name");
-            Date exerciseDueDate = resExercises.getDate("DueDate");
-
-            // Create an Exercise object with extracted details
-            Exercise exercise = new Exercise(exerciseId, exerciseName, exerciseDueDate);
-
-            // Create the question list for the current exercise
-            List<Exercise.Question> questionsList = new ArrayList<Exercise.Question>();
-
-            // Initialize a statement for the inner query (questions)
-            PreparedStatement preparedStatementQuestion = db.prepareStatement("SELECT * FROM Question WHERE ExerciseId = ?");
-            // Setting parameters to replace the "?" in the sql string.
-            preparedStatementQuestion.setInt(1, exerciseId);
-
-            // Executing the query
-            ResultSet resQuestion = preparedStatementQuestion.executeQuery();
-
-            // Iterate through the result set of questions
-            while (resQuestion.next()) {
-                // Extract question details from the result set
-                String questionName = resQuestion.getString("Name");
-                String questionDesc = resQuestion.getString("Desc");
-                int questionPoints = resQuestion.getInt("Points");
-
-                // Add the question to the list for the current exercise
-                exercise.addQuestion(questionName, questionDesc, questionPoints);
+    // Helper method - write the submissions through a batch writer, returning the number stored
+    private int writeSubmissions(Iterator<Submission> submissions, int commitInterval) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.write()) {
+            int stored = 0;
+
+            try (SubmissionBatchWriter writer = new SubmissionBatchWriter(lease.connection(), lease.statements(), commitInterval, maintainTotals, gradesBlobs, userIds, journal)) {
+                try {
+                    while (submissions.hasNext()) {
+                        if (writer.add(submissions.next()) != -1) {
+                            ++stored;
+                        }
+                    }
+                    writer.flush();
+                } catch (SQLException e) {
+                    writer.rollback();
+                    throw e;
+                }
             }
-
-            // Add the exercise to the list
-            orderedExercisesList.add(exercise);
+            return stored;
         }
-
-        return orderedExercisesList;
     }
 
-    // ========== Submission Storage ===============
-
     /**
-     * Store a submission in the database.
+     * Store a submission in the database asynchronously.
      * The id field of the submission will be ignored if it is -1.
      * <p>
-     * Return -1 if the corresponding user doesn't exist in the database.
+     * The submission is queued and written by a single writer thread, which commits all the submissions queued
+     * meanwhile (up to {@link #DEFAULT_COMMIT_INTERVAL}) as one transaction, so bursts of submissions don't pay
+     * for a commit each. The returned future completes once the submission is committed. Submissions still queued
+     * when the database is closed are written first.
+     * <p>
+     * When the queue is full (see {@link #setSubmissionQueueCapacity(int)}), this blocks, throws or drops the
+     * submission, as set by {@link #setSubmissionOverflowPolicy(OverflowPolicy)}.
+     * <p>
+     * With a submission journal (see {@link #setSubmissionJournal(String)}), the submission is given its id and
+     * appended to the journal, and the future completes as soon as the journal is on disk; the database commit
+     * follows in the background.
      *
      * @param submission
-     * @return the submission id.
-     * @throws SQLException
+     * @return the future of the submission id (-1 if the corresponding user doesn't exist in the database).
+     * @throws RejectedExecutionException if the queue is full and the policy is {@link OverflowPolicy#FAIL_FAST}
      */
-    public int storeSubmission(Submission submission) throws SQLException {
-        // Create a table of all users with the same Username as the given submission's userName
-        PreparedStatement preparedStatementUsername = db.prepareStatement("SELECT * FROM User WHERE Username = ?");
-        // Setting parameters to replace the "?" in the sql string.
-        preparedStatementUsername.setString(1, submission.user.username);
+    public CompletableFuture<Integer> submitAsync(Submission submission) {
+        return timedAsync("submitAsync", () -> queueSubmission(submission), STORED);
+    }
 
-        // Executing the query
-        ResultSet resUser = preparedStatementUsername.executeQuery();
+    // Helper method - queue the submission for the writer thread (journaling it first, if there is a journal)
+    private CompletableFuture<Integer> queueSubmission(Submission submission) {
+        AsyncSubmissionWriter writer = submissionWriter();
+        if (journal != null) {
+            // Only submissions of existing users are journaled, so the acknowledged id is the stored one
+            try (ConnectionPool.Lease lease = pool.read()) {
+                if (resolveUserId(lease, submission.user.username) == -1) {
+                    return CompletableFuture.completedFuture(-1);
+                }
+            } catch (SQLException e) {
+                CompletableFuture<Integer> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+        return writer.submit(submission);
+    }
 
-        // Create a table of all exercises with the same exerciseId as the given exercise's exerciseId
-        PreparedStatement preparedStatementExerciseId = db.prepareStatement("SELECT * FROM Exercise WHERE ExerciseId = ?");
-        // Setting parameters to replace the "?" in the sql string.
-        preparedStatementExerciseId.setInt(1, submission.exercise.id);
+    /**
+     * Write a QuestionGrade row for every question grade stored in a grades BLOB (see {@link #setGradesBlobs(boolean)}),
+     * for tools that read the normalized table.
+     * <p>
+     * The rows are a snapshot: submissions stored later don't get rows, and the rows are folded back into the BLOBs
+     * (and removed) the next time the database is opened.
+     *
+     * @return the number of rows written (0 if the database has no grades BLOBs).
+     * @throws SQLException
+     */
+    public int expandQuestionGrades() throws SQLException {
+        return timed("expandQuestionGrades", this::writeQuestionGrades, NO_ROWS, Integer::longValue);
+    }
 
-        // Executing the query
-        ResultSet resExercise = preparedStatementExerciseId.executeQuery();
+    // Helper method - write the QuestionGrade rows of every grades BLOB as one transaction
+    private int writeQuestionGrades() throws SQLException {
+        if (!gradesBlobs) {
+            return 0;
+        }
+        try (ConnectionPool.Lease lease = pool.write()) {
+            // Write all the rows as a single transaction (unless the caller already opened one, in which case the caller commits).
+            boolean ownTransaction = lease.connection().getAutoCommit();
+            if (ownTransaction) {
+                lease.connection().setAutoCommit(false);
+            }
+            try {
+                int rows = GradesBlobs.expand(lease.connection());
+                if (ownTransaction) {
+                    lease.connection().commit();
+                }
+                return rows;
+            } catch (SQLException e) {
+                if (ownTransaction) {
+                    lease.connection().rollback();
+                }
+                throw e;
+            } finally {
+                if (ownTransaction) {
+                    lease.connection().setAutoCommit(true);
+                }
+            }
+        }
+    }
 
-        // A user with the same Username does exist - Store the submission
-        if (resUser.next()){
-            PreparedStatement preparedStatementAdd;
+    /**
+     * @return the number of submissions queued by {@link #submitAsync(Submission)} and not yet written.
+     */
+    public int getSubmissionQueueSize() {
+        AsyncSubmissionWriter writer = currentSubmissionWriter();
+        return writer == null ? 0 : writer.queued();
+    }
 
-            // If the submissionId is not -1, generate it during insertion
-            if (submission.id != -1) {
-                // Insert the given submission to the Submission table
-                preparedStatementAdd = db.prepareStatement("INSERT INTO Submission (UserId, ExerciseId, SubmissionTime) VALUES (?, ?, ?)",
-                        Statement.RETURN_GENERATED_KEYS);
-                // Setting parameters to replace the "?" in the sql string.
-                preparedStatementAdd.setInt(1, resUser.getInt("UserId"));
-                preparedStatementAdd.setInt(2, resExercise.getInt("ExerciseId"));
-                preparedStatementAdd.setDate(3, new java.sql.Date(submission.submissionTime.getTime()));
-            }
+    /**
+     * @return the number of submissions {@link #submitAsync(Submission)} rejected or dropped since the database was opened.
+     */
+    public long getSubmissionsRejected() {
+        AsyncSubmissionWriter writer = currentSubmissionWriter();
+        return writer == null ? 0 : writer.rejected();
+    }
 
-            // The id field of the submission will be ignored if it is -1.
-            else {
-                // Insert the given submission to the Submission table
-                preparedStatementAdd = db.prepareStatement("INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime) VALUES (?, ?, ?, ?)",
-                        Statement.RETURN_GENERATED_KEYS);
-                // Setting parameters to replace the "?" in the sql string.
-                preparedStatementAdd.setInt(1, submission.id);
-                preparedStatementAdd.setInt(2, resUser.getInt("UserId"));
-                preparedStatementAdd.setInt(3, resExercise.getInt("ExerciseId"));
-                preparedStatementAdd.setDate(4, new java.sql.Date(submission.submissionTime.getTime()));
-            }
+    // Helper method - the writer thread of submitAsync, started on first use
+    private synchronized AsyncSubmissionWriter submissionWriter() {
+        if (pool == null) {
+            throw new IllegalStateException("The database is not open");
+        }
+        if (submissionWriter == null) {
+            submissionWriter = new AsyncSubmissionWriter(pool, maintainTotals, gradesBlobs, userIds, submissionQueueCapacity,
+                    DEFAULT_COMMIT_INTERVAL, submissionOverflowPolicy, journal);
+        }
+        return submissionWriter;
+    }
 
-            // Execute the update
-            preparedStatementAdd.executeUpdate();
+    // Helper method - the writer thread of submitAsync, or null if it was not started
+    private synchronized AsyncSubmissionWriter currentSubmissionWriter() {
+        return submissionWriter;
+    }
 
-            // Return the new SubmissionId
-            ResultSet generatedKeys = preparedStatementAdd.getGeneratedKeys();
-            return generatedKeys.getInt(1);
+    // Helper method - close the submission journal (everything in it is committed once the writer is stopped)
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the submission journal", e);
+        } finally {
+            journal = null;
+        }
+    }
 
+    // Helper method - write the queued submissions and stop the writer thread of submitAsync
+    private void stopSubmissionWriter() {
+        AsyncSubmissionWriter writer;
+        synchronized (this) {
+            writer = submissionWriter;
+            submissionWriter = null;
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        // A user with the same Username does not exist - Return -1
-        return -1;
     }
 
 
@@ -421,18 +1874,35 @@ public class Smarticulous {
      * Parameter 3 to the number of questions in the given exercise.
      * <p>
      * This will be used by {@link #getLastSubmission(User, Exercise)}
+     * <p>
+     * The statement is prepared under the writer lease, but belongs to the caller, who executes it (and closes it)
+     * on the writer connection without holding the lease - so use it from a single thread only, with no concurrent
+     * writes through this instance.
      *
      * @return
+     * @throws SQLException if the database stores grades BLOBs, which have no QuestionGrade rows to return
      */
     PreparedStatement getLastSubmissionGradesStatement() throws SQLException {
-        // Set the string of the SQL
-        String sql = "SELECT S.SubmissionId, Q.QuestionId, Q.Grade, S.SubmissionTime " + // Select the relevant fields to be shown in the row
-                "FROM Submission S INNER JOIN QuestionGrade Q ON S.SubmissionId=Q.SubmissionId " +
-                "WHERE S.UserId = (SELECT UserId FROM User WHERE Username = ?) AND S.ExerciseId = ? " + // The rows that relevant for the given exercise by the given user
-                "AND S.SubmissionTime = (SELECT MAX(SubmissionTime) FROM Submission WHERE UserId = S.UserId AND ExerciseId = S.ExerciseId) " + // Show rows of the latest submission
-                "ORDER BY Q.QuestionId LIMIT ?"; // The rows should be sorted by QuestionId, Limit to show only the number of question that the exercise has.
-        return db.prepareStatement(sql);
+        requireQuestionGrades();
+        return prepareForCaller(LAST_SUBMISSION_GRADES_SQL);
+    }
 
+    // The SQL of getLastSubmissionGradesStatement(), shared with the statement cache
+    // The latest submission is found by walking a Submission (UserId, ExerciseId, SubmissionTime) index backwards (either column order),
+    // and its grades by the QuestionGrade primary key, so no table is scanned.
+    static final String LAST_SUBMISSION_GRADES_SQL = lastSubmissionGradesSql("(SELECT UserId FROM User WHERE Username = ?)");
+
+    // The same, with parameter 1 set to the UserId (see getSubmission(User, int, Exercise, PreparedStatement))
+    static final String LAST_SUBMISSION_GRADES_BY_USER_ID_SQL = lastSubmissionGradesSql("?");
+
+    // Helper method - the SQL of the latest submission's grades, for the given UserId expression
+    private static String lastSubmissionGradesSql(String userId) {
+        return "SELECT S.SubmissionId, Q.QuestionId, Q.Grade, S.SubmissionTime " + // Select the relevant fields to be shown in the row
+                "FROM (SELECT SubmissionId, SubmissionTime FROM Submission " +
+                "WHERE UserId = " + userId + " AND ExerciseId = ? " + // The rows that relevant for the given exercise by the given user
+                "ORDER BY SubmissionTime DESC, SubmissionId DESC LIMIT 1) S " + // Only the latest submission (the highest id among equal times)
+                "INNER JOIN QuestionGrade Q ON S.SubmissionId=Q.SubmissionId " +
+                "ORDER BY Q.QuestionId LIMIT ?"; // The rows should be sorted by QuestionId, Limit to show only the number of question that the exercise has.
     }
 
     /**
@@ -450,11 +1920,51 @@ public class Smarticulous {
      * Parameter 3 to the number of questions in the given exercise.
      * <p>
      * This will be used by {@link #getBestSubmission(User, Exercise)}
+     * <p>
+     * The statement is prepared under the writer lease, but belongs to the caller, who executes it (and closes it)
+     * on the writer connection without holding the lease - so use it from a single thread only, with no concurrent
+     * writes through this instance.
      *
+     * @throws SQLException if the database stores grades BLOBs, which have no QuestionGrade rows to return
      */
     PreparedStatement getBestSubmissionGradesStatement() throws SQLException {
-        // TODO: Implement
-        return null;
+        requireQuestionGrades();
+        return prepareForCaller(BEST_SUBMISSION_GRADES_SQL);
+    }
+
+    // Helper method - prepare a statement owned by the caller on the writer connection, under the writer lease
+    private PreparedStatement prepareForCaller(String sql) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.write()) {
+            return lease.connection().prepareStatement(sql);
+        }
+    }
+
+    // Helper method - fail the per-question statements with grades BLOBs, rather than silently returning no rows
+    private void requireQuestionGrades() throws SQLException {
+        if (gradesBlobs) {
+            throw new SQLException("The database stores grades BLOBs, read them through getLastSubmission / getBestSubmission");
+        }
+    }
+
+    // The SQL of getBestSubmissionGradesStatement(), shared with the statement cache
+    // The user's submissions are found by a Submission (UserId, ExerciseId, SubmissionTime) index, and their grades and
+    // question points by the QuestionGrade and Question primary keys, so only that user's rows of the exercise are read.
+    static final String BEST_SUBMISSION_GRADES_SQL = bestSubmissionGradesSql("(SELECT UserId FROM User WHERE Username = ?)");
+
+    // The same, with parameter 1 set to the UserId (see getSubmission(User, int, Exercise, PreparedStatement))
+    static final String BEST_SUBMISSION_GRADES_BY_USER_ID_SQL = bestSubmissionGradesSql("?");
+
+    // Helper method - the SQL of the best submission's grades, for the given UserId expression
+    private static String bestSubmissionGradesSql(String userId) {
+        return "SELECT S.SubmissionId, G.QuestionId, G.Grade, S.SubmissionTime " + // Select the relevant fields to be shown in the row
+                "FROM (SELECT S.SubmissionId, S.SubmissionTime FROM Submission S " +
+                "LEFT JOIN QuestionGrade G ON G.SubmissionId = S.SubmissionId " +
+                "LEFT JOIN Question Q ON Q.ExerciseId = S.ExerciseId AND Q.QuestionId = G.QuestionId " + // The points of each graded question
+                "WHERE S.UserId = " + userId + " AND S.ExerciseId = ? " + // The rows that relevant for the given exercise by the given user
+                "GROUP BY S.SubmissionId " +
+                "ORDER BY TOTAL(G.Grade * Q.Points) DESC, S.SubmissionTime DESC, S.SubmissionId DESC LIMIT 1) S " + // Only the highest point total (the latest among equal totals)
+                "INNER JOIN QuestionGrade G ON S.SubmissionId = G.SubmissionId " +
+                "ORDER BY G.QuestionId LIMIT ?"; // The rows should be sorted by QuestionId, Limit to show only the number of question that the exercise has.
     }
 
     /**
@@ -474,25 +1984,50 @@ public class Smarticulous {
      */
     Submission getSubmission(User user, Exercise exercise, PreparedStatement stmt) throws SQLException {
         stmt.setString(1, user.username);
+        return readSubmission(user, exercise, stmt);
+    }
+
+    /**
+     * Return a submission for the given exercise by the given user that satisfies
+     * some condition (as defined by an SQL prepared statement), with the user already resolved to its UserId.
+     * <p>
+     * The prepared statement should accept the UserId as parameter 1, and otherwise be as in
+     * {@link #getSubmission(User, Exercise, PreparedStatement)}.
+     *
+     * @param user
+     * @param userId the UserId of the user
+     * @param exercise
+     * @param stmt
+     * @return
+     * @throws SQLException
+     */
+    Submission getSubmission(User user, int userId, Exercise exercise, PreparedStatement stmt) throws SQLException {
+        stmt.setInt(1, userId);
+        return readSubmission(user, exercise, stmt);
+    }
+
+    // Helper method - set the exercise parameters of a submission query (parameter 1 is already set), execute it and build the submission
+    private Submission readSubmission(User user, Exercise exercise, PreparedStatement stmt) throws SQLException {
         stmt.setInt(2, exercise.id);
         stmt.setInt(3, exercise.questions.size());
 
-        ResultSet res = stmt.executeQuery();
+        try (ResultSet res = stmt.executeQuery()) {
 
-        boolean hasNext = res.next();
-        if (!hasNext)
-            return null;
+            boolean hasNext = res.next();
+            if (!hasNext)
+                return null;
 
-        int sid = res.getInt("SubmissionId");
-        Date submissionTime = new Date(res.getLong("SubmissionTime"));
+            int sid = res.getInt("SubmissionId");
+            Date submissionTime = new Date(res.getLong("SubmissionTime"));
 
-        float[] grades = new float[exercise.questions.size()];
+            float[] grades = new float[exercise.questions.size()];
 
-        for (int i = 0; hasNext; ++i, hasNext = res.next()) {
-            grades[i] = res.getFloat("Grade");
-        }
+            for (int i = 0; hasNext; ++i, hasNext = res.next()) {
+                grades[i] = res.getFloat("Grade");
+            }
 
-        return new Submission(sid, user, exercise, submissionTime, (float[]) grades);
+            return new Submission(sid, user, exercise, submissionTime, (float[]) grades);
+        }
     }
 
     /**
@@ -506,7 +2041,23 @@ public class Smarticulous {
      * @throws SQLException
      */
     public Submission getLastSubmission(User user, Exercise exercise) throws SQLException {
-        return getSubmission(user, exercise, getLastSubmissionGradesStatement());
+        return timed("getLastSubmission", () -> findLastSubmission(user, exercise), FOUND, NO_ROWS);
+    }
+
+    // Helper method - read the latest submission, through the summary pointer or grades BLOBs if the database has them
+    private Submission findLastSubmission(User user, Exercise exercise) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.read()) {
+            int userId = resolveUserId(lease, user.username);
+            if (userId == -1) {
+                return null;
+            }
+            if (gradesBlobs) {
+                return getBlobSubmission(lease, user, userId, exercise, GradesBlobs.LAST_SUBMISSION_SQL);
+            }
+            // Follow the summary pointer if the database has one
+            String sql = maintainTotals ? SubmissionTotals.LAST_SUBMISSION_GRADES_SQL : LAST_SUBMISSION_GRADES_BY_USER_ID_SQL;
+            return getSubmission(user, userId, exercise, lease.prepare(sql));
+        }
     }
 
 
@@ -519,7 +2070,301 @@ public class Smarticulous {
      * @throws SQLException
      */
     public Submission getBestSubmission(User user, Exercise exercise) throws SQLException {
-        return getSubmission(user, exercise, getBestSubmissionGradesStatement());
+        return timed("getBestSubmission", () -> findBestSubmission(user, exercise), FOUND, NO_ROWS);
+    }
+
+    // Helper method - read the best submission, through the summary pointer or grades BLOBs if the database has them
+    private Submission findBestSubmission(User user, Exercise exercise) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.read()) {
+            int userId = resolveUserId(lease, user.username);
+            if (userId == -1) {
+                return null;
+            }
+            if (gradesBlobs) {
+                // Ranked by the point totals stored with the BLOBs
+                return getBlobSubmission(lease, user, userId, exercise, GradesBlobs.BEST_SUBMISSION_SQL);
+            }
+            // Follow the summary pointer if the database has one
+            String sql = maintainTotals ? SubmissionTotals.BEST_SUBMISSION_GRADES_SQL : BEST_SUBMISSION_GRADES_BY_USER_ID_SQL;
+            return getSubmission(user, userId, exercise, lease.prepare(sql));
+        }
+    }
+
+    // Helper method - read a submission of the user for the exercise from its grades BLOB
+    private Submission getBlobSubmission(ConnectionPool.Lease lease, User user, int userId, Exercise exercise, String sql) throws SQLException {
+        PreparedStatement stmt = lease.prepare(sql);
+        // Setting parameters to replace the "?" in the sql string.
+        stmt.setInt(1, userId);
+        stmt.setInt(2, exercise.id);
+        return GradesBlobs.read(user, exercise, stmt);
+    }
+
+    // ============= Submission streams ===============
+
+    /**
+     * Return every submission of the given exercise as a stream read from a forward-only cursor, one submission at
+     * a time, so exporting any number of submissions takes constant memory.
+     * <p>
+     * The stream holds a database connection until it is closed, so it must be closed (e.g. by try-with-resources)
+     * on the thread that opened it. Without read connections (see {@link #setReadConnections(int)}) that connection
+     * is the writer, so writes from other threads wait until the stream is closed; with read connections a thread
+     * holding a stream can't write until it closes it. Errors while the stream is consumed are thrown as
+     * {@link UncheckedSQLException}.
+     *
+     * @param exercise
+     * @return the submissions, sorted by user id and then submission time.
+     * @throws SQLException
+     */
+    public Stream<Submission> streamSubmissions(Exercise exercise) throws SQLException {
+        Map<Integer, Exercise> exercises = new HashMap<>();
+        exercises.put(exercise.id, exercise);
+        return timed("streamSubmissionsOfExercise", () -> streamSubmissions("streamSubmissionsOfExercise",
+                gradesBlobs ? SubmissionCursor.BLOB_BY_EXERCISE_SQL : SubmissionCursor.BY_EXERCISE_SQL, exercise.id, exercises),
+                NO_ROWS, NO_ROWS);
+    }
+
+    /**
+     * Return every submission of the given user as a stream read from a forward-only cursor, one submission at a
+     * time. The stream must be closed as in {@link #streamSubmissions(Exercise)}.
+     *
+     * @param user
+     * @return the submissions, sorted by exercise id and then submission time (none if the user is not in the database).
+     * @throws SQLException
+     */
+    public Stream<Submission> streamSubmissions(User user) throws SQLException {
+        return timed("streamSubmissionsOfUser", () -> openUserStream(user), NO_ROWS, NO_ROWS);
+    }
+
+    // Helper method - open the submission stream of a user (an empty one if the user is not in the database)
+    private Stream<Submission> openUserStream(User user) throws SQLException {
+        int userId;
+        try (ConnectionPool.Lease lease = pool.read()) {
+            userId = resolveUserId(lease, user.username);
+        }
+        if (userId == -1) {
+            return Stream.empty();
+        }
+
+        // The exercises the submissions belong to
+        Map<Integer, Exercise> exercises = new HashMap<>();
+        for (Exercise exercise : readAllExercises()) {
+            exercises.put(exercise.id, exercise);
+        }
+        return streamSubmissions("streamSubmissionsOfUser", gradesBlobs ? SubmissionCursor.BLOB_BY_USER_SQL : SubmissionCursor.BY_USER_SQL,
+                userId, exercises);
+    }
+
+    // Helper method - open a cursor over a submission query and return it as a stream that releases the connection when closed
+    // (and records the submissions it read as read by the operation)
+    private Stream<Submission> streamSubmissions(String operation, String sql, int id, Map<Integer, Exercise> exercises) throws SQLException {
+        MetricsRegistry metrics = this.metrics;
+        ConnectionPool.Lease lease = pool.read();
+        PreparedStatement stmt = null;
+        try {
+            // Not taken from the statement cache: the cursor stays open while the same thread runs other queries
+            stmt = lease.connection().prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(streamFetchSize);
+            // Setting parameters to replace the "?" in the sql string.
+            stmt.setInt(1, id);
+            ResultSet res = stmt.executeQuery();
+
+            PreparedStatement cursorStmt = stmt;
+            // A stream is consumed by a single thread
+            long[] read = {0};
+            return StreamSupport.stream(new SubmissionCursor(res, exercises, gradesBlobs), false)
+                    .peek(submission -> ++read[0])
+                    .onClose(() -> {
+                        metrics.recordRows(operation, read[0], 0);
+                        try {
+                            res.close();
+                            cursorStmt.close();
+                        } catch (SQLException e) {
+                            throw new UncheckedSQLException(e);
+                        } finally {
+                            lease.close();
+                        }
+                    });
+        } catch (SQLException | RuntimeException e) {
+            try {
+                if (stmt != null) {
+                    stmt.close();
+                }
+            } finally {
+                lease.close();
+            }
+            throw e;
+        }
+    }
+
+    // ============= Gradebook ===============
+
+    /**
+     * Return the latest submission of every user that submitted the given exercise, in a single query.
+     *
+     * @param exercise
+     * @return the submissions, sorted by user id.
+     * @throws SQLException
+     */
+    public List<Submission> getLastSubmissions(Exercise exercise) throws SQLException {
+        if (gradesBlobs) {
+            return getExerciseGradebook("getLastSubmissionsOfExercise", exercise, Gradebook.BLOB_LAST_BY_EXERCISE_SQL);
+        }
+        return getExerciseGradebook("getLastSubmissionsOfExercise", exercise, Gradebook.LAST_BY_EXERCISE_SQL);
+    }
+
+    /**
+     * Return the submission with the highest total grade of every user that submitted the given exercise,
+     * in a single query.
+     *
+     * @param exercise
+     * @return the submissions, sorted by user id.
+     * @throws SQLException
+     */
+    public List<Submission> getBestSubmissions(Exercise exercise) throws SQLException {
+        if (gradesBlobs) {
+            return getExerciseGradebook("getBestSubmissionsOfExercise", exercise, Gradebook.BLOB_BEST_BY_EXERCISE_SQL);
+        }
+        return getExerciseGradebook("getBestSubmissionsOfExercise", exercise, maintainTotals ? Gradebook.MATERIALIZED_BEST_BY_EXERCISE_SQL : Gradebook.BEST_BY_EXERCISE_SQL);
+    }
+
+    /**
+     * Return the latest submission of the given user for every exercise the user submitted, in a single query.
+     *
+     * @param user
+     * @return the submissions, sorted by exercise id (empty if the user is not in the database).
+     * @throws SQLException
+     */
+    public List<Submission> getLastSubmissions(User user) throws SQLException {
+        if (gradesBlobs) {
+            return getUserGradebook("getLastSubmissionsOfUser", user, Gradebook.BLOB_LAST_BY_USER_SQL);
+        }
+        return getUserGradebook("getLastSubmissionsOfUser", user, Gradebook.LAST_BY_USER_SQL);
+    }
+
+    /**
+     * Return the submission with the highest total grade of the given user for every exercise the user submitted,
+     * in a single query.
+     *
+     * @param user
+     * @return the submissions, sorted by exercise id (empty if the user is not in the database).
+     * @throws SQLException
+     */
+    public List<Submission> getBestSubmissions(User user) throws SQLException {
+        if (gradesBlobs) {
+            return getUserGradebook("getBestSubmissionsOfUser", user, Gradebook.BLOB_BEST_BY_USER_SQL);
+        }
+        return getUserGradebook("getBestSubmissionsOfUser", user, maintainTotals ? Gradebook.MATERIALIZED_BEST_BY_USER_SQL : Gradebook.BEST_BY_USER_SQL);
+    }
+
+    // Helper method - run a gradebook query (a BLOB one with grades BLOBs) over the submissions of one exercise,
+    // recorded as the given operation
+    private List<Submission> getExerciseGradebook(String operation, Exercise exercise, String sql) throws SQLException {
+        return timed(operation, () -> {
+            try (ConnectionPool.Lease lease = pool.read()) {
+                PreparedStatement stmt = lease.prepare(sql);
+                // Setting parameters to replace the "?" in the sql string.
+                stmt.setInt(1, exercise.id);
+
+                Map<Integer, Exercise> exercises = new HashMap<>();
+                exercises.put(exercise.id, exercise);
+                return gradesBlobs ? Gradebook.readBlobs(stmt, exercises) : Gradebook.read(stmt, exercises);
+            }
+        }, List::size, NO_ROWS);
+    }
+
+    // Helper method - run a gradebook query (a BLOB one with grades BLOBs) over the submissions of one user,
+    // recorded as the given operation
+    private List<Submission> getUserGradebook(String operation, User user, String sql) throws SQLException {
+        return timed(operation, () -> {
+            try (ConnectionPool.Lease lease = pool.read()) {
+                int userId = resolveUserId(lease, user.username);
+                if (userId == -1) {
+                    return new ArrayList<>();
+                }
+
+                // The exercises the submissions belong to
+                Map<Integer, Exercise> exercises = new HashMap<>();
+                for (Exercise exercise : readAllExercises()) {
+                    exercises.put(exercise.id, exercise);
+                }
+
+                PreparedStatement stmt = lease.prepare(sql);
+                // Setting parameters to replace the "?" in the sql string.
+                stmt.setInt(1, userId);
+                return gradesBlobs ? Gradebook.readBlobs(stmt, exercises) : Gradebook.read(stmt, exercises);
+            }
+        }, List::size, NO_ROWS);
+    }
+
+    // ============= Metrics ===============
+
+    /**
+     * The body of a public method, measured by {@link #timed}.
+     */
+    private interface Operation<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    // Record counts of the public methods' results
+    private static final ToLongFunction<Object> NO_ROWS = result -> 0;
+    private static final ToLongFunction<Object> ONE_ROW = result -> 1;
+    private static final ToLongFunction<Object> FOUND = result -> result == null ? 0 : 1;
+    private static final ToLongFunction<Integer> STORED = id -> id == -1 ? 0 : 1;
+
+    // Helper method - run the body of a public method, recording its latency, whether it threw, and (if it returned)
+    // the records it read and wrote, as counted from its result
+    private <T, E extends Exception> T timed(String operation, Operation<T, E> call,
+                                             ToLongFunction<? super T> rowsRead, ToLongFunction<? super T> rowsWritten) throws E {
+        // The registry at the start of the call records the whole call
+        MetricsRegistry metrics = this.metrics;
+        long start = System.nanoTime();
+        T result;
+        try {
+            result = call.call();
+        } catch (Throwable e) {
+            metrics.recordCall(operation, System.nanoTime() - start, true);
+            throw e;
+        }
+        metrics.recordCall(operation, System.nanoTime() - start, false);
+        recordRows(metrics, operation, rowsRead.applyAsLong(result), rowsWritten.applyAsLong(result));
+        return result;
+    }
+
+    // Helper method - run the body of an asynchronous public method, recording it as above once its future completes
+    private <T, E extends Exception> CompletableFuture<T> timedAsync(String operation, Operation<CompletableFuture<T>, E> call,
+                                                                     ToLongFunction<? super T> rowsWritten) throws E {
+        MetricsRegistry metrics = this.metrics;
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = call.call();
+        } catch (Throwable e) {
+            metrics.recordCall(operation, System.nanoTime() - start, true);
+            throw e;
+        }
+        // The caller's future completes (with the same result or cause) once the call is recorded
+        return future.whenComplete((result, error) -> {
+            metrics.recordCall(operation, System.nanoTime() - start, error != null);
+            if (error == null) {
+                recordRows(metrics, operation, 0, rowsWritten.applyAsLong(result));
+            }
+        });
+    }
+
+    // Helper method - record the records of a call, if any
+    private static void recordRows(MetricsRegistry metrics, String operation, long rowsRead, long rowsWritten) {
+        if (rowsRead != 0 || rowsWritten != 0) {
+            metrics.recordRows(operation, rowsRead, rowsWritten);
+        }
+    }
+
+    // Helper method - the number of records of the given exercises: the exercises and their questions
+    private static long exerciseRecords(List<Exercise> exercises) {
+        long records = exercises.size();
+        for (Exercise exercise : exercises) {
+            records += exercise.questions.size();
+        }
+        return records;
     }
 
 
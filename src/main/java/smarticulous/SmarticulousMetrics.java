@@ -0,0 +1,77 @@
+package smarticulous;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The {@link SmarticulousMetricsMXBean} of an open {@link Smarticulous} instance.
+ */
+class SmarticulousMetrics implements SmarticulousMetricsMXBean {
+
+    private final Smarticulous smarticulous;
+    private final ConnectionPool pool;
+    private final BoundedCache<?, ?> exercises;
+    private final BoundedCache<?, ?> logins;
+
+    /**
+     * Bound to the caches of the open database, so the bean never sees a half closed instance.
+     *
+     * @param smarticulous
+     */
+    SmarticulousMetrics(Smarticulous smarticulous) {
+        this.smarticulous = smarticulous;
+        this.pool = smarticulous.pool;
+        this.exercises = smarticulous.exercises;
+        this.logins = smarticulous.logins;
+    }
+
+    @Override
+    public Map<String, OperationMetrics> getOperations() {
+        MetricsRegistry registry = smarticulous.getMetricsRegistry();
+        if (registry instanceof Metrics) {
+            return ((Metrics) registry).operations();
+        }
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public long getStatementCacheHits() {
+        return pool.statementCacheHits();
+    }
+
+    @Override
+    public long getStatementCacheMisses() {
+        return pool.statementCacheMisses();
+    }
+
+    @Override
+    public double getStatementCacheHitRate() {
+        return rate(pool.statementCacheHits(), pool.statementCacheMisses());
+    }
+
+    @Override
+    public double getExerciseCacheHitRate() {
+        return rate(exercises.hits(), exercises.misses());
+    }
+
+    @Override
+    public double getLoginCacheHitRate() {
+        return rate(logins.hits(), logins.misses());
+    }
+
+    @Override
+    public int getSubmissionQueueSize() {
+        return smarticulous.getSubmissionQueueSize();
+    }
+
+    @Override
+    public long getSubmissionsRejected() {
+        return smarticulous.getSubmissionsRejected();
+    }
+
+    // Helper method - hits / (hits + misses), 0 if there were none
+    static double rate(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
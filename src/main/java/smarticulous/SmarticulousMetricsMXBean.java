@@ -0,0 +1,50 @@
+package smarticulous;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a {@link Smarticulous} instance's metrics, registered while its database is open
+ * (see {@link Smarticulous#setJmxName(String)}).
+ */
+public interface SmarticulousMetricsMXBean {
+
+    /**
+     * @return the metrics of every operation, by method name (empty unless the registry is a {@link Metrics}).
+     */
+    Map<String, OperationMetrics> getOperations();
+
+    /**
+     * @return the number of prepared statements reused from the statement caches of all connections.
+     */
+    long getStatementCacheHits();
+
+    /**
+     * @return the number of prepared statements the statement caches of all connections had to prepare.
+     */
+    long getStatementCacheMisses();
+
+    /**
+     * @return the fraction of prepared statements reused from the statement caches (0 before any statement).
+     */
+    double getStatementCacheHitRate();
+
+    /**
+     * @return the fraction of exercises served by the exercise cache (0 before any lookup).
+     */
+    double getExerciseCacheHitRate();
+
+    /**
+     * @return the fraction of logins served by the login cache (0 before any lookup).
+     */
+    double getLoginCacheHitRate();
+
+    /**
+     * @return the number of submissions queued by {@link Smarticulous#submitAsync} and not yet written.
+     */
+    int getSubmissionQueueSize();
+
+    /**
+     * @return the number of submissions {@link Smarticulous#submitAsync} rejected or dropped.
+     */
+    long getSubmissionsRejected();
+}
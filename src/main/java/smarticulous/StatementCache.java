@@ -0,0 +1,168 @@
+package smarticulous;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded cache of prepared statements for a single connection, keyed by SQL text.
+ * <p>
+ * Statements are kept in least-recently-used order; when the cache is full the least recently used
+ * statement is evicted and closed. Statements returned by {@link #prepare(String)} belong to the cache:
+ * callers must close the result sets they open but never the statements themselves.
+ * <p>
+ * A returned statement stays open until {@link #release()} (called when the connection's lease is closed), so
+ * callers may hold several statements at once, e.g. a batch writer's inserts. Until then the cache may grow past
+ * its bound; the overflow is evicted on release.
+ * <p>
+ * Like the connection it wraps, a cache must only be used by one thread at a time.
+ */
+class StatementCache implements AutoCloseable {
+
+    /**
+     * The connection the statements are prepared on.
+     */
+    private final Connection db;
+
+    /**
+     * Maximum number of statements kept open.
+     */
+    private final int maxSize;
+
+    /**
+     * The cached statements, in access order (least recently used first).
+     */
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    /**
+     * The keys of the statements returned since the last {@link #release()}, which must not be evicted.
+     */
+    private final Set<String> inUse = new HashSet<>();
+
+    // Only incremented by the thread using the cache, but volatile so they can be monitored from any thread
+    private volatile long hits = 0;
+    private volatile long misses = 0;
+
+    StatementCache(Connection db, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.db = db;
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Return a prepared statement for the given SQL, reusing a cached one if possible.
+     * The parameters of a reused statement are cleared.
+     *
+     * @param sql
+     * @return the (cached) statement
+     * @throws SQLException
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * Return a prepared statement for the given SQL, reusing a cached one if possible.
+     * The parameters of a reused statement are cleared.
+     *
+     * @param sql
+     * @param autoGeneratedKeys {@link Statement#RETURN_GENERATED_KEYS} or {@link Statement#NO_GENERATED_KEYS}
+     * @return the (cached) statement
+     * @throws SQLException
+     */
+    PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : "N:" + sql;
+
+        inUse.add(key);
+        PreparedStatement statement = statements.get(key);
+        if (statement != null && !statement.isClosed()) {
+            ++hits;
+            statement.clearParameters();
+            return statement;
+        }
+
+        ++misses;
+        statement = db.prepareStatement(sql, autoGeneratedKeys);
+        statements.put(key, statement);
+        evictOverflow();
+        return statement;
+    }
+
+    /**
+     * Let the statements returned so far be evicted, and evict the ones past the bound.
+     *
+     * @throws SQLException
+     */
+    void release() throws SQLException {
+        inUse.clear();
+        evictOverflow();
+    }
+
+    /**
+     * @return the number of statements currently cached.
+     */
+    int size() {
+        return statements.size();
+    }
+
+    /**
+     * @return the number of {@link #prepare} calls that reused a cached statement.
+     */
+    long hits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of {@link #prepare} calls that had to prepare a new statement.
+     */
+    long misses() {
+        return misses;
+    }
+
+    /**
+     * Close all the cached statements and empty the cache.
+     *
+     * @throws SQLException the first error raised while closing; the remaining statements are still closed
+     */
+    @Override
+    public void close() throws SQLException {
+        SQLException error = null;
+        for (PreparedStatement statement : statements.values()) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        statements.clear();
+        inUse.clear();
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Helper method - close and remove the least recently used statements not in use until the cache fits its bound
+    private void evictOverflow() throws SQLException {
+        Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+        while (statements.size() > maxSize && it.hasNext()) {
+            Map.Entry<String, PreparedStatement> eldest = it.next();
+            if (inUse.contains(eldest.getKey())) {
+                continue;
+            }
+            it.remove();
+            eldest.getValue().close();
+        }
+    }
+}
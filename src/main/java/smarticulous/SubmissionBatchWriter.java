@@ -0,0 +1,262 @@
+package smarticulous;
+
+import smarticulous.db.Submission;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes many submissions through reusable, batched prepared statements.
+ * <p>
+ * Usernames are resolved through the shared {@link UserIdMap}, and unknown ones once per writer; submission ids are allocated up front (one past the current maximum),
+ * and the Submission and QuestionGrade rows (or Submission rows with grades BLOBs, see {@link GradesBlobs}) are sent as JDBC batches that are committed every
+ * {@code commitInterval} submissions. If the connection was already inside a transaction when the writer was
+ * created, nothing is committed and the caller stays in charge of the transaction.
+ */
+class SubmissionBatchWriter implements AutoCloseable {
+
+    /**
+     * The connection the submissions are written to.
+     */
+    private final Connection db;
+
+    /**
+     * Number of submissions written per transaction.
+     */
+    private final int commitInterval;
+
+    /**
+     * true if this writer opened the transaction (and therefore commits it).
+     */
+    private final boolean ownTransaction;
+
+    private final PreparedStatement userLookup;
+    private final PreparedStatement insertSubmission;
+    private final PreparedStatement insertGrade;
+
+    /**
+     * The materialized totals to maintain, or null if the database has none.
+     */
+    private final SubmissionTotals totals;
+
+    /**
+     * true if the grades are stored as BLOBs in the Submission rows instead of as QuestionGrade rows.
+     */
+    private final boolean gradesBlobs;
+
+    /**
+     * The point totals written with the grades BLOBs, or null without grades BLOBs.
+     */
+    private final GradesBlobs.Totals blobTotals;
+
+    /**
+     * The journal allocating the submission ids, or null if the writer allocates them itself.
+     */
+    private final SubmissionJournal journal;
+
+    /**
+     * The UserIds resolved so far, shared with the other writes and queries.
+     */
+    private final UserIdMap sharedUserIds;
+
+    /**
+     * Username to UserId for the usernames resolved by this writer but not shared. Unknown users are stored as -1.
+     */
+    private final Map<String, Integer> localUserIds = new HashMap<>();
+
+    /**
+     * The next SubmissionId to allocate, or -1 if it has not been read from the DB yet.
+     */
+    private int nextSubmissionId = -1;
+
+    /**
+     * Number of submissions added to the batch since the last flush.
+     */
+    private int pending = 0;
+
+    SubmissionBatchWriter(Connection db, StatementCache statements, int commitInterval, boolean maintainTotals,
+                          boolean gradesBlobs, UserIdMap sharedUserIds, SubmissionJournal journal) throws SQLException {
+        if (commitInterval <= 0) {
+            throw new IllegalArgumentException("commitInterval must be positive: " + commitInterval);
+        }
+        this.db = db;
+        this.commitInterval = commitInterval;
+        this.sharedUserIds = sharedUserIds;
+        this.journal = journal;
+        this.gradesBlobs = gradesBlobs;
+
+        this.ownTransaction = db.getAutoCommit();
+        if (ownTransaction) {
+            db.setAutoCommit(false);
+        }
+
+        userLookup = statements.prepare("SELECT UserId FROM User WHERE Username = ?");
+        insertSubmission = statements.prepare(gradesBlobs
+                ? "INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime, GradesBlob, TotalGrade) VALUES (?, ?, ?, ?, ?, ?)"
+                : "INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime) VALUES (?, ?, ?, ?)");
+        insertGrade = statements.prepare("INSERT INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (?, ?, ?)");
+        blobTotals = gradesBlobs ? new GradesBlobs.Totals(statements.prepare(GradesBlobs.POINTS_SQL)) : null;
+        totals = maintainTotals ? new SubmissionTotals(statements) : null;
+    }
+
+    /**
+     * Add a submission to the current batch, flushing (and committing) the batch once it reaches the commit interval.
+     * The id field of the submission will be ignored if it is -1.
+     *
+     * @param submission
+     * @return the submission id, or -1 if the corresponding user doesn't exist in the database.
+     * @throws SQLException
+     */
+    int add(Submission submission) throws SQLException {
+        int userId = resolveUser(submission.user.username);
+        if (userId == -1) {
+            return -1;
+        }
+
+        int submissionId = allocateSubmissionId(submission.id);
+
+        // Setting parameters to replace the "?" in the sql string.
+        insertSubmission.setInt(1, submissionId);
+        insertSubmission.setInt(2, userId);
+        insertSubmission.setInt(3, submission.exercise.id);
+        insertSubmission.setDate(4, new java.sql.Date(submission.submissionTime.getTime()));
+        if (gradesBlobs) {
+            insertSubmission.setBytes(5, GradesBlobs.encode(submission.questionGrades));
+            insertSubmission.setDouble(6, blobTotals.total(submission.exercise.id, submission.questionGrades));
+        }
+        insertSubmission.addBatch();
+
+        // Question ids are 1-based: questionGrades[i] is the grade of question i + 1.
+        if (!gradesBlobs && submission.questionGrades != null) {
+            for (int i = 0; i < submission.questionGrades.length; ++i) {
+                insertGrade.setInt(1, submissionId);
+                insertGrade.setInt(2, i + 1);
+                insertGrade.setFloat(3, submission.questionGrades[i]);
+                insertGrade.addBatch();
+            }
+        }
+
+        if (totals != null) {
+            totals.addBatch(submissionId, userId, submission.exercise.id);
+        }
+
+        if (++pending >= commitInterval) {
+            flush();
+        }
+        return submissionId;
+    }
+
+    /**
+     * Execute the pending batches and commit them (if this writer owns the transaction).
+     *
+     * @throws SQLException
+     */
+    void flush() throws SQLException {
+        if (pending == 0) {
+            return;
+        }
+        insertSubmission.executeBatch();
+        insertGrade.executeBatch();
+        if (totals != null) {
+            totals.executeBatch();
+        }
+        pending = 0;
+
+        if (ownTransaction) {
+            db.commit();
+        }
+    }
+
+    /**
+     * Discard everything written since the last commit.
+     *
+     * @throws SQLException
+     */
+    void rollback() throws SQLException {
+        insertSubmission.clearBatch();
+        insertGrade.clearBatch();
+        if (totals != null) {
+            totals.clearBatch();
+        }
+        pending = 0;
+        // Ids allocated in the rolled back transaction may be reused
+        nextSubmissionId = -1;
+
+        if (ownTransaction) {
+            db.rollback();
+        }
+    }
+
+    /**
+     * Restore the connection's auto-commit mode. Anything not yet flushed is discarded.
+     * <p>
+     * The statements belong to the connection's {@link StatementCache} and stay open.
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        insertSubmission.clearBatch();
+        insertGrade.clearBatch();
+        if (totals != null) {
+            totals.clearBatch();
+        }
+
+        if (ownTransaction) {
+            db.rollback();
+            db.setAutoCommit(true);
+        }
+    }
+
+    // Helper method - return the UserId of the given username (-1 if there is no such user), querying each username once
+    private int resolveUser(String username) throws SQLException {
+        int userId = sharedUserIds.get(username);
+        if (userId != UserIdMap.NO_USER) {
+            return userId;
+        }
+        Integer localUserId = localUserIds.get(username);
+        if (localUserId != null) {
+            return localUserId;
+        }
+
+        userLookup.setString(1, username);
+        try (ResultSet res = userLookup.executeQuery()) {
+            userId = res.next() ? res.getInt("UserId") : -1;
+        }
+        // Only committed users may be shared: when this writer owns the transaction, it wrote no users into it
+        if (ownTransaction && userId != -1) {
+            sharedUserIds.put(username, userId);
+        } else {
+            localUserIds.put(username, userId);
+        }
+        return userId;
+    }
+
+    // Helper method - return the id to store the submission under, keeping later allocations past any given id
+    private int allocateSubmissionId(int requestedId) throws SQLException {
+        // While a journal is open, it allocates the ids of every write
+        if (journal != null) {
+            return journal.allocateId(requestedId);
+        }
+
+        if (nextSubmissionId == -1) {
+            try (Statement st = db.createStatement();
+                 ResultSet res = st.executeQuery("SELECT COALESCE(MAX(SubmissionId), 0) + 1 FROM Submission")) {
+                res.next();
+                nextSubmissionId = res.getInt(1);
+            }
+        }
+
+        // The id field of the submission will be ignored if it is -1.
+        if (requestedId == -1) {
+            return nextSubmissionId++;
+        }
+        nextSubmissionId = Math.max(nextSubmissionId, requestedId + 1);
+        return requestedId;
+    }
+}
@@ -0,0 +1,140 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * A forward-only cursor over the submissions of a query, building one submission at a time from its rows, so the
+ * submissions are never held in memory together.
+ * <p>
+ * The rows are those of the gradebook queries: SubmissionId, ExerciseId, SubmissionTime, Username, Firstname, Lastname
+ * and either one (QuestionId, Grade) row per grade (a LEFT JOIN with QuestionGrade) or a single row with the
+ * GradesBlob (see {@link GradesBlobs}). The rows of a submission must be consecutive. The grades array of each
+ * submission has one entry per question of its exercise; grades of questions the exercise doesn't have are ignored.
+ * Submissions of exercises missing from {@code exercises} are skipped.
+ * <p>
+ * The cursor doesn't own the result set: whoever opened it closes it.
+ */
+class SubmissionCursor extends Spliterators.AbstractSpliterator<Submission> {
+
+    // Every submission of an exercise / a user with its grades, walking a Submission (ExerciseId, UserId, SubmissionTime) /
+    // (UserId, ExerciseId, SubmissionTime) index so no sort of the whole result is needed
+    static final String BY_EXERCISE_SQL = submissionsSql("S.ExerciseId = ?", "S.UserId");
+    static final String BY_USER_SQL = submissionsSql("S.UserId = ?", "S.ExerciseId");
+
+    // The same, over grades BLOBs
+    static final String BLOB_BY_EXERCISE_SQL = blobSubmissionsSql("S.ExerciseId = ?", "S.UserId");
+    static final String BLOB_BY_USER_SQL = blobSubmissionsSql("S.UserId = ?", "S.ExerciseId");
+
+    private final ResultSet res;
+    private final Map<Integer, Exercise> exercises;
+    private final boolean gradesBlobs;
+
+    /**
+     * true once the result set was moved to its first row.
+     */
+    private boolean started = false;
+
+    /**
+     * true if the result set is on a row not consumed yet (the first row of the next submission).
+     */
+    private boolean hasRow = false;
+
+    /**
+     * @param res the result set, before its first row
+     * @param exercises the exercises of the submissions, by ExerciseId
+     * @param gradesBlobs true if the rows hold grades BLOBs instead of (QuestionId, Grade) pairs
+     */
+    SubmissionCursor(ResultSet res, Map<Integer, Exercise> exercises, boolean gradesBlobs) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        this.res = res;
+        this.exercises = exercises;
+        this.gradesBlobs = gradesBlobs;
+    }
+
+    /**
+     * Read the next submission.
+     *
+     * @return the submission, or null if there are no more.
+     * @throws SQLException
+     */
+    Submission next() throws SQLException {
+        if (!started) {
+            hasRow = res.next();
+            started = true;
+        }
+
+        while (hasRow) {
+            int sid = res.getInt("SubmissionId");
+            Exercise exercise = exercises.get(res.getInt("ExerciseId"));
+            if (exercise == null) {
+                // Skip every row of the submission
+                while ((hasRow = res.next()) && res.getInt("SubmissionId") == sid) {
+                }
+                continue;
+            }
+
+            User user = new User(res.getString("Username"), res.getString("Firstname"), res.getString("Lastname"));
+            Date submissionTime = new Date(res.getLong("SubmissionTime"));
+            if (gradesBlobs) {
+                float[] grades = GradesBlobs.decode(res.getBytes("GradesBlob"), exercise);
+                hasRow = res.next();
+                return new Submission(sid, user, exercise, submissionTime, grades);
+            }
+
+            float[] grades = new float[exercise.questions.size()];
+            do {
+                // Question ids are 1-based: questionGrades[i] is the grade of question i + 1.
+                int questionId = res.getInt("QuestionId");
+                if (!res.wasNull() && questionId >= 1 && questionId <= grades.length) {
+                    grades[questionId - 1] = res.getFloat("Grade");
+                }
+            } while ((hasRow = res.next()) && res.getInt("SubmissionId") == sid);
+            return new Submission(sid, user, exercise, submissionTime, grades);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Submission> action) {
+        Submission submission;
+        try {
+            submission = next();
+        } catch (SQLException e) {
+            throw new Smarticulous.UncheckedSQLException(e);
+        }
+        if (submission == null) {
+            return false;
+        }
+        action.accept(submission);
+        return true;
+    }
+
+    // Helper method - the submissions matching the filter with one row per grade, in index order
+    private static String submissionsSql(String filter, String order) {
+        return "SELECT S.SubmissionId, S.ExerciseId, S.SubmissionTime, U.Username, U.Firstname, U.Lastname, G.QuestionId, G.Grade " +
+                "FROM Submission S " +
+                "INNER JOIN User U ON U.UserId = S.UserId " +
+                "LEFT JOIN QuestionGrade G ON G.SubmissionId = S.SubmissionId " +
+                "WHERE " + filter + " " +
+                "ORDER BY " + order + ", S.SubmissionTime, S.SubmissionId"; // The rows of a submission are consecutive
+    }
+
+    // Helper method - the submissions matching the filter with their grades BLOBs, in index order
+    private static String blobSubmissionsSql(String filter, String order) {
+        return "SELECT S.SubmissionId, S.ExerciseId, S.SubmissionTime, U.Username, U.Firstname, U.Lastname, S.GradesBlob " +
+                "FROM Submission S " +
+                "INNER JOIN User U ON U.UserId = S.UserId " +
+                "WHERE " + filter + " " +
+                "ORDER BY " + order + ", S.SubmissionTime, S.SubmissionId";
+    }
+}
@@ -0,0 +1,407 @@
+package smarticulous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the submissions accepted by {@link Smarticulous#submitAsync(Submission)} but not yet
+ * committed to the database, so they can be acknowledged as soon as they are on disk and still survive a crash.
+ * <p>
+ * Each record holds one submission under a SubmissionId allocated up front, framed as
+ * {@code <payload length><CRC32 of payload><payload>}. Appends only write to the file; {@link #sync(long)} forces it
+ * to disk, and a single fsync covers every record appended before it, so concurrent submitters share fsyncs.
+ * A torn or corrupt record (from a crash in the middle of an append) ends the journal.
+ * <p>
+ * While the journal is open it allocates the ids of every new submission, so an id given to a journaled submission
+ * is never taken by another write before that submission reaches the database. Replay skips the submissions whose
+ * id is already in the database, so replaying a journal twice (or one whose records were partly committed) is
+ * harmless. Once every journaled submission is committed, the file is truncated.
+ * <p>
+ * A journaled submission that can't be written (e.g. one rejected by a constraint) is moved to a dead-letter file
+ * next to the journal, {@code <journal>.rejected}, in the same record format, so it is kept for inspection but never
+ * replayed: replay skips the records found there, and quarantines the ones it can't write itself instead of failing.
+ */
+class SubmissionJournal implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SubmissionJournal.class);
+
+    // Record header: payload length and CRC32, 4 bytes each
+    private static final int HEADER_BYTES = 8;
+
+    // Larger payloads are corrupt (a username and one float per question never get near it)
+    private static final int MAX_PAYLOAD_BYTES = 1 << 20;
+
+    // Appended to the journal's file name to name its dead-letter file
+    private static final String DEAD_LETTER_SUFFIX = ".rejected";
+
+    private final Path path;
+    private final FileChannel channel;
+
+    /**
+     * The size of the file, where the next record is appended.
+     */
+    private long end = 0;
+
+    /**
+     * The next SubmissionId to allocate.
+     */
+    private int nextSubmissionId;
+
+    /**
+     * Number of records appended since the journal was opened (never reset by truncation).
+     */
+    private long appended = 0;
+
+    /**
+     * Every record up to this sequence number is on disk. Guarded by {@link #syncLock}.
+     */
+    private long synced = 0;
+
+    private final Object syncLock = new Object();
+
+    private SubmissionJournal(Path path, FileChannel channel, int nextSubmissionId) {
+        this.path = path;
+        this.channel = channel;
+        this.nextSubmissionId = nextSubmissionId;
+    }
+
+    /**
+     * Open (or create) a journal, replay its submissions into the database and truncate it.
+     *
+     * @param path the journal file
+     * @param lease the writer connection
+     * @param maintainTotals true if the database has materialized submission totals
+     * @param gradesBlobs true if the database stores grades BLOBs
+     * @param userIds the UserIds resolved so far
+     * @return the open journal
+     * @throws SQLException if the database can't be read (the journal is left as it was)
+     * @throws IOException if the file can't be read or written
+     */
+    static SubmissionJournal open(Path path, ConnectionPool.Lease lease, boolean maintainTotals, boolean gradesBlobs,
+                                  UserIdMap userIds)
+            throws SQLException, IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            List<byte[]> records = read(channel);
+            if (!records.isEmpty()) {
+                // The records already quarantined, e.g. by a writer that crashed before truncating the journal
+                Set<ByteBuffer> rejected = new HashSet<>();
+                Path deadLetters = deadLetterPath(path);
+                if (Files.exists(deadLetters)) {
+                    try (FileChannel deadLetterChannel = FileChannel.open(deadLetters, StandardOpenOption.READ)) {
+                        for (byte[] record : read(deadLetterChannel)) {
+                            rejected.add(ByteBuffer.wrap(record));
+                        }
+                    }
+                }
+
+                List<Submission> submissions = new ArrayList<>();
+                for (byte[] record : records) {
+                    if (!rejected.contains(ByteBuffer.wrap(record))) {
+                        submissions.add(decode(record));
+                    }
+                }
+                int replayed = replay(submissions, path, lease, maintainTotals, gradesBlobs, userIds);
+                logger.info("Replayed {} of {} journaled submissions from {}", replayed, records.size(), path);
+            }
+            channel.truncate(0);
+            channel.force(true);
+
+            int nextSubmissionId;
+            try (Statement st = lease.connection().createStatement();
+                 ResultSet res = st.executeQuery("SELECT COALESCE(MAX(SubmissionId), 0) + 1 FROM Submission")) {
+                res.next();
+                nextSubmissionId = res.getInt(1);
+            }
+            return new SubmissionJournal(path, channel, nextSubmissionId);
+        } catch (SQLException | IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the journal file.
+     */
+    Path path() {
+        return path;
+    }
+
+    /**
+     * @param path a journal file
+     * @return the dead-letter file of the journal.
+     */
+    static Path deadLetterPath(Path path) {
+        return path.resolveSibling(path.getFileName() + DEAD_LETTER_SUFFIX);
+    }
+
+    /**
+     * Move a journaled submission that can't be written to the dead-letter file, so it is never replayed. The record
+     * is on disk when this returns; the journal's own copy goes with the next truncation.
+     *
+     * @param submission
+     * @throws IOException
+     */
+    void quarantine(Submission submission) throws IOException {
+        quarantine(path, encode(submission));
+    }
+
+    /**
+     * Allocate the id of a new submission.
+     *
+     * @param requestedId the id the submission asks for, or -1
+     * @return the requested id, or a new one if it is -1; later allocations are past it either way.
+     */
+    synchronized int allocateId(int requestedId) {
+        if (requestedId == -1) {
+            return nextSubmissionId++;
+        }
+        nextSubmissionId = Math.max(nextSubmissionId, requestedId + 1);
+        return requestedId;
+    }
+
+    /**
+     * Append a submission (with its id already allocated) to the journal. It is on disk once {@link #sync(long)}
+     * returns for the returned sequence number.
+     *
+     * @param submission
+     * @return the sequence number of the record
+     * @throws IOException
+     */
+    synchronized long append(Submission submission) throws IOException {
+        ByteBuffer record = frame(encode(submission));
+        while (record.hasRemaining()) {
+            end += channel.write(record, end);
+        }
+        return ++appended;
+    }
+
+    /**
+     * Wait until the record with the given sequence number is on disk. One fsync covers every record appended
+     * before it, so callers that append concurrently mostly wait for one another's fsync instead of doing their own.
+     *
+     * @param sequence
+     * @throws IOException
+     */
+    void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= sequence) {
+                return;
+            }
+            long target;
+            synchronized (this) {
+                target = appended;
+            }
+            channel.force(false);
+            synced = target;
+        }
+    }
+
+    /**
+     * Empty the journal. The caller makes sure every record appended so far is committed to the database.
+     *
+     * @throws IOException
+     */
+    synchronized void truncate() throws IOException {
+        if (end > 0) {
+            channel.truncate(0);
+            end = 0;
+        }
+    }
+
+    /**
+     * Close the file. Records still in it are replayed the next time the journal is opened.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Helper method - the record payload of a submission
+    private static byte[] encode(Submission submission) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            out.writeInt(submission.id);
+            out.writeUTF(submission.user.username);
+            out.writeInt(submission.exercise.id);
+            out.writeLong(submission.submissionTime.getTime());
+            float[] grades = submission.questionGrades == null ? new float[0] : submission.questionGrades;
+            out.writeInt(grades.length);
+            for (float grade : grades) {
+                out.writeFloat(grade);
+            }
+        }
+        return payload.toByteArray();
+    }
+
+    // Helper method - a payload with its header, ready to be written
+    private static ByteBuffer frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        return record;
+    }
+
+    // Helper method - append a payload to the dead-letter file of the journal at path, and force it to disk
+    private static void quarantine(Path path, byte[] payload) throws IOException {
+        try (FileChannel deadLetters = FileChannel.open(deadLetterPath(path),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer record = frame(payload);
+            while (record.hasRemaining()) {
+                deadLetters.write(record);
+            }
+            deadLetters.force(false);
+        }
+    }
+
+    // Helper method - read the payload of every intact record, stopping at the first torn or corrupt one
+    private static List<byte[]> read(FileChannel channel) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || length > MAX_PAYLOAD_BYTES || position + HEADER_BYTES + length > size) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            records.add(payload.array());
+            position += HEADER_BYTES + length;
+        }
+
+        if (position < size) {
+            logger.warn("Ignoring {} bytes of torn or corrupt records at the end of the submission journal", size - position);
+        }
+        return records;
+    }
+
+    // Helper method - fill the buffer from the given file position
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the submission journal");
+            }
+            position += read;
+        }
+    }
+
+    // Helper method - the submission of a record payload. Only the exercise id is known, which is all a write needs.
+    private static Submission decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            int id = in.readInt();
+            String username = in.readUTF();
+            int exerciseId = in.readInt();
+            Date submissionTime = new Date(in.readLong());
+            float[] grades = new float[in.readInt()];
+            for (int i = 0; i < grades.length; ++i) {
+                grades[i] = in.readFloat();
+            }
+            return new Submission(id, new User(username, null, null), new Exercise(exerciseId, null, null), submissionTime, grades);
+        }
+    }
+
+    // Helper method - write the journaled submissions that are not in the database yet, in one transaction, falling
+    // back to one transaction per submission if it fails and quarantining the ones that still fail
+    private static int replay(List<Submission> submissions, Path path, ConnectionPool.Lease lease, boolean maintainTotals,
+                              boolean gradesBlobs, UserIdMap userIds) throws SQLException, IOException {
+        PreparedStatement exists = lease.prepare("SELECT 1 FROM Submission WHERE SubmissionId = ?");
+        Set<Integer> seen = new HashSet<>();
+        List<Submission> missing = new ArrayList<>();
+        for (Submission submission : submissions) {
+            if (!seen.add(submission.id)) {
+                continue;
+            }
+            // Already committed before the journal was truncated
+            exists.setInt(1, submission.id);
+            try (ResultSet res = exists.executeQuery()) {
+                if (!res.next()) {
+                    missing.add(submission);
+                }
+            }
+        }
+
+        try {
+            return write(missing, lease, maintainTotals, gradesBlobs, userIds);
+        } catch (SQLException e) {
+            logger.warn("Replaying {} journaled submissions failed, replaying them one by one", missing.size(), e);
+        }
+
+        int replayed = 0;
+        for (Submission submission : missing) {
+            try {
+                replayed += write(Collections.singletonList(submission), lease, maintainTotals, gradesBlobs, userIds);
+            } catch (SQLException e) {
+                logger.error("Journaled submission {} could not be replayed, moving it to {}",
+                        submission.id, deadLetterPath(path), e);
+                quarantine(path, encode(submission));
+            }
+        }
+        return replayed;
+    }
+
+    // Helper method - write the submissions in one transaction and return how many were written (the others' users
+    // don't exist)
+    private static int write(List<Submission> submissions, ConnectionPool.Lease lease, boolean maintainTotals,
+                             boolean gradesBlobs, UserIdMap userIds) throws SQLException {
+        int written = 0;
+        try (SubmissionBatchWriter writer = new SubmissionBatchWriter(lease.connection(), lease.statements(),
+                Integer.MAX_VALUE, maintainTotals, gradesBlobs, userIds, null)) {
+            try {
+                for (Submission submission : submissions) {
+                    if (writer.add(submission) == -1) {
+                        logger.warn("Dropping journaled submission {}: user {} doesn't exist", submission.id, submission.user.username);
+                    } else {
+                        ++written;
+                    }
+                }
+                writer.flush();
+            } catch (SQLException e) {
+                writer.rollback();
+                throw e;
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,233 @@
+package smarticulous;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Materialized submission totals: an optional extension of the schema that makes the best and latest submission
+ * lookups primary-key reads instead of aggregations.
+ * <p>
+ * <table>
+ *   <caption><em>Column <strong>Submission.TotalGrade</strong></em></caption>
+ *   <tr><th>Column</th><th>Type</th></tr>
+ *   <tr><td>TotalGrade</td><td>Real - the point total of the submission, TOTAL(Grade * Points)</td></tr>
+ * </table>
+ *
+ * <p>
+ * <table>
+ *   <caption><em>Table name: <strong>SubmissionSummary</strong></em></caption>
+ *   <tr><th>Column</th><th>Type</th></tr>
+ *   <tr><td>UserId</td><td>Integer</td></tr>
+ *   <tr><td>ExerciseId</td><td>Integer</td></tr>
+ *   <tr><td>BestSubmissionId</td><td>Integer</td></tr>
+ *   <tr><td>LatestSubmissionId</td><td>Integer</td></tr>
+ * </table>
+ * In this table the combination of UserId and ExerciseId together comprise the primary key.
+ * <p>
+ * Once a database has the summary table, every submission written through {@link Smarticulous} updates its total and
+ * the pointers in the same transaction as its grades. An instance wraps the cached statements of one connection.
+ */
+final class SubmissionTotals {
+
+    // The point total of the current Submission row, shared by the write path and the backfill
+    private static final String TOTAL_GRADE_ASSIGNMENT =
+            "TotalGrade = (SELECT TOTAL(G.Grade * Q.Points) FROM QuestionGrade G " +
+            "INNER JOIN Question Q ON Q.ExerciseId = Submission.ExerciseId AND Q.QuestionId = G.QuestionId " +
+            "WHERE G.SubmissionId = Submission.SubmissionId)";
+
+    private static final String UPDATE_TOTAL_SQL = "UPDATE Submission SET " + TOTAL_GRADE_ASSIGNMENT + " WHERE SubmissionId = ?";
+
+    private static final String UPDATE_EXERCISE_TOTALS_SQL = "UPDATE Submission SET " + TOTAL_GRADE_ASSIGNMENT + " WHERE ExerciseId = ?";
+
+    // Point the summary at the new submission if it beats the current best / latest one.
+    // Both candidates are found by their SubmissionId, so this is a couple of primary-key reads.
+    private static final String UPSERT_SUMMARY_SQL =
+            "INSERT INTO SubmissionSummary (UserId, ExerciseId, BestSubmissionId, LatestSubmissionId) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (UserId, ExerciseId) DO UPDATE SET " +
+            "BestSubmissionId = (SELECT SubmissionId FROM Submission " +
+            "WHERE SubmissionId IN (SubmissionSummary.BestSubmissionId, excluded.BestSubmissionId) " +
+            "ORDER BY TotalGrade DESC, SubmissionTime DESC, SubmissionId DESC LIMIT 1), " + // Same order as the best submission query
+            "LatestSubmissionId = (SELECT SubmissionId FROM Submission " +
+            "WHERE SubmissionId IN (SubmissionSummary.LatestSubmissionId, excluded.LatestSubmissionId) " +
+            "ORDER BY SubmissionTime DESC, SubmissionId DESC LIMIT 1)"; // Same order as the latest submission query
+
+    // Recompute the pointers of all the (user, exercise) pairs from the totals
+    private static final String REBUILD_SUMMARY_SQL =
+            "INSERT OR REPLACE INTO SubmissionSummary (UserId, ExerciseId, BestSubmissionId, LatestSubmissionId) " +
+            "SELECT UserId, ExerciseId, MAX(CASE WHEN BestRank = 1 THEN SubmissionId END), MAX(CASE WHEN LatestRank = 1 THEN SubmissionId END) " +
+            "FROM (SELECT UserId, ExerciseId, SubmissionId, " +
+            "ROW_NUMBER() OVER (PARTITION BY UserId, ExerciseId ORDER BY TotalGrade DESC, SubmissionTime DESC, SubmissionId DESC) AS BestRank, " +
+            "ROW_NUMBER() OVER (PARTITION BY UserId, ExerciseId ORDER BY SubmissionTime DESC, SubmissionId DESC) AS LatestRank " +
+            "FROM Submission WHERE ExerciseId = ? OR ? IS NULL) " +
+            "GROUP BY UserId, ExerciseId";
+
+    // Same contract as Smarticulous.LAST_SUBMISSION_GRADES_BY_USER_ID_SQL, read through the summary pointer
+    static final String LAST_SUBMISSION_GRADES_SQL = pointerGradesSql("LatestSubmissionId");
+
+    // Same contract as Smarticulous.BEST_SUBMISSION_GRADES_BY_USER_ID_SQL, read through the summary pointer
+    static final String BEST_SUBMISSION_GRADES_SQL = pointerGradesSql("BestSubmissionId");
+
+    private final PreparedStatement updateTotal;
+    private final PreparedStatement upsertSummary;
+
+    /**
+     * @param statements the statement cache of the connection the submissions are written to
+     * @throws SQLException
+     */
+    SubmissionTotals(StatementCache statements) throws SQLException {
+        updateTotal = statements.prepare(UPDATE_TOTAL_SQL);
+        upsertSummary = statements.prepare(UPSERT_SUMMARY_SQL);
+    }
+
+    /**
+     * Update the total of a submission whose grades were just written, and the pointers of its (user, exercise).
+     *
+     * @param submissionId
+     * @param userId
+     * @param exerciseId
+     * @throws SQLException
+     */
+    void update(int submissionId, int userId, int exerciseId) throws SQLException {
+        bind(submissionId, userId, exerciseId);
+        updateTotal.executeUpdate();
+        upsertSummary.executeUpdate();
+    }
+
+    /**
+     * Like {@link #update}, but only adds the updates to the batches; see {@link #executeBatch()}.
+     *
+     * @param submissionId
+     * @param userId
+     * @param exerciseId
+     * @throws SQLException
+     */
+    void addBatch(int submissionId, int userId, int exerciseId) throws SQLException {
+        bind(submissionId, userId, exerciseId);
+        updateTotal.addBatch();
+        upsertSummary.addBatch();
+    }
+
+    /**
+     * Execute the batched updates. Must be called after the batched grades were executed.
+     *
+     * @throws SQLException
+     */
+    void executeBatch() throws SQLException {
+        // All the totals first: the pointer updates compare them
+        updateTotal.executeBatch();
+        upsertSummary.executeBatch();
+    }
+
+    void clearBatch() throws SQLException {
+        updateTotal.clearBatch();
+        upsertSummary.clearBatch();
+    }
+
+    /**
+     * @param db
+     * @return true if the database has materialized totals.
+     * @throws SQLException
+     */
+    static boolean present(Connection db) throws SQLException {
+        return SchemaMigrations.hasTable(db, "SubmissionSummary");
+    }
+
+    /**
+     * Add the materialized totals to the database if it doesn't have them yet, filling them in for the existing
+     * submissions. The totals are backfilled in chunks; the summary table is created last, in a single transaction,
+     * so an interrupted backfill simply starts over on the next call.
+     *
+     * @param db
+     * @throws SQLException
+     */
+    static void ensure(Connection db) throws SQLException {
+        if (present(db)) {
+            return;
+        }
+
+        boolean autoCommit = db.getAutoCommit();
+        db.setAutoCommit(false);
+        try {
+            if (!SchemaMigrations.hasColumn(db, "Submission", "TotalGrade")) {
+                try (Statement st = db.createStatement()) {
+                    st.executeUpdate("ALTER TABLE Submission ADD COLUMN TotalGrade REAL");
+                }
+                db.commit();
+            }
+            SchemaMigrations.updateInChunks(db, "Submission", TOTAL_GRADE_ASSIGNMENT, SchemaMigrations.DEFAULT_CHUNK_SIZE);
+
+            try (Statement st = db.createStatement()) {
+                st.executeUpdate("CREATE TABLE SubmissionSummary (UserId INTEGER, ExerciseId INTEGER, BestSubmissionId INTEGER, " +
+                        "LatestSubmissionId INTEGER, PRIMARY KEY (UserId, ExerciseId)) WITHOUT ROWID");
+            }
+            rebuild(db, null);
+            db.commit();
+        } catch (SQLException e) {
+            db.rollback();
+            throw e;
+        } finally {
+            db.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Recompute the totals and pointers of every submission of an exercise, e.g. after its questions changed.
+     *
+     * @param statements the statement cache of the writer connection
+     * @param exerciseId
+     * @throws SQLException
+     */
+    static void refreshExercise(StatementCache statements, int exerciseId) throws SQLException {
+        PreparedStatement update = statements.prepare(UPDATE_EXERCISE_TOTALS_SQL);
+        update.setInt(1, exerciseId);
+        update.executeUpdate();
+
+        PreparedStatement rebuild = statements.prepare(REBUILD_SUMMARY_SQL);
+        rebuild.setInt(1, exerciseId);
+        rebuild.setInt(2, exerciseId);
+        rebuild.executeUpdate();
+    }
+
+    /**
+     * Recompute the totals and pointers of every submission, in chunks. Must be called with auto-commit disabled;
+     * the caller commits the last chunk.
+     *
+     * @param db
+     * @throws SQLException
+     */
+    static void refreshAll(Connection db) throws SQLException {
+        SchemaMigrations.updateInChunks(db, "Submission", TOTAL_GRADE_ASSIGNMENT, SchemaMigrations.DEFAULT_CHUNK_SIZE);
+        rebuild(db, null);
+    }
+
+    // Helper method - recompute the pointers of one exercise, or of all of them if exerciseId is null
+    private static void rebuild(Connection db, Integer exerciseId) throws SQLException {
+        try (PreparedStatement rebuild = db.prepareStatement(REBUILD_SUMMARY_SQL)) {
+            rebuild.setObject(1, exerciseId);
+            rebuild.setObject(2, exerciseId);
+            rebuild.executeUpdate();
+        }
+    }
+
+    // Helper method - set the parameters of both update statements
+    private void bind(int submissionId, int userId, int exerciseId) throws SQLException {
+        updateTotal.setInt(1, submissionId);
+
+        upsertSummary.setInt(1, userId);
+        upsertSummary.setInt(2, exerciseId);
+        upsertSummary.setInt(3, submissionId);
+        upsertSummary.setInt(4, submissionId);
+    }
+
+    // Helper method - the grades of the submission a SubmissionSummary column points to
+    private static String pointerGradesSql(String pointer) {
+        return "SELECT S.SubmissionId, G.QuestionId, G.Grade, S.SubmissionTime " +
+                "FROM SubmissionSummary M " +
+                "INNER JOIN Submission S ON S.SubmissionId = M." + pointer + " " +
+                "INNER JOIN QuestionGrade G ON G.SubmissionId = S.SubmissionId " +
+                "WHERE M.UserId = ? AND M.ExerciseId = ? " +
+                "ORDER BY G.QuestionId LIMIT ?";
+    }
+}
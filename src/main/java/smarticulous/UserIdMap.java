@@ -0,0 +1,136 @@
+package smarticulous;
+
+/**
+ * A thread-safe map from Username to UserId, so a username is resolved by the database only once.
+ * <p>
+ * The map is an open-addressing hash table with linear probing over two parallel arrays (the usernames and their
+ * ids), so an entry costs two array slots instead of a {@code HashMap} node and a boxed {@code Integer}; the
+ * usernames themselves are the strings already held by the callers. Removal shifts the following entries of the
+ * probe sequence back, so the table never fills up with tombstones.
+ * <p>
+ * UserIds never change, so an entry only goes stale if its user row is rolled back or deleted: only ids of
+ * committed rows may be put here.
+ */
+final class UserIdMap {
+
+    /**
+     * Returned by {@link #get} for a username that is not in the map.
+     */
+    static final int NO_USER = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The usernames, null for an empty slot. The length is a power of two.
+     */
+    private String[] usernames = new String[INITIAL_CAPACITY];
+
+    /**
+     * userIds[i] is the UserId of usernames[i].
+     */
+    private int[] userIds = new int[INITIAL_CAPACITY];
+
+    private int size = 0;
+
+    /**
+     * @param username
+     * @return the UserId of the username, or {@link #NO_USER} if it is not in the map.
+     */
+    synchronized int get(String username) {
+        int mask = usernames.length - 1;
+        for (int i = slot(username, mask); usernames[i] != null; i = (i + 1) & mask) {
+            if (usernames[i].equals(username)) {
+                return userIds[i];
+            }
+        }
+        return NO_USER;
+    }
+
+    /**
+     * Map a username to its UserId.
+     *
+     * @param username
+     * @param userId
+     */
+    synchronized void put(String username, int userId) {
+        // Keep the table at most half full, so the probe sequences stay short
+        if (2 * (size + 1) > usernames.length) {
+            resize(2 * usernames.length);
+        }
+        if (insert(usernames, userIds, username, userId)) {
+            ++size;
+        }
+    }
+
+    /**
+     * Remove a username from the map.
+     *
+     * @param username
+     */
+    synchronized void remove(String username) {
+        int mask = usernames.length - 1;
+        int i = slot(username, mask);
+        while (usernames[i] != null && !usernames[i].equals(username)) {
+            i = (i + 1) & mask;
+        }
+        if (usernames[i] == null) {
+            return;
+        }
+
+        // Shift back every following entry of the probe sequence that may no longer be reached past the gap
+        int gap = i;
+        for (int j = (gap + 1) & mask; usernames[j] != null; j = (j + 1) & mask) {
+            int home = slot(usernames[j], mask);
+            // The entry at j may move to the gap if its home slot is not cyclically in (gap, j]
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                usernames[gap] = usernames[j];
+                userIds[gap] = userIds[j];
+                gap = j;
+            }
+        }
+        usernames[gap] = null;
+        --size;
+    }
+
+    /**
+     * @return the number of usernames in the map.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    // Helper method - move every entry to tables of the given capacity
+    private void resize(int capacity) {
+        String[] newUsernames = new String[capacity];
+        int[] newUserIds = new int[capacity];
+        for (int i = 0; i < usernames.length; ++i) {
+            if (usernames[i] != null) {
+                insert(newUsernames, newUserIds, usernames[i], userIds[i]);
+            }
+        }
+        usernames = newUsernames;
+        userIds = newUserIds;
+    }
+
+    // Helper method - put an entry in the given tables, returning true if the username was not there yet
+    private static boolean insert(String[] usernames, int[] userIds, String username, int userId) {
+        int mask = usernames.length - 1;
+        int i = slot(username, mask);
+        while (usernames[i] != null) {
+            if (usernames[i].equals(username)) {
+                userIds[i] = userId;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        usernames[i] = username;
+        userIds[i] = userId;
+        return true;
+    }
+
+    // Helper method - the home slot of a username (String.hashCode is cached by the string, and its high bits are mixed in)
+    private static int slot(String username, int mask) {
+        int h = username.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
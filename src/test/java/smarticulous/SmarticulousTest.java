@@ -7,11 +7,38 @@ import smarticulous.db.Exercise;
 import smarticulous.db.Submission;
 import smarticulous.db.User;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
 import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -34,6 +61,9 @@ public class SmarticulousTest {
     public void setUp() throws Exception {
         tmpdb = db.open(null);
         db.fillRandomDB();
+
+        // Keep the password hashing cheap in tests
+        smarticulous.setPasswordIterations(1000);
     }
 
     @After
@@ -98,6 +128,95 @@ public class SmarticulousTest {
         }
     }
 
+    /**
+     * Check that openDB migrates the schema to the latest version, only once, and refuses newer schemas.
+     */
+    @Test
+    public void create_schemaMigrations() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        assertEquals(SchemaMigrations.latestVersion(), SchemaMigrations.currentVersion(smarticulous.db));
+        smarticulous.closeDB();
+
+        // Reopening an up to date database is a no-op
+        smarticulous.openDB(db.getDbUrl());
+        assertEquals(SchemaMigrations.latestVersion(), SchemaMigrations.currentVersion(smarticulous.db));
+        db.checkTableStructure();
+
+        try (Statement st = smarticulous.db.createStatement()) {
+            st.executeUpdate("PRAGMA user_version = " + (SchemaMigrations.latestVersion() + 1));
+        }
+        smarticulous.closeDB();
+
+        try {
+            smarticulous.openDB(db.getDbUrl());
+            fail("openDB should refuse a database with a newer schema");
+        } catch (SQLException e) {
+            // Expected
+        } finally {
+            smarticulous.closeDB();
+        }
+    }
+
+    /**
+     * Check that opening a database created by the original schema numbers the questions that were stored without
+     * a QuestionId, so the best submission is ranked by its points and not just the latest one.
+     */
+    @Test
+    public void create_migrateUnnumberedQuestions() throws Exception {
+        db.close();
+        if (tmpdb != null)
+            tmpdb.delete();
+        tmpdb = db.open(null);
+
+        try (Connection conn = DriverManager.getConnection(db.getDbUrl());
+             Statement st = conn.createStatement()) {
+            // The original schema and the way it stored questions: without a QuestionId
+            st.executeUpdate("CREATE TABLE User (UserId INTEGER PRIMARY KEY, Username TEXT UNIQUE, Firstname TEXT, Lastname TEXT, Password TEXT)");
+            st.executeUpdate("CREATE TABLE Exercise (ExerciseId INTEGER PRIMARY KEY, Name TEXT, DueDate INTEGER)");
+            st.executeUpdate("CREATE TABLE Question (ExerciseId INTEGER, QuestionId INTEGER AUTO_INCREMENT, Name TEXT, Desc TEXT, Points INTEGER, PRIMARY KEY (ExerciseId, QuestionId))");
+            st.executeUpdate("CREATE TABLE Submission (SubmissionId INTEGER PRIMARY KEY, UserId INTEGER, ExerciseId INTEGER, SubmissionTime INTEGER)");
+            st.executeUpdate("CREATE TABLE QuestionGrade (SubmissionId INTEGER, QuestionId INTEGER, Grade REAL, PRIMARY KEY (SubmissionId, QuestionId))");
+
+            st.executeUpdate("INSERT INTO User VALUES (1, 'user', 'First', 'Last', 'password')");
+            st.executeUpdate("INSERT INTO Exercise VALUES (1, 'exercise', 0)");
+            st.executeUpdate("INSERT INTO Question (ExerciseId, Name, Desc, Points) VALUES (1, 'q1', 'first', 1)");
+            st.executeUpdate("INSERT INTO Question (ExerciseId, Name, Desc, Points) VALUES (1, 'q2', 'second', 10)");
+            // Added after QuestionIds were assigned, which numbered it from 1 regardless of the unnumbered questions
+            st.executeUpdate("INSERT INTO Question (ExerciseId, QuestionId, Name, Desc, Points) VALUES (1, 1, 'q3', 'third', 5)");
+
+            // The better submission (100 points) is followed by a worse one (50 points)
+            st.executeUpdate("INSERT INTO Submission VALUES (1, 1, 1, 1000), (2, 1, 1, 2000)");
+            st.executeUpdate("INSERT INTO QuestionGrade VALUES (1, 1, 0), (1, 2, 10), (1, 3, 0), (2, 1, 50), (2, 2, 0), (2, 3, 0)");
+        }
+
+        for (boolean totals : new boolean[] {false, true}) {
+            smarticulous.setMaterializeTotals(totals);
+            smarticulous.openDB(db.getDbUrl());
+            assertEquals(SchemaMigrations.latestVersion(), SchemaMigrations.currentVersion(smarticulous.db));
+
+            try (Statement st = smarticulous.db.createStatement();
+                 ResultSet res = st.executeQuery("SELECT QuestionId, Name FROM Question WHERE ExerciseId = 1 ORDER BY rowid")) {
+                for (int i = 1; i <= 3; ++i) {
+                    assertTrue(res.next());
+                    assertEquals(i, res.getInt("QuestionId"));
+                    assertEquals("q" + i, res.getString("Name"));
+                }
+                assertFalse(res.next());
+            }
+
+            Exercise exercise = smarticulous.getExercise(1);
+            assertEquals(3, exercise.questions.size());
+            assertEquals("q2", exercise.questions.get(1).name);
+
+            Submission best = smarticulous.getBestSubmission(new User("user", "First", "Last"), exercise);
+            assertNotNull(best);
+            assertEquals(1, best.id);
+            assertArrayEquals(new float[] {0, 10, 0}, best.questionGrades, 0);
+
+            smarticulous.closeDB();
+        }
+    }
+
     @Test
     public void user_addUser() {
         try {
@@ -109,7 +228,7 @@ public class SmarticulousTest {
             String pass = getRandomString(10);
 
             int id = smarticulous.addOrUpdateUser(user, pass);
-            db.checkUser(id, user, pass);
+            checkHashedUser(id, user, pass);
 
             smarticulous.closeDB();
         } catch (Exception e) {
@@ -125,7 +244,162 @@ public class SmarticulousTest {
         smarticulous.openDB(db.getDbUrl());
 
         int id = smarticulous.addOrUpdateUser(user, pass);
-        db.checkUser(id, user, pass);
+        checkHashedUser(id, user, pass);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void user_upsertKeepsUserId() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        assertTrue("The test database supports the upsert", smarticulous.upsertUsers);
+
+        // The upsert and the fallback (SELECT, then UPDATE or INSERT) must give the same results
+        for (boolean upsert : new boolean[]{true, false}) {
+            smarticulous.upsertUsers = upsert;
+
+            User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            int id = smarticulous.addOrUpdateUser(user, "first");
+            checkHashedUser(id, user, "first");
+
+            User renamed = new User(user.username, db.getRandomWord(), db.getRandomWord());
+            assertEquals("Updating a user changed its UserId", id, smarticulous.addOrUpdateUser(renamed, "second"));
+            checkHashedUser(id, renamed, "second");
+            assertFalse(smarticulous.verifyLogin(user.username, "first"));
+
+            User existing = db.getUser(1);
+            assertEquals(1, smarticulous.addOrUpdateUser(existing, "third"));
+            checkHashedUser(1, existing, "third");
+        }
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void user_addOrUpdateUsers() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        // More users than a single transaction holds, some of them already in the database
+        Map<User, String> users = new LinkedHashMap<>();
+        List<User> existing = new ArrayList<>();
+        for (int i = 1; i <= 3; ++i) {
+            existing.add(db.getUser(i));
+            users.put(existing.get(i - 1), getRandomString(10));
+        }
+        for (int i = 0; i < Smarticulous.DEFAULT_COMMIT_INTERVAL + 10; ++i) {
+            users.put(new User(getRandomString(12), db.getRandomWord(), db.getRandomWord()), getRandomString(10));
+        }
+        Map<User, Integer> ids = smarticulous.addOrUpdateUsers(users);
+
+        assertEquals(users.size(), ids.size());
+        assertEquals("The ids are not in the order of the users", new ArrayList<>(users.keySet()), new ArrayList<>(ids.keySet()));
+        for (int i = 1; i <= 3; ++i) {
+            assertEquals("Updated users must keep their UserId", Integer.valueOf(i), ids.get(existing.get(i - 1)));
+        }
+        assertEquals("Every user must get a distinct UserId", ids.size(), new HashSet<>(ids.values()).size());
+
+        int checked = 0;
+        for (Map.Entry<User, String> entry : users.entrySet()) {
+            if (checked++ % 100 == 0) {
+                checkHashedUser(ids.get(entry.getKey()), entry.getKey(), entry.getValue());
+            }
+        }
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void user_userIdMap() {
+        UserIdMap map = new UserIdMap();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 5000; ++i) {
+            String username = getRandomString(1 + rand.nextInt(6)); // Short names, so some repeat
+            map.put(username, i);
+            expected.put(username, i);
+
+            // Remove a third of the names, so removals keep shifting probe sequences
+            if (rand.nextInt(3) == 0) {
+                String removed = getRandomString(1 + rand.nextInt(3));
+                map.remove(removed);
+                expected.remove(removed);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getKey(), (int) entry.getValue(), map.get(entry.getKey()));
+        }
+        assertEquals(UserIdMap.NO_USER, map.get("not a generated name"));
+    }
+
+    @Test
+    public void user_userIdsFollowCommittedUsers() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        Exercise exercise = db.getExercise(1);
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        int id = smarticulous.addOrUpdateUser(user, "pass");
+        assertEquals(id, smarticulous.userIds.get(user.username));
+
+        // A user added in a transaction that is rolled back must not stay resolvable
+        User rolledBack = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.db.setAutoCommit(false);
+        smarticulous.addOrUpdateUser(rolledBack, "pass");
+        smarticulous.db.rollback();
+        smarticulous.db.setAutoCommit(true);
+        assertEquals(UserIdMap.NO_USER, smarticulous.userIds.get(rolledBack.username));
+        assertEquals(-1, smarticulous.storeSubmission(new Submission(rolledBack, exercise, new Date(), new float[]{1})));
+
+        // A user resolved by a query is remembered, and found by the submission queries
+        User existing = db.getUser(2);
+        Date latest = new Date(Long.MAX_VALUE / 2); // Later than any generated submission
+        int sid = smarticulous.storeSubmission(new Submission(existing, exercise, latest, new float[exercise.questions.size()]));
+        assertEquals(2, smarticulous.userIds.get(existing.username));
+        assertEquals(sid, smarticulous.getLastSubmission(existing, exercise).id);
+        assertNull(smarticulous.getLastSubmission(rolledBack, exercise));
+        assertTrue(smarticulous.getLastSubmissions(rolledBack).isEmpty());
+
+        smarticulous.closeDB();
+    }
+
+    // Helper method - check a user row whose password is stored hashed
+    private void checkHashedUser(int id, User user, String pass) throws Exception {
+        String stored = storedPassword(id);
+        assertNotEquals("The password is stored in plaintext", pass, stored);
+        assertTrue(PasswordHasher.isHash(stored));
+        db.checkUser(id, user, stored);
+        assertTrue("Your code rejects a valid user!", smarticulous.verifyLogin(user.username, pass));
+    }
+
+    @Test
+    public void user_passwordHashing() throws Exception {
+        String username = getRandomString(10);
+        User user = new User(username, db.getRandomWord(), db.getRandomWord());
+        String pass = getRandomString(10);
+
+        smarticulous.setPasswordVerifierThreads(2);
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.addOrUpdateUser(user, pass);
+
+        assertTrue(smarticulous.verifyLoginAsync(username, pass).get());
+        assertFalse(smarticulous.verifyLoginAsync(username, pass + "x").get());
+        assertFalse(smarticulous.verifyLoginAsync(getRandomString(10), pass).get());
+
+        // Each hash keeps its own cost
+        smarticulous.setPasswordIterations(2000);
+        assertTrue(smarticulous.verifyLogin(username, pass));
+        String other = getRandomString(10);
+        smarticulous.addOrUpdateUser(new User(other, db.getRandomWord(), db.getRandomWord()), pass);
+        assertTrue(smarticulous.verifyLogin(other, pass));
+
+        // Same password, different salt
+        String a = PasswordHasher.hash(pass, 1000);
+        String b = PasswordHasher.hash(pass, 1000);
+        assertNotEquals(a, b);
+        assertEquals(1000, PasswordHasher.iterations(a));
+        assertTrue(PasswordHasher.verify(pass, a) && PasswordHasher.verify(pass, b));
+        assertTrue(PasswordHasher.verify("", PasswordHasher.hash("", 1000)));
+        assertFalse(PasswordHasher.verify(pass, PasswordHasher.PREFIX + "1000$corrupt"));
 
         smarticulous.closeDB();
     }
@@ -155,6 +429,286 @@ public class SmarticulousTest {
         smarticulous.closeDB();
     }
 
+    @Test
+    public void user_legacyPasswordRehashedOnLogin() throws Exception {
+        int userId = rand.nextInt(db.getNumUsers()) + 1;
+        User user = db.getUser(userId);
+        String pass = db.getPassword(userId);
+
+        smarticulous.openDB(db.getDbUrl());
+        assertFalse("The test DB should hold plaintext passwords", PasswordHasher.isHash(storedPassword(userId)));
+
+        assertFalse(smarticulous.verifyLogin(user.username, getRandomString(10)));
+        assertTrue(smarticulous.verifyLogin(user.username, pass));
+        for (int i = 0; i < 100 && smarticulous.getPasswordsRehashedOnLogin() == 0; ++i)
+            Thread.sleep(50);
+        assertEquals(1, smarticulous.getPasswordsRehashedOnLogin());
+        assertTrue(PasswordHasher.isHash(storedPassword(userId)));
+        assertTrue(smarticulous.verifyLogin(user.username, pass));
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void user_verifyLoginWhenVerifiersAreBusy() throws Exception {
+        String username = getRandomString(10);
+        String pass = getRandomString(10);
+
+        smarticulous.setPasswordVerifierThreads(1);
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.addOrUpdateUser(new User(username, db.getRandomWord(), db.getRandomWord()), pass);
+
+        // Occupy the only verifier thread, and fill its queue with verifications
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            smarticulous.passwordVerifier.execute(release::join);
+            List<CompletableFuture<Boolean>> queued = new ArrayList<>();
+            for (int i = 0; i < Smarticulous.PASSWORD_VERIFIER_QUEUE_SIZE; ++i)
+                queued.add(smarticulous.verifyLoginAsync(username, pass));
+
+            try {
+                smarticulous.verifyLoginAsync(username, pass);
+                fail("verifyLoginAsync should reject verifications beyond the queue");
+            } catch (RejectedExecutionException e) {
+                // Expected
+            }
+
+            // The synchronous check waits for room on the verifier threads rather than hashing on the calling thread
+            Future<Boolean> waiting = caller.submit(() -> smarticulous.verifyLogin(username, pass));
+            Thread.sleep(200);
+            assertFalse(waiting.isDone());
+
+            release.complete(null);
+            assertTrue(waiting.get(10, TimeUnit.SECONDS));
+            for (CompletableFuture<Boolean> verified : queued)
+                assertTrue(verified.get(10, TimeUnit.SECONDS));
+            assertFalse(smarticulous.verifyLogin(username, getRandomString(10)));
+        } finally {
+            release.complete(null);
+            caller.shutdown();
+        }
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void user_rehashDoesNotBlockLogins() throws Exception {
+        int userId = rand.nextInt(db.getNumUsers()) + 1;
+        User user = db.getUser(userId);
+        String pass = db.getPassword(userId);
+
+        smarticulous.setPasswordVerifierThreads(1);
+        smarticulous.openDB(db.getDbUrl());
+        String other = getRandomString(10);
+        smarticulous.addOrUpdateUser(new User(other, db.getRandomWord(), db.getRandomWord()), pass);
+
+        ConnectionPool.Lease lease = smarticulous.pool.write();
+        try {
+            // Holding the writer keeps the rehashed legacy password from being stored...
+            assertTrue(smarticulous.verifyLogin(user.username, pass));
+            // ...but not the only verifier thread from checking other logins
+            assertTrue(smarticulous.verifyLoginAsync(other, pass).get(10, TimeUnit.SECONDS));
+            assertFalse(PasswordHasher.isHash(storedPassword(userId)));
+        } finally {
+            lease.close();
+        }
+
+        for (int i = 0; i < 100 && smarticulous.getPasswordsRehashedOnLogin() == 0; ++i)
+            Thread.sleep(50);
+        assertEquals(1, smarticulous.getPasswordsRehashedOnLogin());
+        assertTrue(PasswordHasher.isHash(storedPassword(userId)));
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void user_legacyPasswordSweep() throws Exception {
+        // Read before the sweep replaces them
+        List<String> passwords = new ArrayList<>();
+        for (int userId = 1; userId <= db.getNumUsers(); ++userId)
+            passwords.add(db.getPassword(userId));
+
+        smarticulous.openDB(db.getDbUrl());
+
+        smarticulous.startLegacyPasswordSweep(3, 100000);
+        for (int i = 0; i < 200 && !smarticulous.isLegacyPasswordSweepDone(); ++i)
+            Thread.sleep(50);
+        assertTrue(smarticulous.isLegacyPasswordSweepDone());
+        assertEquals(db.getNumUsers(), smarticulous.getLegacyPasswordsScanned());
+        assertEquals(db.getNumUsers(), smarticulous.getLegacyPasswordsRehashed());
+
+        for (int userId = 1; userId <= db.getNumUsers(); ++userId) {
+            assertTrue(PasswordHasher.isHash(storedPassword(userId)));
+            assertTrue(smarticulous.verifyLogin(db.getUser(userId).username, passwords.get(userId - 1)));
+        }
+
+        smarticulous.closeDB();
+    }
+
+    // Helper method - the Password column of a user
+    private String storedPassword(int userId) throws Exception {
+        try (PreparedStatement st = smarticulous.db.prepareStatement("SELECT Password FROM User WHERE UserId = ?")) {
+            st.setInt(1, userId);
+            try (ResultSet res = st.executeQuery()) {
+                assertTrue(res.next());
+                return res.getString("Password");
+            }
+        }
+    }
+
+    @Test
+    public void user_verifyLoginIsCached() throws Exception {
+        int userId = rand.nextInt(db.getNumUsers()) + 1;
+        User user = db.getUser(userId);
+        String pass = db.getPassword(userId);
+        String unknown = getRandomString(12);
+
+        smarticulous.openDB(db.getDbUrl());
+
+        assertTrue(smarticulous.verifyLogin(user.username, pass));
+        // The legacy password is rehashed after the first login; wait for it to settle
+        for (int i = 0; i < 100 && smarticulous.getPasswordsRehashedOnLogin() == 0; ++i)
+            Thread.sleep(50);
+        assertTrue(smarticulous.verifyLogin(user.username, pass));
+        assertFalse(smarticulous.verifyLogin(unknown, pass));
+        long statements = smarticulous.pool.writerStatements().hits() + smarticulous.pool.writerStatements().misses();
+
+        // Cache hits, positive and negative, don't touch the DB
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(smarticulous.verifyLogin(user.username, pass));
+            assertFalse(smarticulous.verifyLogin(user.username, getRandomString(10)));
+            assertFalse(smarticulous.verifyLogin(unknown, pass));
+        }
+        assertEquals("Cached logins should not query the DB", statements,
+                smarticulous.pool.writerStatements().hits() + smarticulous.pool.writerStatements().misses());
+
+        // addOrUpdateUser invalidates both the old password and "no such user"
+        String newPass = getRandomString(10);
+        smarticulous.addOrUpdateUser(user, newPass);
+        smarticulous.addOrUpdateUser(new User(unknown, db.getRandomWord(), db.getRandomWord()), pass);
+        assertFalse(smarticulous.verifyLogin(user.username, pass));
+        assertTrue(smarticulous.verifyLogin(user.username, newPass));
+        assertTrue(smarticulous.verifyLogin(unknown, pass));
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void user_verifyLoginUnknownUserExpires() throws Exception {
+        String unknown = getRandomString(12);
+        String pass = getRandomString(10);
+
+        smarticulous.setUnknownUserTtlMillis(50);
+        smarticulous.openDB(db.getDbUrl());
+        assertFalse(smarticulous.verifyLogin(unknown, pass));
+
+        // Added behind the cache's back: seen once the negative entry expires
+        try (PreparedStatement st = smarticulous.db.prepareStatement("INSERT INTO User (Username, Firstname, Lastname, Password) VALUES (?, ?, ?, ?)")) {
+            st.setString(1, unknown);
+            st.setString(2, db.getRandomWord());
+            st.setString(3, db.getRandomWord());
+            st.setString(4, pass);
+            st.executeUpdate();
+        }
+        assertFalse(smarticulous.verifyLogin(unknown, pass));
+        Thread.sleep(100);
+        assertTrue(smarticulous.verifyLogin(unknown, pass));
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void statementCache_reusesAndBoundsStatements() throws Exception {
+        smarticulous.setStatementCacheSize(2);
+        smarticulous.openDB(db.getDbUrl());
+
+        // Different users each time, so that the logins aren't served by the login cache
+        for (int i = 0; i < 5; ++i) {
+            int userId = i % db.getNumUsers() + 1;
+            smarticulous.verifyLogin(db.getUser(userId).username, getRandomString(10));
+            smarticulous.logins.clear();
+        }
+        assertEquals("Repeated logins should reuse the cached statement", 1, smarticulous.pool.writerStatements().misses());
+        assertEquals("Repeated logins should reuse the cached statement", 4, smarticulous.pool.writerStatements().hits());
+
+        smarticulous.loadExercises();
+        smarticulous.storeSubmission(createRandomSubmission());
+        assertTrue("The statement cache grew past its bound", smarticulous.pool.writerStatements().size() <= 2);
+        smarticulous.logins.clear();
+        assertTrue("Evicted statements are prepared again", smarticulous.verifyLogin(db.getUser(1).username, db.getPassword(1)));
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void statementCache_keepsStatementsInUse() throws Exception {
+        // Smaller than the working set of the batch writers, with or without materialized totals
+        for (boolean totals : new boolean[]{false, true}) {
+            smarticulous.setStatementCacheSize(1);
+            smarticulous.setMaterializeTotals(totals);
+            smarticulous.openDB(db.getDbUrl());
+
+            List<Submission> subs = new ArrayList<>();
+            for (int i = 0; i < 5; ++i) {
+                subs.add(createRandomSubmission());
+            }
+            int[] ids = smarticulous.storeSubmissions(subs);
+            Submission async = createRandomSubmission();
+            async.id = smarticulous.submitAsync(async).get();
+            Submission single = createRandomSubmission();
+            single.id = smarticulous.storeSubmission(single);
+
+            for (int i = 0; i < subs.size(); ++i) {
+                subs.get(i).id = ids[i];
+                db.checkSubmission(subs.get(i));
+            }
+            db.checkSubmission(async);
+            db.checkSubmission(single);
+            assertEquals("The overflow is evicted once the statements are released", 1, smarticulous.pool.writerStatements().size());
+
+            smarticulous.closeDB();
+        }
+    }
+
+    @Test
+    public void pool_concurrentReadsAndWrites() throws Exception {
+        // In-memory databases can't be pooled, so use a file-backed one
+        db.close();
+        tmpdb = db.open(File.createTempFile("testPool", "sqlite").getPath());
+        db.fillRandomDB();
+
+        int userId = rand.nextInt(db.getNumUsers()) + 1;
+        User user = db.getUser(userId);
+        String pass = db.getPassword(userId);
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 40; ++i)
+            subs.add(createRandomSubmission());
+
+        smarticulous.setReadConnections(3);
+        smarticulous.openDB(db.getDbUrl());
+        assertEquals("The read-only connections were not opened", 3, smarticulous.pool.readConnections());
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Submission sub : subs) {
+            futures.add(executor.submit(() -> {
+                sub.id = smarticulous.storeSubmission(sub);
+                assertTrue("Your code rejects a valid user!", smarticulous.verifyLogin(user.username, pass));
+                assertEquals("You didn't return all the exercises!", db.getNumExercises(), smarticulous.loadExercises().size());
+                return null;
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        for (Submission sub : subs)
+            db.checkSubmission(sub);
+
+        smarticulous.closeDB();
+    }
+
     private Exercise createRandomExercise() throws Exception {
         int id = db.getNumExercises() + 1;
         String name = db.getRandomWord();
@@ -212,6 +766,51 @@ public class SmarticulousTest {
         smarticulous.closeDB();
     }
 
+    @Test
+    public void exercise_getExerciseIsCached() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        Exercise ex = smarticulous.getExercise(1);
+        db.checkExercise(ex);
+        assertSame("A second read should be served by the cache", ex, smarticulous.getExercise(1));
+        assertEquals(1, smarticulous.getExerciseCacheMisses());
+        assertEquals(1, smarticulous.getExerciseCacheHits());
+        assertNull(smarticulous.getExercise(db.getNumExercises() + 1));
+
+        // addQuestion invalidates the cached exercise
+        int questions = ex.questions.size();
+        smarticulous.addQuestion(ex.new Question(db.getRandomWord(), db.getRandomWord(), 10), 1);
+        Exercise changed = smarticulous.getExercise(1);
+        assertEquals(questions + 1, changed.questions.size());
+        assertEquals(10, changed.questions.get(questions).points);
+
+        // So does addExercise
+        Exercise newEx = createRandomExercise();
+        assertNull(smarticulous.getExercise(newEx.id));
+        smarticulous.addExercise(newEx);
+        assertEquals(newEx.questions.size(), smarticulous.getExercise(newEx.id).questions.size());
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void exercise_loadExercises_withoutQuestions() throws Exception {
+        Exercise empty = new Exercise(db.getNumExercises() + 1, db.getRandomWord(), new Date());
+
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.addExercise(empty);
+
+        List<Exercise> exs = smarticulous.loadExercises();
+
+        assertEquals("You didn't return all the exercises!", db.getNumExercises(), exs.size());
+        Exercise last = exs.get(exs.size() - 1);
+        assertEquals("Exercises are not sorted by id", empty.id, last.id);
+        assertTrue("An exercise without questions got questions", last.questions.isEmpty());
+        db.checkExercise(exs.get(0));
+
+        smarticulous.closeDB();
+    }
+
     @Test
     public void submission_storeSubmission() throws Exception  {
         smarticulous.openDB(db.getDbUrl());
@@ -225,6 +824,314 @@ public class SmarticulousTest {
         smarticulous.closeDB();
     }
 
+    @Test
+    public void submission_storeSubmission_questionGrades() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        Submission sub = createRandomSubmission();
+        sub.id = smarticulous.storeSubmission(sub);
+
+        PreparedStatement st = smarticulous.db.prepareStatement(
+                "SELECT QuestionId, Grade FROM QuestionGrade WHERE SubmissionId = ? ORDER BY QuestionId");
+        st.setInt(1, sub.id);
+        ResultSet res = st.executeQuery();
+
+        for (int i = 0; i < sub.questionGrades.length; ++i) {
+            assertTrue("Missing grade for question " + (i + 1), res.next());
+            assertEquals("Wrong question id", i + 1, res.getInt("QuestionId"));
+            assertEquals("Wrong grade stored", sub.questionGrades[i], res.getFloat("Grade"), 1e-6);
+        }
+        assertFalse("Too many grades stored", res.next());
+
+        st.close();
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_storeSubmissions() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 20; ++i)
+            subs.add(createRandomSubmission());
+        Submission unknown = createRandomSubmission();
+        unknown.user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        subs.add(unknown);
+
+        int[] ids = smarticulous.storeSubmissions(subs);
+
+        assertEquals("Submissions of unknown users should not be stored", -1, ids[subs.size() - 1]);
+        for (int i = 0; i < subs.size() - 1; ++i) {
+            Submission sub = subs.get(i);
+            sub.id = ids[i];
+            db.checkSubmission(sub);
+        }
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_storeSubmissions_iterator() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 25; ++i)
+            subs.add(createRandomSubmission());
+
+        assertEquals("Not all submissions were stored", subs.size(), smarticulous.storeSubmissions(subs.iterator(), 7));
+
+        // The submissions were appended in order, so the last one has the largest id
+        Submission last = subs.get(subs.size() - 1);
+        Statement st = smarticulous.db.createStatement();
+        last.id = st.executeQuery("SELECT MAX(SubmissionId) FROM Submission").getInt(1);
+        db.checkSubmission(last);
+
+        st.close();
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_submitAsync() throws Exception  {
+        smarticulous.setSubmissionQueueCapacity(50); // Smaller than the burst, so submitters block
+        smarticulous.openDB(db.getDbUrl());
+
+        List<Submission> subs = new ArrayList<>();
+        List<CompletableFuture<Integer>> ids = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            subs.add(createRandomSubmission());
+            ids.add(smarticulous.submitAsync(subs.get(i)));
+        }
+        Submission unknown = createRandomSubmission();
+        unknown.user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        assertEquals("Submissions of unknown users should not be stored", -1, (int) smarticulous.submitAsync(unknown).get());
+
+        for (int i = 0; i < subs.size(); ++i) {
+            subs.get(i).id = ids.get(i).get(10, TimeUnit.SECONDS);
+            db.checkSubmission(subs.get(i));
+        }
+        assertEquals(0, smarticulous.getSubmissionsRejected());
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_submitAsyncOverflow() throws Exception  {
+        for (Smarticulous.OverflowPolicy policy : new Smarticulous.OverflowPolicy[]{Smarticulous.OverflowPolicy.FAIL_FAST, Smarticulous.OverflowPolicy.SHED}) {
+            smarticulous.setSubmissionQueueCapacity(2);
+            smarticulous.setSubmissionOverflowPolicy(policy);
+            smarticulous.openDB(db.getDbUrl());
+
+            List<CompletableFuture<Integer>> accepted = new ArrayList<>();
+            CompletableFuture<Integer> shed = null;
+            boolean rejected = false;
+
+            // While this thread holds the writer, the writer thread can't drain the queue
+            ConnectionPool.Lease lease = smarticulous.pool.write();
+            try {
+                for (int i = 0; i < 10 && !rejected && shed == null; ++i) {
+                    try {
+                        CompletableFuture<Integer> id = smarticulous.submitAsync(createRandomSubmission());
+                        if (id.isCompletedExceptionally()) {
+                            shed = id;
+                        } else {
+                            accepted.add(id);
+                        }
+                    } catch (RejectedExecutionException e) {
+                        rejected = true;
+                    }
+                }
+            } finally {
+                lease.close();
+            }
+
+            if (policy == Smarticulous.OverflowPolicy.FAIL_FAST) {
+                assertTrue("A full queue must reject submissions", rejected);
+            } else {
+                assertNotNull("A full queue must shed submissions", shed);
+                assertFalse(rejected);
+            }
+            assertEquals(1, smarticulous.getSubmissionsRejected());
+
+            // The accepted submissions are still written, at the latest when the database is closed
+            smarticulous.closeDB();
+            for (CompletableFuture<Integer> id : accepted) {
+                assertTrue(id.get() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void submission_journal() throws Exception  {
+        File journal = File.createTempFile("testJournal", "log");
+        try {
+            smarticulous.setSubmissionJournal(journal.getPath());
+            smarticulous.openDB(db.getDbUrl());
+
+            List<Submission> subs = new ArrayList<>();
+            List<CompletableFuture<Integer>> ids = new ArrayList<>();
+            for (int i = 0; i < 200; ++i) {
+                subs.add(createRandomSubmission());
+                ids.add(smarticulous.submitAsync(subs.get(i)));
+            }
+            Submission unknown = createRandomSubmission();
+            unknown.user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            assertEquals("Submissions of unknown users should not be journaled", -1, (int) smarticulous.submitAsync(unknown).get());
+
+            // Acknowledged once journaled, and stored by the time the database is closed
+            for (CompletableFuture<Integer> id : ids) {
+                assertTrue("A journaled submission must be acknowledged with its id", id.isDone());
+            }
+            smarticulous.closeDB();
+            assertEquals("The journal must be emptied once everything is committed", 0, journal.length());
+
+            for (int i = 0; i < subs.size(); ++i) {
+                subs.get(i).id = ids.get(i).get();
+                db.checkSubmission(subs.get(i));
+            }
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void submission_journalReplay() throws Exception  {
+        File journal = File.createTempFile("testJournal", "log");
+        try {
+            smarticulous.setSubmissionJournal(journal.getPath());
+            smarticulous.openDB(db.getDbUrl());
+
+            // A submission that was committed before the crash, but is still in the journal
+            Submission committed = createRandomSubmission();
+            committed.id = smarticulous.storeSubmission(committed);
+            smarticulous.journal.sync(smarticulous.journal.append(committed));
+
+            // Submissions journaled, but never written to the database
+            List<Submission> subs = new ArrayList<>();
+            long sequence = 0;
+            for (int i = 0; i < 10; ++i) {
+                Submission sub = createRandomSubmission();
+                sub.id = smarticulous.journal.allocateId(-1);
+                sequence = smarticulous.journal.append(sub);
+                subs.add(sub);
+            }
+            smarticulous.journal.sync(sequence);
+            int rows = countRows("Submission");
+            smarticulous.closeDB();
+
+            // A record torn by the crash
+            try (FileOutputStream out = new FileOutputStream(journal, true)) {
+                out.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+            }
+
+            smarticulous.openDB(db.getDbUrl());
+            assertEquals("Only the missing submissions must be replayed", rows + subs.size(), countRows("Submission"));
+            for (Submission sub : subs) {
+                db.checkSubmission(sub);
+            }
+            db.checkSubmission(committed);
+            assertEquals(0, journal.length());
+            smarticulous.closeDB();
+
+            // Replaying again changes nothing
+            smarticulous.openDB(db.getDbUrl());
+            assertEquals(rows + subs.size(), countRows("Submission"));
+            smarticulous.closeDB();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void submission_journalQuarantinesFailedSubmissions() throws Exception  {
+        File journal = File.createTempFile("testJournal", "log");
+        File deadLetters = SubmissionJournal.deadLetterPath(journal.toPath()).toFile();
+        try {
+            smarticulous.setSubmissionJournal(journal.getPath());
+            smarticulous.openDB(db.getDbUrl());
+            // The middle submission of the group can't be written
+            Date badTime = new Date(12345);
+            try (Statement st = smarticulous.db.createStatement()) {
+                st.executeUpdate("CREATE TRIGGER FailSubmission BEFORE INSERT ON Submission " +
+                        "WHEN NEW.SubmissionTime = " + badTime.getTime() + " BEGIN SELECT RAISE(ABORT, 'bad submission'); END");
+            }
+
+            List<Submission> subs = new ArrayList<>();
+            List<CompletableFuture<Integer>> ids = new ArrayList<>();
+            ConnectionPool.Lease lease = smarticulous.pool.write();
+            try {
+                // Held so the writer thread waits with its first group while the next one is queued
+                ids.add(smarticulous.submitAsync(createRandomSubmission()));
+                while (smarticulous.getSubmissionQueueSize() > 0) {
+                    Thread.sleep(1);
+                }
+                for (int i = 0; i < 3; ++i) {
+                    Submission sub = createRandomSubmission();
+                    if (i == 1) {
+                        sub.submissionTime = badTime;
+                    }
+                    subs.add(sub);
+                    ids.add(smarticulous.submitAsync(sub));
+                }
+            } finally {
+                lease.close();
+            }
+            for (int i = 0; i < subs.size(); ++i) {
+                subs.get(i).id = ids.get(i + 1).get();
+            }
+            smarticulous.closeDB();
+
+            // The rest of the group is committed, and the failed submission moved out of the journal
+            assertEquals(0, journal.length());
+            long quarantined = deadLetters.length();
+            assertTrue("The failed submission must be moved to the dead-letter file", quarantined > 0);
+            smarticulous.openDB(db.getDbUrl());
+            db.checkSubmission(subs.get(0));
+            db.checkSubmission(subs.get(2));
+            assertEquals(0, countRows("Submission WHERE SubmissionTime = " + badTime.getTime()));
+
+            // A failed submission still in the journal (a crash before the truncation) is not replayed, and replay
+            // quarantines the submissions it can't write instead of failing
+            Submission bad = createRandomSubmission();
+            bad.id = smarticulous.journal.allocateId(-1);
+            bad.submissionTime = badTime;
+            Submission good = createRandomSubmission();
+            good.id = smarticulous.journal.allocateId(-1);
+            smarticulous.journal.append(subs.get(1));
+            smarticulous.journal.append(bad);
+            smarticulous.journal.sync(smarticulous.journal.append(good));
+            smarticulous.closeDB();
+
+            smarticulous.openDB(db.getDbUrl());
+            db.checkSubmission(good);
+            assertEquals(0, journal.length());
+            assertTrue(deadLetters.length() > quarantined);
+            smarticulous.closeDB();
+
+            // Once such submissions could be written, they are still not replayed
+            try (Connection conn = DriverManager.getConnection(db.getDbUrl());
+                 Statement st = conn.createStatement()) {
+                st.executeUpdate("DROP TRIGGER FailSubmission");
+            }
+            smarticulous.openDB(db.getDbUrl());
+            smarticulous.journal.sync(smarticulous.journal.append(subs.get(1)));
+            smarticulous.closeDB();
+            smarticulous.openDB(db.getDbUrl());
+            assertEquals(0, countRows("Submission WHERE SubmissionTime = " + badTime.getTime()));
+            smarticulous.closeDB();
+        } finally {
+            journal.delete();
+            deadLetters.delete();
+        }
+    }
+
+    // Helper method - the number of rows in a table of the open database
+    private int countRows(String table) throws SQLException {
+        try (Statement st = smarticulous.db.createStatement();
+             ResultSet res = st.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            return res.getInt(1);
+        }
+    }
+
     @Test
     public void submission_getLastSubmissionStatement() throws Exception  {
         smarticulous.openDB(db.getDbUrl());
@@ -265,6 +1172,353 @@ public class SmarticulousTest {
         smarticulous.closeDB();
     }
 
+    /**
+     * Return the detail lines of SQLite's EXPLAIN QUERY PLAN for the given statement.
+     */
+    private List<String> queryPlan(String sql) throws Exception {
+        List<String> plan = new ArrayList<>();
+        try (Statement st = smarticulous.db.createStatement();
+             ResultSet res = st.executeQuery("EXPLAIN QUERY PLAN " + sql)) {
+            while (res.next())
+                plan.add(res.getString("detail"));
+        }
+        return plan;
+    }
+
+    /**
+     * Check that a query plan starts its search through the given index and never scans one of the tables.
+     */
+    private void checkIndexDriven(List<String> plan, String index) {
+        assertTrue("The query is not searched through " + index + ": " + plan,
+                plan.stream().anyMatch(line -> line.startsWith("SEARCH") && line.contains(index)));
+        for (String line : plan) {
+            assertFalse("The query scans a whole table: " + plan,
+                    line.matches("SCAN (TABLE )?(User|Exercise|Question|Submission|QuestionGrade)\\b.*"));
+        }
+    }
+
+    @Test
+    public void submission_lastSubmissionIsIndexDriven() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        checkIndexDriven(queryPlan(Smarticulous.LAST_SUBMISSION_GRADES_SQL), "USING COVERING INDEX Submission_"); // Either (UserId, ExerciseId) index
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_bestSubmissionIsIndexDriven() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        checkIndexDriven(queryPlan(Smarticulous.BEST_SUBMISSION_GRADES_SQL), "USING COVERING INDEX Submission_"); // Either (UserId, ExerciseId) index
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_getBestSubmission() throws Exception  {
+        Submission sub = createRandomSubmission();
+        Exercise exercise = sub.exercise;
+
+        smarticulous.openDB(db.getDbUrl());
+
+        // A submission with the highest grades is the best one, even if later submissions follow it
+        float[] full = new float[exercise.questions.size()];
+        for (int i = 0; i < full.length; ++i)
+            full[i] = 1000;
+        int bestId = smarticulous.storeSubmission(new Submission(-1, sub.user, exercise, sub.submissionTime, full));
+        smarticulous.storeSubmission(new Submission(-1, sub.user, exercise, new Date(), new float[full.length]));
+
+        Submission found = smarticulous.getBestSubmission(sub.user, exercise);
+        assertNotNull(found);
+        assertEquals(bestId, found.id);
+        assertArrayEquals(full, found.questionGrades, 0);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_materializedTotals() throws Exception  {
+        smarticulous.setMaterializeTotals(true);
+        smarticulous.openDB(db.getDbUrl());
+        assertTrue(smarticulous.maintainTotals);
+
+        // Backfilled from the existing submissions
+        checkMaterializedTotals();
+
+        // Kept up to date by single and bulk writes
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 30; ++i)
+            subs.add(createRandomSubmission());
+        for (Submission sub : subs.subList(0, 10))
+            smarticulous.storeSubmission(sub);
+        smarticulous.storeSubmissions(subs.subList(10, 30));
+        checkMaterializedTotals();
+
+        checkIndexDriven(queryPlan(SubmissionTotals.BEST_SUBMISSION_GRADES_SQL), "M USING PRIMARY KEY");
+        checkIndexDriven(queryPlan(SubmissionTotals.LAST_SUBMISSION_GRADES_SQL), "M USING PRIMARY KEY");
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_gradesBlobs() throws Exception  {
+        // The best and latest submissions before the grades are folded into BLOBs
+        smarticulous.openDB(db.getDbUrl());
+        Map<String, Submission> expected = new HashMap<>();
+        for (int uid = 1; uid <= db.getNumUsers(); ++uid) {
+            User user = db.getUser(uid);
+            for (int exid = 1; exid <= db.getNumExercises(); ++exid) {
+                Exercise exercise = db.getExercise(exid);
+                expected.put("best " + uid + " " + exid, smarticulous.getBestSubmission(user, exercise));
+                expected.put("last " + uid + " " + exid, smarticulous.getLastSubmission(user, exercise));
+            }
+        }
+        smarticulous.closeDB();
+
+        smarticulous.setGradesBlobs(true);
+        smarticulous.openDB(db.getDbUrl());
+        assertTrue(smarticulous.gradesBlobs);
+        assertEquals("The QuestionGrade rows should be folded into the BLOBs", 0, countRows("QuestionGrade"));
+        for (int uid = 1; uid <= db.getNumUsers(); ++uid) {
+            User user = db.getUser(uid);
+            for (int exid = 1; exid <= db.getNumExercises(); ++exid) {
+                Exercise exercise = db.getExercise(exid);
+                assertSameSubmission(expected.get("best " + uid + " " + exid), smarticulous.getBestSubmission(user, exercise));
+                assertSameSubmission(expected.get("last " + uid + " " + exid), smarticulous.getLastSubmission(user, exercise));
+            }
+        }
+        checkGradebooks();
+
+        // New submissions are stored and read back as BLOBs, by every write path
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 20; ++i)
+            subs.add(createRandomSubmission());
+        Submission last = subs.get(subs.size() - 1);
+        last.submissionTime = new Date(System.currentTimeMillis() + 1000); // Later than every random submission
+        for (Submission sub : subs.subList(0, 10))
+            sub.id = smarticulous.storeSubmission(sub);
+        int[] ids = smarticulous.storeSubmissions(subs.subList(10, 20));
+        for (int i = 10; i < 20; ++i)
+            subs.get(i).id = ids[i - 10];
+        assertEquals(0, countRows("QuestionGrade"));
+        assertSameSubmission(last, smarticulous.getLastSubmission(last.user, last.exercise));
+        checkGradebooks();
+
+        // Expanded on demand for tools that read the QuestionGrade table
+        int rows = smarticulous.expandQuestionGrades();
+        assertTrue(rows > 0);
+        assertEquals(rows, countRows("QuestionGrade"));
+        for (Submission sub : subs)
+            db.checkSubmission(sub);
+        smarticulous.closeDB();
+
+        // Folded back on the next open, even without asking for BLOBs again
+        smarticulous = new Smarticulous();
+        smarticulous.openDB(db.getDbUrl());
+        assertTrue(smarticulous.gradesBlobs);
+        assertEquals(0, countRows("QuestionGrade"));
+        assertSameSubmission(last, smarticulous.getLastSubmission(last.user, last.exercise));
+        smarticulous.closeDB();
+
+        // The totals are computed from the QuestionGrade rows, so they can't be materialized as well
+        smarticulous.setMaterializeTotals(true);
+        try {
+            smarticulous.openDB(db.getDbUrl());
+            fail("openDB should refuse materialized totals over grades BLOBs");
+        } catch (SQLException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void submission_gradesBlobsRankedByStoredTotals() throws Exception  {
+        smarticulous.setGradesBlobs(true);
+        smarticulous.openDB(db.getDbUrl());
+        assertEquals("Every folded submission should have its total", 0, countRows("Submission WHERE TotalGrade IS NULL"));
+
+        // There are no QuestionGrade rows to return
+        try {
+            smarticulous.getBestSubmissionGradesStatement();
+            fail("getBestSubmissionGradesStatement should fail with grades BLOBs");
+        } catch (SQLException e) {
+            // Expected
+        }
+
+        Submission sub = createRandomSubmission();
+        Exercise exercise = sub.exercise;
+        int questions = exercise.questions.size();
+
+        // A grade for a question the exercise doesn't have yet doesn't count...
+        float[] ahead = new float[questions + 1];
+        ahead[questions] = 1000000;
+        int aheadId = smarticulous.storeSubmission(new Submission(sub.user, exercise, new Date(System.currentTimeMillis() + 1000), ahead));
+        float[] full = new float[questions];
+        for (int i = 0; i < questions; ++i)
+            full[i] = 2;
+        int fullId = smarticulous.storeSubmissions(Arrays.asList(new Submission(sub.user, exercise, new Date(System.currentTimeMillis() + 2000), full)))[0];
+        assertEquals(fullId, smarticulous.getBestSubmission(sub.user, exercise).id);
+
+        // ...until the question is added
+        smarticulous.addQuestion(exercise.new Question(db.getRandomWord(), db.getRandomWord(), 1), exercise.id);
+        assertEquals(aheadId, smarticulous.getBestSubmission(sub.user, exercise).id);
+        boolean found = false;
+        for (Submission best : smarticulous.getBestSubmissions(exercise)) {
+            if (best.user.username.equals(sub.user.username)) {
+                assertEquals(aheadId, best.id);
+                found = true;
+            }
+        }
+        assertTrue(found);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_streamSubmissions() throws Exception  {
+        smarticulous.setReadConnections(2);
+        smarticulous.setStreamFetchSize(16);
+        smarticulous.openDB(db.getDbUrl());
+        checkStreams();
+        smarticulous.closeDB();
+
+        smarticulous.setGradesBlobs(true);
+        smarticulous.openDB(db.getDbUrl());
+        checkStreams();
+        smarticulous.closeDB();
+    }
+
+    // Helper method - check that the streams hold every submission, in order, and release their connection when closed
+    private void checkStreams() throws Exception {
+        int total = 0;
+        for (int exid = 1; exid <= db.getNumExercises(); ++exid) {
+            Exercise exercise = db.getExercise(exid);
+            List<Submission> subs;
+            try (Stream<Submission> stream = smarticulous.streamSubmissions(exercise)) {
+                subs = stream.collect(Collectors.toList());
+            }
+            // Sorted by user and then time, so the last one of each user is the latest
+            List<Submission> last = smarticulous.getLastSubmissions(exercise);
+            int j = 0;
+            for (int i = 0; i < subs.size(); ++i) {
+                assertEquals(exercise.id, subs.get(i).exercise.id);
+                if (i + 1 == subs.size() || !subs.get(i + 1).user.username.equals(subs.get(i).user.username)) {
+                    assertEquals(last.get(j).user.username, subs.get(i).user.username);
+                    assertSameSubmission(last.get(j++), subs.get(i));
+                }
+            }
+            assertEquals(last.size(), j);
+            total += subs.size();
+        }
+        assertEquals("Every submission should be streamed once", countRows("Submission"), total);
+
+        for (int uid = 1; uid <= db.getNumUsers(); ++uid) {
+            User user = db.getUser(uid);
+            try (Stream<Submission> stream = smarticulous.streamSubmissions(user)) {
+                total -= stream.peek(sub -> assertEquals(user.username, sub.user.username)).count();
+            }
+        }
+        assertEquals("Both streams should hold the same submissions", 0, total);
+
+        try (Stream<Submission> stream = smarticulous.streamSubmissions(new User(getRandomString(10), "a", "b"))) {
+            assertEquals(0, stream.count());
+        }
+
+        // Closing a partly consumed stream releases its read connection, so this thread may write again
+        try (Stream<Submission> stream = smarticulous.streamSubmissions(db.getExercise(1))) {
+            assertTrue(stream.findFirst().isPresent());
+        }
+        Submission sub = createRandomSubmission();
+        sub.id = smarticulous.storeSubmission(sub);
+        assertTrue(sub.id > 0);
+    }
+
+    @Test
+    public void gradebook_agreesWithSingleLookups() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+        checkGradebooks();
+        smarticulous.closeDB();
+
+        smarticulous.setMaterializeTotals(true);
+        smarticulous.openDB(db.getDbUrl());
+        checkGradebooks();
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void gradebook_isIndexDriven() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        checkIndexDriven(queryPlan(Gradebook.BEST_BY_EXERCISE_SQL), "Submission_ExerciseId_UserId_SubmissionTime");
+        checkIndexDriven(queryPlan(Gradebook.LAST_BY_EXERCISE_SQL), "Submission_ExerciseId_UserId_SubmissionTime");
+        checkIndexDriven(queryPlan(Gradebook.BEST_BY_USER_SQL), "Submission_UserId_ExerciseId_SubmissionTime");
+        checkIndexDriven(queryPlan(Gradebook.LAST_BY_USER_SQL), "Submission_UserId_ExerciseId_SubmissionTime");
+        checkIndexDriven(queryPlan(SubmissionCursor.BY_EXERCISE_SQL), "Submission_ExerciseId_UserId_SubmissionTime");
+        checkIndexDriven(queryPlan(SubmissionCursor.BY_USER_SQL), "Submission_UserId_ExerciseId_SubmissionTime");
+        // Streams sort at most the submissions with equal times, never the whole result
+        for (String line : queryPlan(SubmissionCursor.BY_EXERCISE_SQL))
+            assertFalse(line, line.equals("USE TEMP B-TREE FOR ORDER BY"));
+
+        smarticulous.closeDB();
+    }
+
+    // Helper method - check that every gradebook holds exactly the submissions found by the single-submission lookups
+    private void checkGradebooks() throws Exception {
+        int total = 0;
+        for (int exid = 1; exid <= db.getNumExercises(); ++exid) {
+            Exercise exercise = db.getExercise(exid);
+            List<Submission> best = smarticulous.getBestSubmissions(exercise);
+            List<Submission> last = smarticulous.getLastSubmissions(exercise);
+            assertEquals(best.size(), last.size());
+            for (int i = 0; i < best.size(); ++i) {
+                assertSameSubmission(smarticulous.getBestSubmission(best.get(i).user, exercise), best.get(i));
+                assertSameSubmission(smarticulous.getLastSubmission(last.get(i).user, exercise), last.get(i));
+            }
+            total += best.size();
+        }
+
+        int totalByUser = 0;
+        for (int uid = 1; uid <= db.getNumUsers(); ++uid) {
+            User user = db.getUser(uid);
+            List<Submission> best = smarticulous.getBestSubmissions(user);
+            List<Submission> last = smarticulous.getLastSubmissions(user);
+            assertEquals(best.size(), last.size());
+            for (int i = 0; i < best.size(); ++i) {
+                assertEquals(user.username, best.get(i).user.username);
+                assertSameSubmission(smarticulous.getBestSubmission(user, best.get(i).exercise), best.get(i));
+                assertSameSubmission(smarticulous.getLastSubmission(user, last.get(i).exercise), last.get(i));
+            }
+            totalByUser += best.size();
+        }
+        assertTrue("The test DB has no submissions", total > 0);
+        assertEquals("Both views should hold one submission per (user, exercise)", total, totalByUser);
+    }
+
+    // Helper method - check that the summary pointers agree with the aggregating queries for every (user, exercise)
+    private void checkMaterializedTotals() throws Exception {
+        for (int uid = 1; uid <= db.getNumUsers(); ++uid) {
+            User user = db.getUser(uid);
+            for (int exid = 1; exid <= db.getNumExercises(); ++exid) {
+                Exercise exercise = db.getExercise(exid);
+                try (PreparedStatement best = smarticulous.db.prepareStatement(Smarticulous.BEST_SUBMISSION_GRADES_SQL);
+                     PreparedStatement last = smarticulous.db.prepareStatement(Smarticulous.LAST_SUBMISSION_GRADES_SQL)) {
+                    assertSameSubmission(smarticulous.getSubmission(user, exercise, best), smarticulous.getBestSubmission(user, exercise));
+                    assertSameSubmission(smarticulous.getSubmission(user, exercise, last), smarticulous.getLastSubmission(user, exercise));
+                }
+            }
+        }
+    }
+
+    private void assertSameSubmission(Submission expected, Submission actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(expected.id, actual.id);
+        assertArrayEquals(expected.questionGrades, actual.questionGrades, 0);
+    }
+
     @Test
     public void getBestSubmissionStatement()  throws Exception {
         smarticulous.openDB(db.getDbUrl());
@@ -277,4 +1531,166 @@ public class SmarticulousTest {
         st.close();
         smarticulous.closeDB();
     }
+
+    @Test
+    public void metrics_recordsOperations() throws Exception {
+        Metrics metrics = new Metrics();
+        smarticulous.setMetricsRegistry(metrics);
+        smarticulous.openDB(db.getDbUrl());
+
+        assertTrue(smarticulous.verifyLogin(db.getUser(1).username, db.getPassword(1)));
+        assertFalse(smarticulous.verifyLogin(db.getUser(1).username, getRandomString(10)));
+        assertEquals(2, metrics.operation("verifyLogin").getCalls());
+
+        List<Exercise> exs = smarticulous.loadExercises();
+        long questions = exs.stream().mapToLong(ex -> ex.questions.size()).sum();
+        assertEquals("Exercises and their questions are records read", exs.size() + questions,
+                metrics.operation("loadExercises").getRowsRead());
+
+        Submission sub = createRandomSubmission();
+        smarticulous.storeSubmission(sub);
+        assertEquals(1, metrics.operation("storeSubmission").getRowsWritten());
+        assertNotNull(smarticulous.getLastSubmission(sub.user, sub.exercise));
+        assertEquals(1, metrics.operation("getLastSubmission").getRowsRead());
+        assertEquals(smarticulous.getLastSubmissions(sub.user).size(), metrics.operation("getLastSubmissionsOfUser").getRowsRead());
+        // Calls nested in another public method are not recorded on their own
+        assertEquals(1, metrics.operation("loadExercises").getCalls());
+        // Asynchronous calls are recorded by the time their future completes
+        assertNotEquals(-1, smarticulous.submitAsync(createRandomSubmission()).get().intValue());
+        assertEquals(1, metrics.operation("submitAsync").getCalls());
+        assertEquals(1, metrics.operation("submitAsync").getRowsWritten());
+
+        // A failed call counts as an error
+        try (Statement st = smarticulous.db.createStatement()) {
+            st.executeUpdate("DROP TABLE Question");
+        }
+        try {
+            smarticulous.loadExercises();
+            fail("loadExercises should fail without the Question table");
+        } catch (SQLException e) {
+            // Expected
+        }
+        OperationMetrics loads = metrics.operation("loadExercises");
+        assertEquals(2, loads.getCalls());
+        assertEquals(1, loads.getErrors());
+        assertTrue(loads.getMaxMillis() > 0);
+        assertTrue(loads.getP50Millis() <= loads.getP99Millis());
+        assertTrue(loads.getP99Millis() <= loads.getMaxMillis());
+
+        // Recording can be turned off
+        smarticulous.setMetricsRegistry(MetricsRegistry.NONE);
+        smarticulous.verifyLogin(db.getUser(1).username, db.getPassword(1));
+        assertEquals(2, metrics.operation("verifyLogin").getCalls());
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void metrics_latencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100000; ++v) {
+            histogram.record(v * 1000);
+        }
+        assertEquals(100000, histogram.count());
+        assertEquals(100000000L, histogram.max());
+        // Within the 12.5% bucket width of the exact percentiles
+        assertEquals(50000000, histogram.valueAtPercentile(50), 50000000 * 0.125);
+        assertEquals(99000000, histogram.valueAtPercentile(99), 99000000 * 0.125);
+        assertEquals(100000000, histogram.valueAtPercentile(100));
+        assertEquals(50000500, histogram.mean(), 1);
+
+        // Every value falls in the bucket whose bounds contain it
+        for (long v : new long[]{0, 1, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(v);
+            assertTrue(v <= LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || v > LatencyHistogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void metrics_jmx() throws Exception {
+        smarticulous.setJmxName("test");
+        smarticulous.openDB(db.getDbUrl());
+
+        for (int i = 0; i < 3; ++i) {
+            smarticulous.getExercise(1);
+            smarticulous.getLastSubmission(db.getUser(1), smarticulous.getExercise(1));
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("smarticulous:type=Metrics,name=test");
+        long hits = (Long) server.getAttribute(name, "StatementCacheHits");
+        long misses = (Long) server.getAttribute(name, "StatementCacheMisses");
+        assertEquals(smarticulous.getStatementCacheHits(), hits);
+        assertEquals(smarticulous.getStatementCacheMisses(), misses);
+        assertTrue("Repeated queries should reuse their statements", hits > 0);
+        assertEquals((double) hits / (hits + misses), (Double) server.getAttribute(name, "StatementCacheHitRate"), 1e-9);
+        assertEquals(5.0 / 6, (Double) server.getAttribute(name, "ExerciseCacheHitRate"), 1e-9);
+
+        TabularData operations = (TabularData) server.getAttribute(name, "Operations");
+        CompositeData getExercise = (CompositeData) operations.get(new Object[]{"getExercise"}).get("value");
+        assertEquals(6L, getExercise.get("calls"));
+
+        smarticulous.closeDB();
+        assertFalse("closeDB should unregister the MBean", server.isRegistered(name));
+    }
+
+    @Test
+    public void slowQueryLog_logsStatements() throws Exception {
+        List<String> entries = new ArrayList<>();
+        SlowQueryLog log = new SlowQueryLog(0, 1, entries::add);
+
+        try (Connection conn = log.wrap(DriverManager.getConnection(db.getDbUrl()))) {
+            try (PreparedStatement st = conn.prepareStatement("SELECT Username FROM User WHERE UserId <= ?")) {
+                st.setInt(1, 2);
+                try (ResultSet res = st.executeQuery()) {
+                    while (res.next()) {
+                    }
+                }
+            }
+            assertEquals(1, entries.size());
+            String entry = entries.get(0);
+            assertTrue(entry, entry.contains("2 rows): SELECT Username FROM User WHERE UserId <= ?"));
+            assertTrue(entry, entry.contains("binds: [1=2]"));
+            assertTrue(entry, entry.contains("SEARCH User USING INTEGER PRIMARY KEY"));
+
+            // Password values are never logged
+            try (PreparedStatement st = conn.prepareStatement(Smarticulous.REHASH_PASSWORD_SQL)) {
+                st.setString(1, "new-secret");
+                st.setString(2, db.getUser(1).username);
+                st.setString(3, "old-secret");
+                assertEquals(0, st.executeUpdate());
+            }
+            entry = entries.get(1);
+            assertTrue(entry, entry.contains("binds: [1=<redacted>, 2='" + db.getUser(1).username + "', 3=<redacted>]"));
+            assertFalse(entry, entry.contains("secret"));
+        }
+        assertEquals(2, log.logged());
+
+        // Including those of an INSERT column list
+        BitSet redacted = log.redactedParameters("INSERT INTO User (Username, Firstname, Lastname, Password) VALUES (?, ?, ?, ?)");
+        assertEquals("{4}", redacted.toString());
+    }
+
+    @Test
+    public void slowQueryLog_thresholdAndSampling() throws Exception {
+        List<String> entries = new ArrayList<>();
+        for (SlowQueryLog log : new SlowQueryLog[]{new SlowQueryLog(TimeUnit.HOURS.toMillis(1), 1, entries::add),
+                new SlowQueryLog(0, 0, entries::add)}) {
+            try (Connection conn = log.wrap(DriverManager.getConnection(db.getDbUrl()));
+                 Statement st = conn.createStatement();
+                 ResultSet res = st.executeQuery("SELECT COUNT(*) FROM Submission")) {
+                assertTrue(res.next());
+            }
+        }
+        assertTrue("Fast or unsampled statements should not be logged", entries.isEmpty());
+
+        // Through Smarticulous, every statement it runs is logged
+        smarticulous.setSlowQueryLog(0, 1);
+        smarticulous.openDB(db.getDbUrl());
+        assertTrue(smarticulous.verifyLogin(db.getUser(1).username, db.getPassword(1)));
+        db.checkExercise(smarticulous.getExercise(1));
+        assertTrue(smarticulous.getSlowQueriesLogged() >= 2);
+        smarticulous.closeDB();
+    }
 }